@@ -0,0 +1,263 @@
+/*
+ * Hyperbox - Virtual Infrastructure Manager
+ * Copyright (C) 2021 Maxime Dor
+ *
+ * http://kamax.io/hbox/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.kamax.vbox;
+
+import io.kamax.hbox.exception.HypervisorException;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Identifier of a VirtualBox connector, like {@code vbox-6.1-xpcom}, split into its vendor, version and type.
+ * <p>
+ * Instances are interned: there is a single instance per identifier, so they can be compared with {@code ==}. The identifiers of
+ * {@link VirtualBox.ID} are registered on load, others with {@link #of(int, int, Type)} or {@link #parse(String)}. Looking up a
+ * registered identifier by version and type or by string does not allocate. Major and minor versions go from 0 to
+ * {@value #maxVersion}.
+ * </p>
+ */
+public final class ConnectorId implements Comparable<ConnectorId> {
+
+    public enum Type {
+
+        XPCOM(VirtualBox.Type.XPCOM),
+        MSCOM(VirtualBox.Type.MSCOM),
+        WEB_SERVICES(VirtualBox.Type.WEB_SERVICES);
+
+        private final String id;
+
+        private Type(String id) {
+            this.id = id;
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public static Type fromId(String id) {
+            for (Type type : values()) {
+                if (type.id.equals(id)) {
+                    return type;
+                }
+            }
+            throw new HypervisorException("Unknown VirtualBox connector type: " + id);
+        }
+
+    }
+
+    private static final int maxVersion = 63;
+    private static final int types = Type.values().length;
+
+    private static final AtomicReferenceArray<ConnectorId> byVersion = new AtomicReferenceArray<ConnectorId>((maxVersion + 1) * (maxVersion + 1) * types);
+    private static final ConcurrentMap<String, ConnectorId> byString = new ConcurrentHashMap<String, ConnectorId>();
+    private static volatile ConnectorId[] sorted = new ConnectorId[0];
+
+    static {
+        for (String id : VirtualBox.ID_GROUP.ALL) {
+            parse(id);
+        }
+    }
+
+    private static int getIndex(int major, int minor, Type type) {
+        if (major < 0 || major > maxVersion || minor < 0 || minor > maxVersion) {
+            throw new HypervisorException("Unsupported VirtualBox version for a connector: " + major + "." + minor);
+        }
+        return ((major * (maxVersion + 1)) + minor) * types + type.ordinal();
+    }
+
+    private static synchronized ConnectorId register(int major, int minor, Type type) {
+        int index = getIndex(major, minor, type);
+        ConnectorId existing = byVersion.get(index);
+        if (existing != null) {
+            return existing;
+        }
+
+        ConnectorId id = new ConnectorId(VirtualBox.VBOX_ID, major, minor, type);
+        byString.put(id.id, id);
+        ConnectorId[] updated = Arrays.copyOf(sorted, sorted.length + 1);
+        updated[sorted.length] = id;
+        Arrays.sort(updated);
+        sorted = updated;
+        byVersion.set(index, id);
+        return id;
+    }
+
+    /**
+     * @return the identifier of the version and type, registered if it was not yet.
+     */
+    public static ConnectorId of(int major, int minor, Type type) {
+        ConnectorId id = get(major, minor, type);
+        return id != null ? id : register(major, minor, type);
+    }
+
+    /**
+     * @return the registered identifier of the version and type, or null if there is none.
+     */
+    public static ConnectorId get(int major, int minor, Type type) {
+        return byVersion.get(getIndex(major, minor, type));
+    }
+
+    /**
+     * @return the registered identifier with the given string form, or null if there is none.
+     */
+    public static ConnectorId get(String id) {
+        return id == null ? null : byString.get(id);
+    }
+
+    /**
+     * Parse an identifier like {@code vbox-6.1-xpcom}, registering it if it was not yet.
+     *
+     * @throws HypervisorException if the identifier is not valid.
+     */
+    public static ConnectorId parse(String id) {
+        ConnectorId known = get(id);
+        if (known != null) {
+            return known;
+        }
+
+        String[] parts = id == null ? new String[0] : id.split("-");
+        if (parts.length != 3 || !VirtualBox.VBOX_ID.equals(parts[0])) {
+            throw new HypervisorException("Invalid VirtualBox connector ID: " + id);
+        }
+
+        String[] version = parts[1].split("\\.");
+        if (version.length != 2) {
+            throw new HypervisorException("Invalid version in VirtualBox connector ID: " + id);
+        }
+
+        try {
+            return of(Integer.parseInt(version[0]), Integer.parseInt(version[1]), Type.fromId(parts[2]));
+        } catch (NumberFormatException e) {
+            throw new HypervisorException("Invalid version in VirtualBox connector ID: " + id);
+        }
+    }
+
+    /**
+     * @return all the registered identifiers, by version then type.
+     */
+    public static List<ConnectorId> getAll() {
+        return Collections.unmodifiableList(Arrays.asList(sorted));
+    }
+
+    /**
+     * @param type the type of connector, or null for all of them.
+     * @return the registered identifiers of the major version, like all the 5.x ones, by version then type.
+     */
+    public static List<ConnectorId> find(int major, Type type) {
+        return find(major, 0, major, maxVersion, type);
+    }
+
+    /**
+     * @param type the type of connector, or null for all of them.
+     * @return the registered identifiers between the two versions included, by version then type.
+     */
+    public static List<ConnectorId> find(int fromMajor, int fromMinor, int toMajor, int toMinor, Type type) {
+        List<ConnectorId> result = new ArrayList<ConnectorId>();
+        for (ConnectorId id : sorted) {
+            if (id.compareVersion(fromMajor, fromMinor) >= 0 && id.compareVersion(toMajor, toMinor) <= 0
+                    && (type == null || type == id.type)) {
+                result.add(id);
+            }
+        }
+        return result;
+    }
+
+    private final String vendor;
+    private final int major;
+    private final int minor;
+    private final Type type;
+    private final String version;
+    private final String id;
+
+    private ConnectorId(String vendor, int major, int minor, Type type) {
+        this.vendor = vendor;
+        this.major = major;
+        this.minor = minor;
+        this.type = type;
+        this.version = major + "." + minor;
+        this.id = vendor + "-" + version + "-" + type.getId();
+    }
+
+    public String getVendor() {
+        return vendor;
+    }
+
+    public int getMajor() {
+        return major;
+    }
+
+    public int getMinor() {
+        return minor;
+    }
+
+    /**
+     * @return the version as in {@link VirtualBox.Version}, like {@code 6.1}.
+     */
+    public String getVersion() {
+        return version;
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    /**
+     * @return a negative number, zero or a positive number if this version is lower, equal or greater than the given one.
+     */
+    public int compareVersion(int major, int minor) {
+        return this.major != major ? Integer.compare(this.major, major) : Integer.compare(this.minor, minor);
+    }
+
+    public boolean isAtLeast(int major, int minor) {
+        return compareVersion(major, minor) >= 0;
+    }
+
+    @Override
+    public int compareTo(ConnectorId o) {
+        int result = compareVersion(o.major, o.minor);
+        return result != 0 ? result : type.compareTo(o.type);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        // Interned, and only registered instances exist
+        return this == o;
+    }
+
+    @Override
+    public int hashCode() {
+        return id.hashCode();
+    }
+
+    /**
+     * @return the identifier, like {@code vbox-6.1-xpcom}.
+     */
+    @Override
+    public String toString() {
+        return id;
+    }
+
+}
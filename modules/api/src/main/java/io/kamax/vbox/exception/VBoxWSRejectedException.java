@@ -0,0 +1,47 @@
+/*
+ * Hyperbox - Virtual Infrastructure Manager
+ * Copyright (C) 2021 Maxime Dor
+ *
+ * http://kamax.io/hbox/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.kamax.vbox.exception;
+
+import io.kamax.hbox.exception.HypervisorException;
+
+/**
+ * A call to the web service was not made because the endpoint is saturated and the call could not be admitted in its time budget.
+ * Retrying later, or on another endpoint, can succeed.
+ */
+public class VBoxWSRejectedException extends HypervisorException {
+
+    private static final long serialVersionUID = 2598321471536405870L;
+
+    private final String lane;
+
+    public VBoxWSRejectedException(String lane, String s) {
+        super(s);
+        this.lane = lane;
+    }
+
+    /**
+     * @return the priority lane the call was made in.
+     */
+    public String getLane() {
+        return lane;
+    }
+
+}
@@ -0,0 +1,76 @@
+/*
+ * Hyperbox - Virtual Infrastructure Manager
+ * Copyright (C) 2021 Maxime Dor
+ *
+ * http://kamax.io/hbox/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.kamax.vbox.bench;
+
+import io.kamax.vbox.utils.EventBusFactory;
+import net.engio.mbassy.listener.Handler;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class EventBusBenchmark {
+
+    public static class Event {
+
+    }
+
+    public static class Listener {
+
+        private final LongAdder received = new LongAdder();
+
+        @Handler
+        public void get(Event ev) {
+            received.increment();
+        }
+
+    }
+
+    private final Event event = new Event();
+
+    @Setup
+    public void setup() {
+        // The bus is shared by the JVM, so only subscribe once per fork
+        EventBusFactory.subscribe(new Listener());
+    }
+
+    @Benchmark
+    public void post() {
+        EventBusFactory.post(event);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void postConcurrent() {
+        EventBusFactory.post(event);
+    }
+
+}
@@ -0,0 +1,85 @@
+/*
+ * Hyperbox - Virtual Infrastructure Manager
+ * Copyright (C) 2021 Maxime Dor
+ *
+ * http://kamax.io/hbox/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.kamax.vbox.bench;
+
+import io.kamax.vbox.settings.cpu.CpuCountSetting;
+import io.kamax.vbox.settings.cpu.CpuExecCapSetting;
+import io.kamax.vbox.settings.cpu.PaeSetting;
+import io.kamax.vbox.settings.general.DescriptionSetting;
+import io.kamax.vbox.settings.general.NameSetting;
+import io.kamax.vbox.settings.general.OsTypeSetting;
+import io.kamax.vbox.settings.memory.MemorySetting;
+import io.kamax.vbox.settings.memory.NestedPagingSetting;
+import io.kamax.vbox.settings.motherboard.ACPISetting;
+import io.kamax.vbox.settings.network.NicAttachModeSetting;
+import io.kamax.vbox.settings.network.NicEnabledSetting;
+import io.kamax.vbox.settings.network.NicMacAddressSetting;
+import io.kamax.vbox.settings.storage.ControllerNameSetting;
+import io.kamax.vbox.settings.storage.ControllerTypeSetting;
+import io.kamax.vbox.settings.video.Accelerate3dSetting;
+import io.kamax.vbox.settings.video.VRamSetting;
+import io.kamax.vbox.settings.virtual.HwVirtExSetting;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Builds the settings read for a machine, the way a machine listing does for each machine.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class SettingsBenchmark {
+
+    private static final int machines = 100;
+
+    @Benchmark
+    @OperationsPerInvocation(machines)
+    public void machineSettings(Blackhole bh) {
+        for (int i = 0; i < machines; i++) {
+            bh.consume(new NameSetting("vm-" + i));
+            bh.consume(new DescriptionSetting("Machine " + i));
+            bh.consume(new OsTypeSetting("Ubuntu_64"));
+            bh.consume(new CpuCountSetting(1 + i % 4));
+            bh.consume(new CpuExecCapSetting(100));
+            bh.consume(new PaeSetting(true));
+            bh.consume(new MemorySetting(512L << (i % 4)));
+            bh.consume(new NestedPagingSetting(true));
+            bh.consume(new ACPISetting(true));
+            bh.consume(new VRamSetting(16));
+            bh.consume(new Accelerate3dSetting(false));
+            bh.consume(new HwVirtExSetting(true));
+            bh.consume(new NicEnabledSetting(true));
+            bh.consume(new NicAttachModeSetting("NAT"));
+            bh.consume(new NicMacAddressSetting("080027" + String.format("%06X", i)));
+            bh.consume(new ControllerNameSetting("SATA"));
+            bh.consume(new ControllerTypeSetting("SATA"));
+        }
+    }
+
+}
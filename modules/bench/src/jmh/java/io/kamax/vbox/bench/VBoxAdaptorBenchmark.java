@@ -0,0 +1,105 @@
+/*
+ * Hyperbox - Virtual Infrastructure Manager
+ * Copyright (C) 2021 Maxime Dor
+ *
+ * http://kamax.io/hbox/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.kamax.vbox.bench;
+
+import io.kamax.hbox.constant.NetServiceType;
+import io.kamax.hbox.hypervisor.net._NetService;
+import io.kamax.vbox.VBoxNetMode;
+import io.kamax.vbox.net.VBoxAdaptor;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class VBoxAdaptorBenchmark {
+
+    private static class Adaptor extends VBoxAdaptor {
+
+        private Adaptor() {
+            super("vboxnet0", "vboxnet0", VBoxNetMode.NATNetwork, true);
+        }
+
+        @Override
+        protected void process(_NetService service) {
+            // accepted as is
+        }
+
+    }
+
+    private final List<_NetService> services = new ArrayList<>();
+    private Adaptor adaptor;
+    private int next;
+
+    /**
+     * Services are proxies only answering their type, so the benchmark does not depend on a given hbox-api implementation.
+     */
+    private static _NetService service(NetServiceType type) {
+        return (_NetService) Proxy.newProxyInstance(_NetService.class.getClassLoader(), new Class<?>[]{_NetService.class},
+                (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "getType":
+                        case "toString":
+                            return type.getId();
+                        case "hashCode":
+                            return type.hashCode();
+                        case "equals":
+                            return proxy == args[0];
+                        default:
+                            throw new UnsupportedOperationException(method.getName());
+                    }
+                });
+    }
+
+    @Setup
+    public void setup() {
+        for (NetServiceType type : NetServiceType.values()) {
+            services.add(service(type));
+        }
+        adaptor = new Adaptor();
+        for (_NetService service : services) {
+            adaptor.setService(service);
+        }
+    }
+
+    @Benchmark
+    public _NetService setService() {
+        _NetService service = services.get(next++ % services.size());
+        adaptor.setService(service);
+        return service;
+    }
+
+    @Benchmark
+    public List<_NetService> getServices() {
+        return adaptor.getServices();
+    }
+
+}
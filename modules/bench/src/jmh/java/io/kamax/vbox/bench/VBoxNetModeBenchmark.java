@@ -0,0 +1,66 @@
+/*
+ * Hyperbox - Virtual Infrastructure Manager
+ * Copyright (C) 2021 Maxime Dor
+ *
+ * http://kamax.io/hbox/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.kamax.vbox.bench;
+
+import io.kamax.vbox.VBoxNetMode;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class VBoxNetModeBenchmark {
+
+    @Param({"NAT", "HostOnly", "NATNetwork"})
+    public String modeId;
+
+    private VBoxNetMode mode;
+
+    @Setup
+    public void setup() {
+        mode = VBoxNetMode.getEnum(modeId);
+    }
+
+    @Benchmark
+    public VBoxNetMode getEnum() {
+        return VBoxNetMode.getEnum(modeId);
+    }
+
+    @Benchmark
+    public boolean is() {
+        return mode.is("HostOnly");
+    }
+
+    @Benchmark
+    public Set<String> getSupportedServices() {
+        return mode.getSupportedServices();
+    }
+
+}
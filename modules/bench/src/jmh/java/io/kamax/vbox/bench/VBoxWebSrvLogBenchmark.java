@@ -0,0 +1,68 @@
+/*
+ * Hyperbox - Virtual Infrastructure Manager
+ * Copyright (C) 2021 Maxime Dor
+ *
+ * http://kamax.io/hbox/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.kamax.vbox.bench;
+
+import io.kamax.vbox.VBoxWebSrvLog;
+import io.kamax.vbox.VBoxWebSrvLogEvent;
+import io.kamax.vbox.VBoxWebSrvLogParser;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Classification of the vboxwebsrv output, done for every line the process prints.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class VBoxWebSrvLogBenchmark {
+
+    @Param({
+            "00:00:00.000114 main     OS Product: Linux",
+            "00:00:00.008766 SQPmp    Socket connection successful: host = default (localhost), port = 18083, master socket = 8",
+            "00:00:00.008846 SQPmp    #### SOAP FAULT: Address already in use [detected]"
+    })
+    public String line;
+
+    private final VBoxWebSrvLog log = new VBoxWebSrvLog(200);
+
+    @Benchmark
+    public VBoxWebSrvLogEvent.Type classify() {
+        return VBoxWebSrvLogParser.classify(line);
+    }
+
+    @Benchmark
+    public VBoxWebSrvLogEvent parse() {
+        return VBoxWebSrvLogParser.parse(line);
+    }
+
+    @Benchmark
+    public VBoxWebSrvLogEvent.Type add() {
+        return log.add(line);
+    }
+
+}
@@ -0,0 +1,395 @@
+/*
+ * Hyperbox - Virtual Infrastructure Manager
+ * Copyright (C) 2021 Maxime Dor
+ *
+ * http://kamax.io/hbox/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.kamax.vbox;
+
+import io.kamax.hbox.Configuration;
+import io.kamax.hbox.exception.HypervisorException;
+import io.kamax.tools.logging.Logger;
+import io.kamax.vbox.utils.ConfigUtils;
+import io.kamax.vbox.utils.LatencyHistogram;
+import io.kamax.vbox.utils.RuntimeFiles;
+import org.apache.commons.lang3.StringUtils;
+import org.zeroturnaround.exec.ProcessExecutor;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Picks the fastest connector type usable with the installed VirtualBox.
+ * <p>
+ * The installed version is read from {@code VBoxManage --version}. XPCOM is considered only where {@link VBoxXPCOM#validate(String,
+ * long)} accepts the version, MSCOM only on Windows, and only types with a registered {@link ConnectorId} for that version. Each
+ * remaining type is connected through its {@link Probe}, warmed up with {@code vbox.connector.select.warmup} calls, then measured
+ * over up to {@code vbox.connector.select.calls} calls or {@code vbox.connector.select.budget} milliseconds. The type with the lowest
+ * median latency wins.
+ * </p>
+ * <p>
+ * The decision and its measurements are saved to {@code vbox.connector.select.file}, by default in a directory of the current user
+ * (see {@link RuntimeFiles}), and reused until the installed version or revision changes.
+ * </p>
+ */
+public class VBoxConnectorSelector {
+
+    /**
+     * Connects with one connector type to measure it.
+     */
+    public interface Probe {
+
+        void connect() throws Exception;
+
+        /**
+         * Make one representative read call, like getting the version or listing the machines.
+         */
+        void call() throws Exception;
+
+        void disconnect();
+
+    }
+
+    /**
+     * How one connector type did during the probe.
+     */
+    public static class Measurement {
+
+        private final ConnectorId.Type type;
+        private final long median;
+        private final long p90;
+        private final long calls;
+        private final String error;
+
+        private Measurement(ConnectorId.Type type, long median, long p90, long calls, String error) {
+            this.type = type;
+            this.median = median;
+            this.p90 = p90;
+            this.calls = calls;
+            this.error = error;
+        }
+
+        public ConnectorId.Type getType() {
+            return type;
+        }
+
+        public long getMedian(TimeUnit unit) {
+            return unit.convert(median, TimeUnit.MICROSECONDS);
+        }
+
+        public long getP90(TimeUnit unit) {
+            return unit.convert(p90, TimeUnit.MICROSECONDS);
+        }
+
+        public long getCalls() {
+            return calls;
+        }
+
+        public boolean isViable() {
+            return Objects.isNull(error);
+        }
+
+        /**
+         * @return why the type cannot be used, or null if it can.
+         */
+        public String getError() {
+            return error;
+        }
+
+    }
+
+    public static class Decision {
+
+        private final ConnectorId connector;
+        private final String version;
+        private final long revision;
+        private final long decidedAt;
+        private final boolean cached;
+        private final Map<ConnectorId.Type, Measurement> measurements;
+
+        private Decision(ConnectorId connector, String version, long revision, long decidedAt, boolean cached,
+                         Map<ConnectorId.Type, Measurement> measurements) {
+            this.connector = connector;
+            this.version = version;
+            this.revision = revision;
+            this.decidedAt = decidedAt;
+            this.cached = cached;
+            this.measurements = Collections.unmodifiableMap(measurements);
+        }
+
+        public ConnectorId getConnector() {
+            return connector;
+        }
+
+        public String getVersion() {
+            return version;
+        }
+
+        public long getRevision() {
+            return revision;
+        }
+
+        /**
+         * @return when the probe was run, as epoch milliseconds.
+         */
+        public long getDecidedAt() {
+            return decidedAt;
+        }
+
+        /**
+         * @return true if the decision was loaded from a previous probe instead of measured now.
+         */
+        public boolean isCached() {
+            return cached;
+        }
+
+        public Map<ConnectorId.Type, Measurement> getMeasurements() {
+            return measurements;
+        }
+
+    }
+
+    private static final Pattern majorMinorPattern = Pattern.compile("^(\\d+)\\.(\\d+)");
+    // The revision follows the last 'r', as the build suffix can contain some, like in 7.0.14_rpmfusionr161095
+    private static final Pattern versionPattern = Pattern.compile("^(\\d+)\\.(\\d+)(\\.\\d+)?(\\S*)r(\\d+)\\s*$", Pattern.MULTILINE);
+
+    private final Map<ConnectorId.Type, Probe> probes;
+    private final File store;
+
+    /**
+     * @param probes how to connect with each type of connector this host has.
+     */
+    public VBoxConnectorSelector(Map<ConnectorId.Type, Probe> probes) {
+        this(probes, getDefaultStore());
+    }
+
+    public VBoxConnectorSelector(Map<ConnectorId.Type, Probe> probes, File store) {
+        this.probes = new EnumMap<>(probes);
+        this.store = Objects.requireNonNull(store);
+    }
+
+    /**
+     * Select a connector for the VirtualBox install found in the home directory.
+     */
+    public Decision select(String homeDir) {
+        String vboxmanage = VBoxExecLocator.get().findExecutable(homeDir + File.separator + "VBoxManage");
+        if (Objects.isNull(vboxmanage)) {
+            throw new HypervisorException("Unable to select a connector: VBoxManage was not found in " + homeDir);
+        }
+
+        String output;
+        try {
+            output = new ProcessExecutor().command(vboxmanage, "--version").readOutput(true)
+                    .timeout(ConfigUtils.getLong("vbox.connector.select.timeout", 10000L), TimeUnit.MILLISECONDS).execute().outputUTF8().trim();
+        } catch (Exception e) {
+            throw new HypervisorException("Unable to get the VirtualBox version: " + e.getMessage(), e);
+        }
+
+        Matcher m = versionPattern.matcher(output);
+        if (!m.find()) {
+            throw new HypervisorException("Unable to parse the VirtualBox version: " + output);
+        }
+        return select(m.group(1) + "." + m.group(2) + StringUtils.defaultString(m.group(3)) + m.group(4), Long.parseLong(m.group(5)));
+    }
+
+    /**
+     * Select a connector for the given installed version, probing only if no decision was saved for it.
+     *
+     * @throws HypervisorException if no connector type can be used.
+     */
+    public synchronized Decision select(String version, long revision) {
+        Decision saved = load();
+        if (Objects.nonNull(saved) && Objects.equals(version, saved.version) && revision == saved.revision
+                && probes.containsKey(saved.connector.getType())) {
+            Logger.debug("Using the saved connector selection: " + saved.connector);
+            return saved;
+        }
+
+        if (Objects.nonNull(saved)) {
+            Logger.info("VirtualBox changed from " + saved.version + " r" + saved.revision + " to " + version + " r" + revision
+                    + ", selecting the connector again");
+        }
+        Decision decision = probe(version, revision);
+        save(decision);
+        return decision;
+    }
+
+    /**
+     * Forget the saved decision, so the next selection probes again.
+     */
+    public synchronized void invalidate() {
+        if (store.exists() && !store.delete()) {
+            Logger.warning("Unable to delete the connector selection " + store);
+        }
+    }
+
+    private static File getDefaultStore() {
+        String file = Configuration.getSetting("vbox.connector.select.file");
+        if (StringUtils.isNotBlank(file)) {
+            return new File(file);
+        }
+
+        try {
+            return new File(RuntimeFiles.getDir().toFile(), "hbox-vbox-connector.properties");
+        } catch (IOException e) {
+            throw new HypervisorException("Unable to use the directory of the connector selection: " + e.getMessage(), e);
+        }
+    }
+
+    private static ConnectorId getConnector(String version, ConnectorId.Type type) {
+        Matcher m = majorMinorPattern.matcher(version);
+        if (!m.find()) {
+            throw new HypervisorException("Invalid VirtualBox version: " + version);
+        }
+        return ConnectorId.get(Integer.parseInt(m.group(1)), Integer.parseInt(m.group(2)), type);
+    }
+
+    private String getUnusableReason(ConnectorId.Type type, String version, long revision) {
+        if (Objects.isNull(getConnector(version, type))) {
+            return "no " + type.getId() + " connector for VirtualBox " + version;
+        }
+
+        boolean windows = System.getProperty("os.name").toLowerCase().contains("windows");
+        if (ConnectorId.Type.MSCOM.equals(type) && !windows) {
+            return "MSCOM is only available on Windows";
+        }
+
+        if (ConnectorId.Type.XPCOM.equals(type)) {
+            try {
+                VBoxXPCOM.validate(version, revision);
+            } catch (HypervisorException e) {
+                return e.getMessage();
+            }
+        }
+
+        return null;
+    }
+
+    private Measurement measure(ConnectorId.Type type, Probe probe) {
+        int warmup = ConfigUtils.getInt("vbox.connector.select.warmup", 5);
+        int calls = ConfigUtils.getInt("vbox.connector.select.calls", 50);
+        long budget = TimeUnit.MILLISECONDS.toNanos(ConfigUtils.getLong("vbox.connector.select.budget", 2000L));
+        LatencyHistogram latency = new LatencyHistogram();
+        try {
+            probe.connect();
+            try {
+                for (int i = 0; i < warmup; i++) {
+                    probe.call();
+                }
+
+                long deadline = System.nanoTime() + budget;
+                for (int i = 0; i < calls && System.nanoTime() < deadline; i++) {
+                    long start = System.nanoTime();
+                    probe.call();
+                    latency.recordNanos(System.nanoTime() - start);
+                }
+            } finally {
+                probe.disconnect();
+            }
+        } catch (Exception e) {
+            return new Measurement(type, -1, -1, latency.getCount(), StringUtils.defaultIfBlank(e.getMessage(), e.getClass().getSimpleName()));
+        }
+
+        return new Measurement(type, latency.getPercentile(50, TimeUnit.MICROSECONDS), latency.getPercentile(90, TimeUnit.MICROSECONDS),
+                latency.getCount(), null);
+    }
+
+    private Decision probe(String version, long revision) {
+        Map<ConnectorId.Type, Measurement> measurements = new EnumMap<>(ConnectorId.Type.class);
+        Measurement best = null;
+        for (Map.Entry<ConnectorId.Type, Probe> entry : probes.entrySet()) {
+            ConnectorId.Type type = entry.getKey();
+            String reason = getUnusableReason(type, version, revision);
+            Measurement measurement = Objects.nonNull(reason) ? new Measurement(type, -1, -1, 0, reason) : measure(type, entry.getValue());
+            measurements.put(type, measurement);
+            Logger.info("event=vbox.connector.probe type=" + type.getId() + " viable=" + measurement.isViable() + " calls="
+                    + measurement.calls + " p50Us=" + measurement.median + " p90Us=" + measurement.p90
+                    + (measurement.isViable() ? "" : " error=\"" + measurement.error + "\""));
+
+            if (measurement.isViable() && (Objects.isNull(best) || measurement.median < best.median
+                    || (measurement.median == best.median && measurement.p90 < best.p90))) {
+                best = measurement;
+            }
+        }
+
+        if (Objects.isNull(best)) {
+            throw new HypervisorException("No usable connector for VirtualBox " + version + " r" + revision);
+        }
+
+        ConnectorId connector = getConnector(version, best.type);
+        Logger.info("Selected the " + connector + " connector for VirtualBox " + version + " r" + revision);
+        return new Decision(connector, version, revision, System.currentTimeMillis(), false, measurements);
+    }
+
+    private void save(Decision decision) {
+        Properties props = new Properties();
+        props.setProperty("connector", decision.connector.toString());
+        props.setProperty("version", decision.version);
+        props.setProperty("revision", Long.toString(decision.revision));
+        props.setProperty("decidedAt", Long.toString(decision.decidedAt));
+        for (Measurement measurement : decision.measurements.values()) {
+            String prefix = measurement.type.getId() + ".";
+            props.setProperty(prefix + "p50Us", Long.toString(measurement.median));
+            props.setProperty(prefix + "p90Us", Long.toString(measurement.p90));
+            props.setProperty(prefix + "calls", Long.toString(measurement.calls));
+            if (!measurement.isViable()) {
+                props.setProperty(prefix + "error", measurement.error);
+            }
+        }
+
+        try {
+            RuntimeFiles.store(store.toPath(), props, "VirtualBox connector selected by Hyperbox");
+        } catch (IOException e) {
+            Logger.warning("Unable to save the connector selection to " + store, e);
+        }
+    }
+
+    private Decision load() {
+        if (!Files.isRegularFile(store.toPath(), LinkOption.NOFOLLOW_LINKS)) {
+            return null;
+        }
+
+        try {
+            Properties props = RuntimeFiles.load(store.toPath());
+            Map<ConnectorId.Type, Measurement> measurements = new EnumMap<>(ConnectorId.Type.class);
+            for (ConnectorId.Type type : ConnectorId.Type.values()) {
+                String prefix = type.getId() + ".";
+                if (props.containsKey(prefix + "calls")) {
+                    measurements.put(type, new Measurement(type, Long.parseLong(props.getProperty(prefix + "p50Us")),
+                            Long.parseLong(props.getProperty(prefix + "p90Us")), Long.parseLong(props.getProperty(prefix + "calls")),
+                            props.getProperty(prefix + "error")));
+                }
+            }
+            return new Decision(ConnectorId.parse(props.getProperty("connector")), props.getProperty("version"),
+                    Long.parseLong(props.getProperty("revision")), Long.parseLong(props.getProperty("decidedAt")), true, measurements);
+        } catch (IOException | RuntimeException e) {
+            Logger.warning("Ignoring invalid connector selection " + store + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+}
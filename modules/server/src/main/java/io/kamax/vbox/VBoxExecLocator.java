@@ -0,0 +1,167 @@
+/*
+ * Hyperbox - Virtual Infrastructure Manager
+ * Copyright (C) 2021 Maxime Dor
+ *
+ * http://kamax.io/hbox/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.kamax.vbox;
+
+import io.kamax.tools.logging.Logger;
+import io.kamax.vbox.utils.ConfigUtils;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Finds VirtualBox files among candidate paths and remembers the result.
+ * <p>
+ * A found file is trusted for {@code vbox.exec.locator.ttl} milliseconds without touching the filesystem. Once that time is over, a
+ * single stat checks its modification time and size: if they changed, like after an upgrade, or the file is gone, the candidates
+ * are looked up again. Files that were not found are not remembered.
+ * </p>
+ */
+public class VBoxExecLocator {
+
+    private static class Entry {
+
+        private final String path;
+        private final long mtime;
+        private final long size;
+        private volatile long checkedAt;
+
+        private Entry(String path, BasicFileAttributes attrs) {
+            this.path = path;
+            this.mtime = attrs.lastModifiedTime().toMillis();
+            this.size = attrs.size();
+            this.checkedAt = System.nanoTime();
+        }
+
+        private boolean matches(BasicFileAttributes attrs) {
+            return attrs.lastModifiedTime().toMillis() == mtime && attrs.size() == size;
+        }
+
+    }
+
+    private static final VBoxExecLocator instance = new VBoxExecLocator(ConfigUtils.getLong("vbox.exec.locator.ttl", 60000L));
+
+    /**
+     * @return the locator shared by all the VirtualBox components of this JVM.
+     */
+    public static VBoxExecLocator get() {
+        return instance;
+    }
+
+    private final long ttl;
+    private final Map<List<String>, Entry> executables = new ConcurrentHashMap<>();
+    private final Map<List<String>, Entry> files = new ConcurrentHashMap<>();
+
+    /**
+     * @param ttl how long a found file is trusted without checking it again, in milliseconds.
+     */
+    public VBoxExecLocator(long ttl) {
+        this.ttl = TimeUnit.MILLISECONDS.toNanos(ttl);
+    }
+
+    private static BasicFileAttributes stat(String path) {
+        try {
+            BasicFileAttributes attrs = Files.readAttributes(Paths.get(path), BasicFileAttributes.class);
+            return attrs.isRegularFile() ? attrs : null;
+        } catch (IOException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    private String find(Map<List<String>, Entry> cache, List<String> candidates, boolean executable) {
+        Entry entry = cache.get(candidates);
+        if (Objects.nonNull(entry)) {
+            long now = System.nanoTime();
+            if (now - entry.checkedAt < ttl) {
+                return entry.path;
+            }
+
+            BasicFileAttributes attrs = stat(entry.path);
+            if (Objects.nonNull(attrs) && entry.matches(attrs)) {
+                entry.checkedAt = now;
+                return entry.path;
+            }
+
+            Logger.info(entry.path + " was changed or removed, looking for VirtualBox files again");
+            cache.remove(candidates, entry);
+        }
+
+        for (String candidate : candidates) {
+            BasicFileAttributes attrs = stat(candidate);
+            if (Objects.isNull(attrs)) {
+                Logger.debug("Not a valid VirtualBox file [" + candidate + "]: does not exist or is not a file");
+                continue;
+            }
+
+            Path path = Paths.get(candidate);
+            if (executable && !Files.isExecutable(path)) {
+                Logger.debug("Not a valid VirtualBox file [" + candidate + "]: is not executable");
+                continue;
+            }
+
+            Logger.debug(candidate + " is a valid VirtualBox file");
+            cache.put(Collections.unmodifiableList(new ArrayList<>(candidates)), new Entry(candidate, attrs));
+            return candidate;
+        }
+
+        return null;
+    }
+
+    /**
+     * @return the first candidate that is an executable file, or null if there is none.
+     */
+    public String findExecutable(List<String> candidates) {
+        return find(executables, candidates, true);
+    }
+
+    public String findExecutable(String path) {
+        return findExecutable(Collections.singletonList(path));
+    }
+
+    /**
+     * @return the first candidate that is a file, or null if there is none.
+     */
+    public String findFile(List<String> candidates) {
+        return find(files, candidates, false);
+    }
+
+    public String findFile(String path) {
+        return findFile(Collections.singletonList(path));
+    }
+
+    /**
+     * Forget every found file, so the next lookups go to the filesystem.
+     */
+    public void invalidate() {
+        executables.clear();
+        files.clear();
+    }
+
+}
@@ -0,0 +1,210 @@
+/*
+ * Hyperbox - Virtual Infrastructure Manager
+ * Copyright (C) 2021 Maxime Dor
+ *
+ * http://kamax.io/hbox/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.kamax.vbox;
+
+import io.kamax.hbox.Configuration;
+import io.kamax.tools.logging.Logger;
+import io.kamax.vbox.utils.ConfigUtils;
+import org.apache.commons.lang3.StringUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Tells whether VBoxSVC is running for the current user without spawning any process.
+ * <p>
+ * On Linux, {@code /proc} is scanned for a {@code VBoxSVC} process owned by the current user, starting with the pid found last time.
+ * Elsewhere, the IPC socket VBoxSVC creates in {@code /tmp/.vbox-<user>-ipc}, or {@code vbox.xpcom.svc.socket}, is looked for. The
+ * result is trusted for {@code vbox.xpcom.svc.probe.ttl} milliseconds.
+ * </p>
+ */
+public class VBoxSVCProbe {
+
+    public enum Result {
+        Alive,
+        Absent,
+        Unknown
+    }
+
+    private static final String processName = "VBoxSVC";
+
+    private static final VBoxSVCProbe instance = new VBoxSVCProbe(
+            new File("/proc"),
+            new File(StringUtils.defaultIfBlank(Configuration.getSetting("vbox.xpcom.svc.socket"),
+                    "/tmp/.vbox-" + System.getProperty("user.name") + "-ipc/ipcd")),
+            ConfigUtils.getLong("vbox.xpcom.svc.probe.ttl", 2000L));
+
+    /**
+     * @return the probe shared by all the XPCOM connections of this JVM.
+     */
+    public static VBoxSVCProbe get() {
+        return instance;
+    }
+
+    private final File procDir;
+    private final File socket;
+    private final long ttl;
+    private volatile Result last = Result.Unknown;
+    private volatile long checkedAt;
+    private volatile long pid = -1;
+    private final AtomicLong triggersSaved = new AtomicLong();
+    private final AtomicLong triggersRun = new AtomicLong();
+
+    /**
+     * @param procDir where the processes are listed, usually {@code /proc}.
+     * @param socket  the IPC socket of VBoxSVC, used when there is no process list.
+     * @param ttl     how long a result is trusted, in milliseconds.
+     */
+    public VBoxSVCProbe(File procDir, File socket, long ttl) {
+        this.procDir = procDir;
+        this.socket = socket;
+        this.ttl = TimeUnit.MILLISECONDS.toNanos(ttl);
+        this.checkedAt = System.nanoTime() - this.ttl;
+    }
+
+    private static Object getOwner(File file) {
+        try {
+            return Files.getAttribute(file.toPath(), "unix:uid");
+        } catch (IOException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    private boolean isVBoxSVC(File process, Object uid) {
+        try {
+            String comm = new String(Files.readAllBytes(new File(process, "comm").toPath()), StandardCharsets.UTF_8).trim();
+            return processName.equals(comm) && (Objects.isNull(uid) || Objects.equals(uid, getOwner(process)));
+        } catch (IOException e) {
+            // Gone or not ours to read
+            return false;
+        }
+    }
+
+    private long findProcess() {
+        Object uid = getOwner(new File(procDir, "self"));
+        if (pid > 0 && isVBoxSVC(new File(procDir, Long.toString(pid)), uid)) {
+            return pid;
+        }
+
+        File[] entries = procDir.listFiles();
+        if (Objects.isNull(entries)) {
+            return -1;
+        }
+        for (File entry : entries) {
+            if (StringUtils.isNumeric(entry.getName()) && isVBoxSVC(entry, uid)) {
+                return Long.parseLong(entry.getName());
+            }
+        }
+        return -1;
+    }
+
+    private Result check() {
+        if (procDir.isDirectory()) {
+            pid = findProcess();
+            return pid > 0 ? Result.Alive : Result.Absent;
+        }
+
+        if (Objects.nonNull(socket.getParentFile()) && socket.getParentFile().isDirectory()) {
+            return socket.exists() ? Result.Alive : Result.Absent;
+        }
+
+        return Result.Unknown;
+    }
+
+    /**
+     * @return the state of VBoxSVC, checked again only if the last result is older than the TTL.
+     */
+    public Result probe() {
+        long now = System.nanoTime();
+        if (now - checkedAt < ttl) {
+            return last;
+        }
+
+        synchronized (this) {
+            if (now - checkedAt < ttl) {
+                return last;
+            }
+
+            last = check();
+            checkedAt = System.nanoTime();
+            Logger.debug("VBoxSVC probe: " + last + (pid > 0 ? " (pid " + pid + ")" : ""));
+            return last;
+        }
+    }
+
+    public boolean isAlive() {
+        return Result.Alive.equals(probe());
+    }
+
+    /**
+     * Run the trigger only if VBoxSVC is not known to be running. Concurrent callers wait for a single trigger.
+     *
+     * @return true if the trigger was run, false if it was not needed.
+     */
+    public synchronized boolean triggerIfAbsent(Runnable trigger) {
+        if (isAlive()) {
+            triggersSaved.incrementAndGet();
+            return false;
+        }
+
+        triggersRun.incrementAndGet();
+        try {
+            trigger.run();
+        } finally {
+            invalidate();
+        }
+        return true;
+    }
+
+    /**
+     * Forget the last result, so the next probe checks again.
+     */
+    public synchronized void invalidate() {
+        checkedAt = System.nanoTime() - ttl;
+    }
+
+    /**
+     * @return the pid of VBoxSVC as of the last probe, or -1 if unknown.
+     */
+    public long getPid() {
+        return pid;
+    }
+
+    /**
+     * @return how many triggers were skipped because VBoxSVC was running.
+     */
+    public long getTriggersSaved() {
+        return triggersSaved.get();
+    }
+
+    /**
+     * @return how many triggers were run.
+     */
+    public long getTriggersRun() {
+        return triggersRun.get();
+    }
+
+}
@@ -0,0 +1,312 @@
+/*
+ * Hyperbox - Virtual Infrastructure Manager
+ * Copyright (C) 2021 Maxime Dor
+ *
+ * http://kamax.io/hbox/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.kamax.vbox;
+
+import io.kamax.tools.logging.Logger;
+import io.kamax.vbox.utils.ConfigUtils;
+import io.kamax.vbox.utils.LatencyHistogram;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Detects VBoxSVC restarts and reconnects the listeners before the next call fails on a stale handle.
+ * <p>
+ * Every {@code vbox.xpcom.svc.watch.interval} milliseconds, the pid of VBoxSVC is read through {@link VBoxSVCProbe}. When it
+ * changes or VBoxSVC goes away, every listener is first told to drop what it holds from the previous VBoxSVC, then asked to
+ * reconnect in the background. Failed reconnects are retried every {@code vbox.xpcom.svc.watch.retry} milliseconds for up to
+ * {@code vbox.xpcom.svc.watch.reconnectTimeout} milliseconds. Reconnects run on their own thread, so one blocking on a dead service
+ * does not hold up the pid checks.
+ * </p>
+ */
+public class VBoxSVCWatcher implements AutoCloseable {
+
+    /**
+     * Something holding handles or sessions tied to a VBoxSVC process.
+     */
+    public interface Listener {
+
+        /**
+         * Drop the handles and sessions of the previous VBoxSVC. Must not block on VirtualBox.
+         */
+        void invalidate();
+
+        /**
+         * Connect again. Throwing schedules another attempt.
+         */
+        default void reconnect() throws Exception {
+            // nothing to re-establish
+        }
+
+    }
+
+    /**
+     * One detected restart of VBoxSVC, or its disappearance.
+     */
+    public static class Incident {
+
+        private final long previousPid;
+        private final long detectedAt = System.nanoTime();
+        private final long detectedTime = System.currentTimeMillis();
+        private final CompletableFuture<Incident> reconnected = new CompletableFuture<>();
+        private final Set<Listener> pending = ConcurrentHashMap.newKeySet();
+        private volatile long pid;
+        private volatile long reconnectedAt = -1;
+        private volatile int attempts = 0;
+
+        private Incident(long previousPid, long pid) {
+            this.previousPid = previousPid;
+            this.pid = pid;
+        }
+
+        public long getPreviousPid() {
+            return previousPid;
+        }
+
+        /**
+         * @return the pid of VBoxSVC when the listeners reconnected, or as last seen while reconnecting. -1 if it was not running.
+         */
+        public long getPid() {
+            return pid;
+        }
+
+        /**
+         * @return when the change was detected, as epoch milliseconds.
+         */
+        public long getDetectedTime() {
+            return detectedTime;
+        }
+
+        public int getAttempts() {
+            return attempts;
+        }
+
+        public boolean isReconnected() {
+            return reconnectedAt >= 0;
+        }
+
+        /**
+         * @return the time from the detection to all listeners being reconnected, or -1 if they are not.
+         */
+        public long getTimeToReconnect(TimeUnit unit) {
+            return reconnectedAt < 0 ? -1 : unit.convert(reconnectedAt - detectedAt, TimeUnit.NANOSECONDS);
+        }
+
+        /**
+         * @return completes when all listeners are reconnected, or exceptionally when giving up.
+         */
+        public CompletableFuture<Incident> getReconnected() {
+            return reconnected;
+        }
+
+        @Override
+        public String toString() {
+            return "VBoxSVC pid " + previousPid + " -> " + pid;
+        }
+
+    }
+
+    private static final int historySize = 20;
+    private static final VBoxSVCWatcher instance = new VBoxSVCWatcher(VBoxSVCProbe.get());
+
+    /**
+     * @return the watcher shared by all the connectors of this JVM. It must be started to watch.
+     */
+    public static VBoxSVCWatcher get() {
+        return instance;
+    }
+
+    private final VBoxSVCProbe probe;
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+    private final ScheduledExecutorService scheduler;
+    private final ExecutorService reconnector;
+    private final long interval = ConfigUtils.getLong("vbox.xpcom.svc.watch.interval", 1000L);
+    private final long retry = ConfigUtils.getLong("vbox.xpcom.svc.watch.retry", 500L);
+    private final long reconnectTimeout = TimeUnit.MILLISECONDS.toNanos(ConfigUtils.getLong("vbox.xpcom.svc.watch.reconnectTimeout", 60000L));
+
+    private final Deque<Incident> incidents = new ArrayDeque<>();
+    private final LatencyHistogram reconnectTime = new LatencyHistogram();
+    private final AtomicLong incidentCount = new AtomicLong();
+    private ScheduledFuture<?> checkTask;
+    private volatile Incident current;
+    private long lastPid = 0;
+
+    public VBoxSVCWatcher(VBoxSVCProbe probe) {
+        this.probe = Objects.requireNonNull(probe);
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "vbox-svc-watcher");
+            t.setDaemon(true);
+            return t;
+        });
+        this.reconnector = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "vbox-svc-reconnect");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    public void addListener(Listener listener) {
+        listeners.add(Objects.requireNonNull(listener));
+    }
+
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    public synchronized void start() {
+        if (Objects.isNull(checkTask)) {
+            checkTask = scheduler.scheduleWithFixedDelay(() -> {
+                try {
+                    check();
+                } catch (RuntimeException e) {
+                    Logger.warning("VBoxSVC check failed", e);
+                }
+            }, 0, interval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    public synchronized void stop() {
+        if (Objects.nonNull(checkTask)) {
+            checkTask.cancel(false);
+            checkTask = null;
+        }
+    }
+
+    @Override
+    public void close() {
+        stop();
+        scheduler.shutdownNow();
+        reconnector.shutdownNow();
+    }
+
+    /**
+     * Read the pid of VBoxSVC and start an incident if it changed since the last check.
+     *
+     * @return the incident started by this check, or null if there was no change.
+     */
+    public synchronized Incident check() {
+        probe.invalidate();
+        long pid = probe.isAlive() ? probe.getPid() : -1;
+        long previous = lastPid;
+        lastPid = pid;
+
+        Incident ongoing = current;
+        if (Objects.nonNull(ongoing) && !ongoing.isReconnected()) {
+            ongoing.pid = pid;
+        }
+
+        // The first check only learns the pid, and a VBoxSVC showing up after being absent is handled by the ongoing incident
+        if (previous == 0 || pid == previous || previous < 0) {
+            return null;
+        }
+
+        Incident incident = new Incident(previous, pid);
+        incident.pending.addAll(listeners);
+        current = incident;
+        incidentCount.incrementAndGet();
+        synchronized (incidents) {
+            incidents.addFirst(incident);
+            if (incidents.size() > historySize) {
+                incidents.removeLast();
+            }
+        }
+        Logger.warning("VBoxSVC changed: " + incident + ", invalidating " + listeners.size() + " listener(s)");
+
+        for (Listener listener : listeners) {
+            try {
+                listener.invalidate();
+            } catch (RuntimeException e) {
+                Logger.warning("Unable to invalidate VBoxSVC listener " + listener, e);
+            }
+        }
+        reconnector.execute(() -> reconnect(incident));
+        return incident;
+    }
+
+    private void reconnect(Incident incident) {
+        if (incident != current) {
+            incident.reconnected.completeExceptionally(new IllegalStateException("Superseded by another VBoxSVC change"));
+            return;
+        }
+
+        incident.attempts++;
+        for (Listener listener : new ArrayList<>(incident.pending)) {
+            try {
+                listener.reconnect();
+                incident.pending.remove(listener);
+            } catch (Exception e) {
+                Logger.debug("VBoxSVC listener " + listener + " could not reconnect yet: " + e.getMessage());
+            }
+        }
+
+        if (incident.pending.isEmpty()) {
+            incident.reconnectedAt = System.nanoTime();
+            reconnectTime.recordNanos(incident.reconnectedAt - incident.detectedAt);
+            Logger.info("event=vbox.svc.reconnect previousPid=" + incident.previousPid + " pid=" + incident.pid + " attempts="
+                    + incident.attempts + " timeToReconnectMs=" + incident.getTimeToReconnect(TimeUnit.MILLISECONDS));
+            incident.reconnected.complete(incident);
+            return;
+        }
+
+        if (System.nanoTime() - incident.detectedAt >= reconnectTimeout) {
+            Logger.warning("Giving up reconnecting " + incident.pending.size() + " VBoxSVC listener(s) after " + incident.attempts
+                    + " attempt(s)");
+            incident.reconnected.completeExceptionally(new IllegalStateException("Unable to reconnect to VBoxSVC"));
+            return;
+        }
+
+        scheduler.schedule(() -> reconnector.execute(() -> reconnect(incident)), retry, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return the last incidents, most recent first.
+     */
+    public List<Incident> getIncidents() {
+        synchronized (incidents) {
+            return new ArrayList<>(incidents);
+        }
+    }
+
+    public long getIncidentCount() {
+        return incidentCount.get();
+    }
+
+    /**
+     * @return the time from detection to reconnection of the incidents that reconnected.
+     */
+    public LatencyHistogram getReconnectTime() {
+        return reconnectTime;
+    }
+
+}
@@ -0,0 +1,323 @@
+/*
+ * Hyperbox - Virtual Infrastructure Manager
+ * Copyright (C) 2021 Maxime Dor
+ *
+ * http://kamax.io/hbox/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.kamax.vbox;
+
+import io.kamax.hbox.exception.HypervisorException;
+import io.kamax.tools.logging.Logger;
+import io.kamax.vbox.exception.VBoxWSRejectedException;
+import io.kamax.vbox.utils.ConfigUtils;
+import io.kamax.vbox.utils.LatencyHistogram;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limits the concurrent calls to each web service endpoint and serves the waiting calls by priority.
+ * <p>
+ * Each endpoint admits up to {@code vbox.ws.admission.limit} calls at once, the pool size of its client options by default. Calls
+ * wait in the lane of their {@link Lane}, and a free slot always goes to the first call of the highest priority lane. Only the
+ * interactive lane can use the last {@code vbox.ws.admission.reserved} slots, a quarter of the limit by default, so batch work
+ * cannot take them all.
+ * </p>
+ * <p>
+ * A call waits at most the queue budget of its lane, {@code vbox.ws.admission.<lane>.budget} milliseconds, and is rejected with a
+ * {@link VBoxWSRejectedException} right away when the calls queued ahead of it would take longer than that, based on the average
+ * call duration.
+ * </p>
+ */
+public class VBoxWSAdmission {
+
+    public enum Lane {
+
+        Interactive("interactive", 1000L),
+        Background("background", 10000L),
+        Maintenance("maintenance", 30000L);
+
+        private final String id;
+        private final long defaultBudget;
+
+        Lane(String id, long defaultBudget) {
+            this.id = id;
+            this.defaultBudget = defaultBudget;
+        }
+
+        public String getId() {
+            return id;
+        }
+
+    }
+
+    public static class LaneStats {
+
+        private final LatencyHistogram queueTime = new LatencyHistogram();
+        private final LatencyHistogram callTime = new LatencyHistogram();
+        private final AtomicLong admitted = new AtomicLong();
+        private final AtomicLong rejected = new AtomicLong();
+
+        /**
+         * @return how long admitted calls waited for a slot.
+         */
+        public LatencyHistogram getQueueTime() {
+            return queueTime;
+        }
+
+        /**
+         * @return how long admitted calls held their slot.
+         */
+        public LatencyHistogram getCallTime() {
+            return callTime;
+        }
+
+        public long getAdmitted() {
+            return admitted.get();
+        }
+
+        public long getRejected() {
+            return rejected.get();
+        }
+
+    }
+
+    /**
+     * A slot to make a call. Closing it frees the slot for the next call.
+     */
+    public class Permit implements AutoCloseable {
+
+        private final Gate gate;
+        private final Lane lane;
+        private final long start = System.nanoTime();
+        private final AtomicBoolean closed = new AtomicBoolean();
+
+        private Permit(Gate gate, Lane lane) {
+            this.gate = gate;
+            this.lane = lane;
+        }
+
+        public Lane getLane() {
+            return lane;
+        }
+
+        @Override
+        public void close() {
+            if (closed.compareAndSet(false, true)) {
+                gate.release(lane, System.nanoTime() - start);
+            }
+        }
+
+    }
+
+    private static class Waiter {
+
+        private final long enqueuedAt = System.nanoTime();
+        private boolean admitted = false;
+
+    }
+
+    private class Gate {
+
+        private final String key;
+        private final int limit;
+        private final int reserved;
+        private final Map<Lane, Deque<Waiter>> queues = new EnumMap<>(Lane.class);
+        private final Map<Lane, LaneStats> stats = new EnumMap<>(Lane.class);
+        private int active = 0;
+        // Moving average of the call duration, used to predict queue times
+        private long averageCall = 0;
+
+        private Gate(String key, int limit) {
+            this.key = key;
+            this.limit = limit;
+            this.reserved = Math.min(limit - 1, ConfigUtils.getInt("vbox.ws.admission.reserved", Math.max(1, limit / 4)));
+            for (Lane lane : Lane.values()) {
+                queues.put(lane, new ArrayDeque<>());
+                stats.put(lane, new LaneStats());
+            }
+        }
+
+        private int getCapacity(Lane lane) {
+            return Lane.Interactive.equals(lane) ? limit : limit - reserved;
+        }
+
+        private boolean hasPriorityWaiter(Lane lane) {
+            for (Lane other : Lane.values()) {
+                if (other.ordinal() >= lane.ordinal()) {
+                    return false;
+                }
+                if (!queues.get(other).isEmpty()) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private int getQueuedAhead(Lane lane) {
+            int ahead = 0;
+            for (Lane other : Lane.values()) {
+                if (other.ordinal() <= lane.ordinal()) {
+                    ahead += queues.get(other).size();
+                }
+            }
+            return ahead;
+        }
+
+        private Permit acquire(Lane lane) throws InterruptedException {
+            LaneStats laneStats = stats.get(lane);
+            long budget = TimeUnit.MILLISECONDS.toNanos(budgets.get(lane));
+            Waiter waiter = new Waiter();
+            synchronized (this) {
+                if (active < getCapacity(lane) && !hasPriorityWaiter(lane) && queues.get(lane).isEmpty()) {
+                    active++;
+                    laneStats.admitted.incrementAndGet();
+                    laneStats.queueTime.recordNanos(0);
+                    return new Permit(this, lane);
+                }
+
+                // Each call ahead holds one of the slots for about the average call time
+                long expected = (getQueuedAhead(lane) + 1) * averageCall / Math.max(1, getCapacity(lane));
+                if (expected > budget) {
+                    throw reject(lane, "the calls queued ahead would take about " + TimeUnit.NANOSECONDS.toMillis(expected) + " ms");
+                }
+
+                Deque<Waiter> queue = queues.get(lane);
+                queue.addLast(waiter);
+                try {
+                    long deadline = waiter.enqueuedAt + budget;
+                    while (!waiter.admitted) {
+                        long left = deadline - System.nanoTime();
+                        if (left <= 0) {
+                            queue.remove(waiter);
+                            throw reject(lane, "no slot within " + TimeUnit.NANOSECONDS.toMillis(budget) + " ms");
+                        }
+                        TimeUnit.NANOSECONDS.timedWait(this, left);
+                    }
+                } catch (InterruptedException e) {
+                    if (waiter.admitted) {
+                        // The slot was handed over already, give it to the next call
+                        release(lane, -1);
+                    } else {
+                        queue.remove(waiter);
+                    }
+                    throw e;
+                }
+            }
+
+            laneStats.admitted.incrementAndGet();
+            laneStats.queueTime.recordNanos(System.nanoTime() - waiter.enqueuedAt);
+            return new Permit(this, lane);
+        }
+
+        private VBoxWSRejectedException reject(Lane lane, String reason) {
+            stats.get(lane).rejected.incrementAndGet();
+            return new VBoxWSRejectedException(lane.getId(), "Call to " + key + " rejected in the " + lane.getId() + " lane: " + reason);
+        }
+
+        private synchronized void release(Lane lane, long duration) {
+            if (duration >= 0) {
+                stats.get(lane).callTime.recordNanos(duration);
+                averageCall = averageCall == 0 ? duration : (averageCall * 7 + duration) / 8;
+            }
+
+            active--;
+            for (Lane next : Lane.values()) {
+                Waiter waiter = queues.get(next).peekFirst();
+                if (Objects.nonNull(waiter) && active < getCapacity(next)) {
+                    queues.get(next).pollFirst();
+                    waiter.admitted = true;
+                    active++;
+                    notifyAll();
+                    return;
+                }
+            }
+        }
+
+    }
+
+    private final Map<String, Gate> gates = new ConcurrentHashMap<>();
+    private final Map<Lane, Long> budgets = new EnumMap<>(Lane.class);
+
+    public VBoxWSAdmission() {
+        for (Lane lane : Lane.values()) {
+            budgets.put(lane, ConfigUtils.getLong("vbox.ws.admission." + lane.getId() + ".budget", lane.defaultBudget));
+        }
+    }
+
+    private Gate getGate(VBoxWSOptions options) {
+        return gates.computeIfAbsent(options.extractServer(), key -> {
+            int limit = ConfigUtils.getInt("vbox.ws.admission.limit", options.getClientOptions().getPoolSize());
+            if (limit < 1) {
+                throw new HypervisorException("Invalid admission limit for " + key + ": " + limit);
+            }
+            Logger.debug("Admitting up to " + limit + " concurrent call(s) to " + key);
+            return new Gate(key, limit);
+        });
+    }
+
+    /**
+     * Wait for a slot to call the endpoint of the options.
+     *
+     * @throws VBoxWSRejectedException if no slot can be had within the queue budget of the lane.
+     */
+    public Permit acquire(VBoxWSOptions options, Lane lane) {
+        try {
+            return getGate(options).acquire(lane);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new HypervisorException("Interrupted while waiting to call " + options.extractServer());
+        }
+    }
+
+    /**
+     * Make a call once admitted, freeing the slot when it returns.
+     *
+     * @throws VBoxWSRejectedException if no slot can be had within the queue budget of the lane.
+     */
+    public <T> T call(VBoxWSOptions options, Lane lane, Callable<T> call) throws Exception {
+        try (Permit permit = acquire(options, lane)) {
+            return call.call();
+        }
+    }
+
+    /**
+     * @return the statistics of the lane for the endpoint of the options.
+     */
+    public LaneStats getStats(VBoxWSOptions options, Lane lane) {
+        return getGate(options).stats.get(lane);
+    }
+
+    /**
+     * @return the number of calls in progress on the endpoint of the options.
+     */
+    public int getActive(VBoxWSOptions options) {
+        Gate gate = getGate(options);
+        synchronized (gate) {
+            return gate.active;
+        }
+    }
+
+}
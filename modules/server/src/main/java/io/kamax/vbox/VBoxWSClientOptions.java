@@ -0,0 +1,203 @@
+/*
+ * Hyperbox - Virtual Infrastructure Manager
+ * Copyright (C) 2021 Maxime Dor
+ *
+ * http://kamax.io/hbox/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.kamax.vbox;
+
+import io.kamax.hbox.exception.HypervisorException;
+import io.kamax.tools.logging.Logger;
+import org.apache.commons.lang3.StringUtils;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Client tuning carried in the query of a web service connect string, like
+ * {@code http://host:18083?poolSize=32&connectTimeout=500ms&readTimeout=5s&keepAlive=true&sessionIdle=60s}.
+ * <p>
+ * Durations are numbers followed by {@code ms}, {@code s}, {@code m} or {@code h}, milliseconds when there is no unit. Parameters
+ * that are not set keep their default, unknown parameters are ignored with a warning. Instances are immutable.
+ * </p>
+ */
+public final class VBoxWSClientOptions {
+
+    private static final VBoxWSClientOptions defaults = new VBoxWSClientOptions(8, 2000L, 30000L, true, 300000L);
+
+    private final int poolSize;
+    private final long connectTimeout;
+    private final long readTimeout;
+    private final boolean keepAlive;
+    private final long sessionIdle;
+
+    private VBoxWSClientOptions(int poolSize, long connectTimeout, long readTimeout, boolean keepAlive, long sessionIdle) {
+        this.poolSize = poolSize;
+        this.connectTimeout = connectTimeout;
+        this.readTimeout = readTimeout;
+        this.keepAlive = keepAlive;
+        this.sessionIdle = sessionIdle;
+    }
+
+    public static VBoxWSClientOptions getDefaults() {
+        return defaults;
+    }
+
+    /**
+     * @param value a duration like {@code 500ms}, {@code 5s}, {@code 1m} or {@code 2h}, or a number of milliseconds.
+     * @return the duration in milliseconds.
+     */
+    public static long parseDuration(String value) {
+        String v = StringUtils.trimToEmpty(value).toLowerCase();
+        TimeUnit unit = TimeUnit.MILLISECONDS;
+        if (v.endsWith("ms")) {
+            v = v.substring(0, v.length() - 2);
+        } else if (v.endsWith("s")) {
+            v = v.substring(0, v.length() - 1);
+            unit = TimeUnit.SECONDS;
+        } else if (v.endsWith("m")) {
+            v = v.substring(0, v.length() - 1);
+            unit = TimeUnit.MINUTES;
+        } else if (v.endsWith("h")) {
+            v = v.substring(0, v.length() - 1);
+            unit = TimeUnit.HOURS;
+        }
+
+        try {
+            long amount = Long.parseLong(v.trim());
+            if (amount < 0) {
+                throw new HypervisorException("Invalid duration, must not be negative: " + value);
+            }
+            return unit.toMillis(amount);
+        } catch (NumberFormatException e) {
+            throw new HypervisorException("Invalid duration: " + value);
+        }
+    }
+
+    private static int parseInt(String name, String value, int min, int max) {
+        try {
+            int parsed = Integer.parseInt(value.trim());
+            if (parsed < min || parsed > max) {
+                throw new HypervisorException("Invalid value for " + name + ", must be between " + min + " and " + max + ": " + value);
+            }
+            return parsed;
+        } catch (NumberFormatException e) {
+            throw new HypervisorException("Invalid value for " + name + ", not a number: " + value);
+        }
+    }
+
+    private static boolean parseBoolean(String name, String value) {
+        if ("true".equalsIgnoreCase(value.trim())) {
+            return true;
+        }
+        if ("false".equalsIgnoreCase(value.trim())) {
+            return false;
+        }
+        throw new HypervisorException("Invalid value for " + name + ", must be true or false: " + value);
+    }
+
+    private static String decode(String value) {
+        try {
+            return URLDecoder.decode(value, StandardCharsets.UTF_8.name());
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @param query the raw query of the connect string, without the leading {@code ?}, can be null.
+     * @throws HypervisorException if a known parameter has an invalid value.
+     */
+    public static VBoxWSClientOptions parse(String query) {
+        if (StringUtils.isBlank(query)) {
+            return defaults;
+        }
+
+        int poolSize = defaults.poolSize;
+        long connectTimeout = defaults.connectTimeout;
+        long readTimeout = defaults.readTimeout;
+        boolean keepAlive = defaults.keepAlive;
+        long sessionIdle = defaults.sessionIdle;
+        for (String param : StringUtils.split(query, '&')) {
+            String[] pair = param.split("=", 2);
+            String name = decode(pair[0]);
+            String value = pair.length > 1 ? decode(pair[1]) : "";
+            switch (name) {
+                case "poolSize":
+                    poolSize = parseInt(name, value, 1, 1024);
+                    break;
+                case "connectTimeout":
+                    connectTimeout = parseDuration(value);
+                    break;
+                case "readTimeout":
+                    readTimeout = parseDuration(value);
+                    break;
+                case "keepAlive":
+                    keepAlive = parseBoolean(name, value);
+                    break;
+                case "sessionIdle":
+                    sessionIdle = parseDuration(value);
+                    break;
+                default:
+                    Logger.warning("Ignoring unknown web service connect option: " + name);
+            }
+        }
+
+        return new VBoxWSClientOptions(poolSize, connectTimeout, readTimeout, keepAlive, sessionIdle);
+    }
+
+    /**
+     * @return the maximum number of connections kept open to one host.
+     */
+    public int getPoolSize() {
+        return poolSize;
+    }
+
+    /**
+     * @return the time allowed to connect, in milliseconds, 0 meaning no limit.
+     */
+    public long getConnectTimeout() {
+        return connectTimeout;
+    }
+
+    /**
+     * @return the time allowed to wait for a response, in milliseconds, 0 meaning no limit.
+     */
+    public long getReadTimeout() {
+        return readTimeout;
+    }
+
+    public boolean isKeepAlive() {
+        return keepAlive;
+    }
+
+    /**
+     * @return how long an unused session is kept before logging off, in milliseconds.
+     */
+    public long getSessionIdle() {
+        return sessionIdle;
+    }
+
+    @Override
+    public String toString() {
+        return "poolSize=" + poolSize + "&connectTimeout=" + connectTimeout + "ms&readTimeout=" + readTimeout + "ms&keepAlive=" + keepAlive
+                + "&sessionIdle=" + sessionIdle + "ms";
+    }
+
+}
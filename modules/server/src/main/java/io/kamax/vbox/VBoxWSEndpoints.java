@@ -0,0 +1,427 @@
+/*
+ * Hyperbox - Virtual Infrastructure Manager
+ * Copyright (C) 2021 Maxime Dor
+ *
+ * http://kamax.io/hbox/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.kamax.vbox;
+
+import io.kamax.hbox.Configuration;
+import io.kamax.hbox.exception.HypervisorException;
+import io.kamax.tools.logging.Logger;
+import io.kamax.vbox.utils.ConfigUtils;
+import org.apache.commons.lang3.StringUtils;
+
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.net.URISyntaxException;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+import java.util.regex.Pattern;
+
+/**
+ * Several VirtualBox Web Service endpoints given in one connect string, like {@code http://user:pass@a:18083,b:18083,c:18084}.
+ * <p>
+ * Entries without a protocol or credentials take the ones of the first entry. Credentials can be percent-encoded, and must be when
+ * a comma in them follows what looks like a host and port, like in {@code user:1234,5}. Each endpoint tracks its health and an
+ * exponentially weighted moving average of its call latency. An endpoint that could not be reached is skipped for
+ * {@code vbox.ws.endpoints.retryAfter} milliseconds, doubled for each consecutive failure up to one minute, so calls go to the other
+ * endpoints right away instead of waiting for a connect timeout on each call. When all endpoints are down, the one that can be
+ * retried first is used.
+ * </p>
+ */
+public class VBoxWSEndpoints {
+
+    public enum Policy {
+
+        /**
+         * The available endpoint with the lowest average latency. Endpoints without any call yet are tried first.
+         */
+        LowestLatency,
+
+        /**
+         * A random available endpoint, weighted by the inverse of its average latency.
+         */
+        WeightedRandom,
+
+        /**
+         * Always the same available endpoint for a given key, like a machine UUID. Calls without a key use the lowest latency.
+         */
+        Sticky
+
+    }
+
+    public enum Health {
+        Up,
+        Down
+    }
+
+    @FunctionalInterface
+    public interface Call<T> {
+
+        T call(VBoxWSOptions options) throws Exception;
+
+    }
+
+    public class Endpoint {
+
+        private final VBoxWSOptions options;
+        private volatile Health health = Health.Up;
+        private volatile long latency = -1;
+        private volatile long retryAt = 0;
+        private int failures = 0;
+
+        private Endpoint(VBoxWSOptions options) {
+            this.options = options;
+        }
+
+        public VBoxWSOptions getOptions() {
+            return options;
+        }
+
+        public Health getHealth() {
+            return health;
+        }
+
+        /**
+         * @return the average latency of the calls, or -1 if no call was recorded yet.
+         */
+        public long getLatency(TimeUnit unit) {
+            long value = latency;
+            return value < 0 ? -1 : unit.convert(value, TimeUnit.NANOSECONDS);
+        }
+
+        private boolean isAvailable(long now) {
+            return Health.Up.equals(health) || now - retryAt >= 0;
+        }
+
+        public synchronized void recordSuccess(long duration, TimeUnit unit) {
+            long value = unit.toNanos(duration);
+            latency = latency < 0 ? value : (long) (alpha * value + (1 - alpha) * latency);
+            failures = 0;
+            if (Health.Down.equals(health)) {
+                Logger.info("VBox WS endpoint " + options.extractServer() + " is back up");
+                health = Health.Up;
+            }
+        }
+
+        public synchronized void recordFailure() {
+            failures++;
+            long backoff = Math.min(TimeUnit.MINUTES.toMillis(1), retryAfter << Math.min(failures - 1, 16));
+            retryAt = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(backoff);
+            if (Health.Up.equals(health)) {
+                Logger.warning("VBox WS endpoint " + options.extractServer() + " is down, retrying in " + backoff + " ms");
+                health = Health.Down;
+            }
+        }
+
+        @Override
+        public String toString() {
+            return options.extractServer() + " " + health + " latency=" + getLatency(TimeUnit.MICROSECONDS) + "us";
+        }
+
+    }
+
+    /**
+     * The default transport failure classifier: the failure or one of its causes is a refused or reset connection, an unreachable or
+     * unknown host, or a connect or read timeout.
+     */
+    public static boolean isTransportFailure(Exception e) {
+        for (Throwable t = e; Objects.nonNull(t); t = t.getCause() == t ? null : t.getCause()) {
+            if (t instanceof SocketException || t instanceof SocketTimeoutException || t instanceof UnknownHostException) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public static boolean isMultiple(String options) {
+        return StringUtils.contains(options, ',');
+    }
+
+    private static final Pattern hostPortPattern = Pattern.compile("[^:@/,\\s]+:\\d+");
+
+    private final List<Endpoint> endpoints;
+    private final Policy policy;
+    private final Predicate<Exception> transportFailure;
+    private final double alpha;
+    private final long retryAfter;
+
+    public VBoxWSEndpoints(String options) throws URISyntaxException {
+        this(options, Policy.valueOf(StringUtils.defaultIfBlank(Configuration.getSetting("vbox.ws.endpoints.policy"), Policy.LowestLatency.name())));
+    }
+
+    public VBoxWSEndpoints(String options, Policy policy) throws URISyntaxException {
+        this(options, policy, VBoxWSEndpoints::isTransportFailure);
+    }
+
+    /**
+     * @param transportFailure tells whether a failed call did not reach the endpoint, and can be moved to another one.
+     */
+    public VBoxWSEndpoints(String options, Policy policy, Predicate<Exception> transportFailure) throws URISyntaxException {
+        this.policy = Objects.requireNonNull(policy);
+        this.transportFailure = Objects.requireNonNull(transportFailure);
+        this.alpha = Double.parseDouble(StringUtils.defaultIfBlank(Configuration.getSetting("vbox.ws.endpoints.ewma.alpha"), "0.2"));
+        this.retryAfter = ConfigUtils.getLong("vbox.ws.endpoints.retryAfter", 1000L);
+
+        // Client options apply to every endpoint, whichever entry they were written on
+        String query = StringUtils.substringAfter(options, "?");
+        List<Endpoint> list = new ArrayList<>();
+        VBoxWSOptions first = null;
+        for (String entry : splitEntries(StringUtils.substringBefore(StringUtils.defaultString(options), "?"))) {
+            entry = entry.trim();
+            if (entry.isEmpty()) {
+                continue;
+            }
+
+            if (Objects.nonNull(first)) {
+                if (!entry.contains("://")) {
+                    entry = first.getProtocol() + "://" + entry;
+                }
+                if (!entry.contains("@") && StringUtils.isNotEmpty(first.getUsername())) {
+                    int i = entry.indexOf("://") + 3;
+                    entry = entry.substring(0, i) + getUserInfo(first) + "@" + entry.substring(i);
+                }
+            }
+
+            VBoxWSOptions parsed = new VBoxWSOptions(StringUtils.isEmpty(query) ? entry : entry + "?" + query);
+            if (Objects.isNull(first)) {
+                first = parsed;
+            }
+            list.add(new Endpoint(parsed));
+        }
+
+        if (list.isEmpty()) {
+            // Same default as a single empty connect string
+            list.add(new Endpoint(new VBoxWSOptions(options)));
+        }
+        endpoints = Collections.unmodifiableList(list);
+    }
+
+    /**
+     * Split the entries on commas, except the ones in the credentials that follow a scheme, like in {@code http://user:p,ss@a,b}.
+     * A comma right after a host and port, like in {@code http://a:18083,user:pass@b}, still ends the entry.
+     */
+    static List<String> splitEntries(String list) {
+        List<String> entries = new ArrayList<>();
+        int start = 0;
+        while (start <= list.length()) {
+            int from = start;
+            int comma = list.indexOf(',', start);
+            int scheme = list.indexOf("://", start);
+            if (scheme >= 0 && (comma < 0 || scheme < comma)) {
+                int authority = scheme + 3;
+                int at = list.indexOf('@', authority);
+                int slash = list.indexOf('/', authority);
+                if (at >= 0 && (slash < 0 || at < slash)) {
+                    comma = list.indexOf(',', authority);
+                    if (comma < 0 || comma > at || !hostPortPattern.matcher(list.substring(authority, comma).trim()).matches()) {
+                        from = at;
+                    }
+                }
+            }
+
+            int end = list.indexOf(',', from);
+            if (end < 0) {
+                end = list.length();
+            }
+            entries.add(list.substring(start, end));
+            start = end + 1;
+        }
+        return entries;
+    }
+
+    private static String encode(String value) {
+        StringBuilder b = new StringBuilder();
+        for (byte c : value.getBytes(StandardCharsets.UTF_8)) {
+            if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '-' || c == '.' || c == '_' || c == '~') {
+                b.append((char) c);
+            } else {
+                b.append('%').append(String.format("%02X", c & 0xff));
+            }
+        }
+        return b.toString();
+    }
+
+    private static String getUserInfo(VBoxWSOptions options) {
+        // The values are decoded, so they must be encoded again to survive the parsing of the other entries
+        String username = encode(options.getUsername());
+        return options.getPasswd().length == 0 ? username : username + ":" + encode(new String(options.getPasswd()));
+    }
+
+    public List<Endpoint> getEndpoints() {
+        return endpoints;
+    }
+
+    public Policy getPolicy() {
+        return policy;
+    }
+
+    private List<Endpoint> getAvailable() {
+        long now = System.nanoTime();
+        List<Endpoint> available = new ArrayList<>(endpoints.size());
+        for (Endpoint endpoint : endpoints) {
+            if (endpoint.isAvailable(now)) {
+                available.add(endpoint);
+            }
+        }
+
+        if (available.isEmpty()) {
+            Endpoint next = endpoints.get(0);
+            for (Endpoint endpoint : endpoints) {
+                if (endpoint.retryAt - next.retryAt < 0) {
+                    next = endpoint;
+                }
+            }
+            available.add(next);
+        }
+
+        return available;
+    }
+
+    private static Endpoint lowestLatency(List<Endpoint> available) {
+        Endpoint best = available.get(0);
+        for (Endpoint endpoint : available) {
+            if (endpoint.latency < best.latency) {
+                best = endpoint;
+            }
+        }
+        return best;
+    }
+
+    private static Endpoint weightedRandom(List<Endpoint> available) {
+        // Endpoints without a measure yet get the weight of the fastest one, so they get a chance to be measured
+        double maxWeight = 0;
+        double[] weights = new double[available.size()];
+        for (int i = 0; i < weights.length; i++) {
+            long latency = available.get(i).latency;
+            weights[i] = latency < 0 ? -1 : 1d / Math.max(1, latency);
+            maxWeight = Math.max(maxWeight, weights[i]);
+        }
+
+        double total = 0;
+        for (int i = 0; i < weights.length; i++) {
+            if (weights[i] < 0) {
+                weights[i] = maxWeight > 0 ? maxWeight : 1;
+            }
+            total += weights[i];
+        }
+
+        double target = ThreadLocalRandom.current().nextDouble(total);
+        for (int i = 0; i < weights.length; i++) {
+            target -= weights[i];
+            if (target < 0) {
+                return available.get(i);
+            }
+        }
+        return available.get(available.size() - 1);
+    }
+
+    private static Endpoint sticky(List<Endpoint> available, String key) {
+        // Rendezvous hashing: a key only moves when its endpoint goes down
+        Endpoint best = null;
+        int bestScore = 0;
+        for (Endpoint endpoint : available) {
+            int score = VBoxWebSrvPool.mix(key.hashCode() * 31 + endpoint.options.extractServer().hashCode());
+            if (Objects.isNull(best) || score > bestScore) {
+                best = endpoint;
+                bestScore = score;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * @param key the machine UUID used by the sticky policy, can be null.
+     * @return the endpoint to use for the next call.
+     */
+    public Endpoint select(String key) {
+        List<Endpoint> available = getAvailable();
+        if (available.size() == 1) {
+            return available.get(0);
+        }
+
+        switch (policy) {
+            case WeightedRandom:
+                return weightedRandom(available);
+            case Sticky:
+                return Objects.isNull(key) ? lowestLatency(available) : sticky(available, key);
+            default:
+                return lowestLatency(available);
+        }
+    }
+
+    /**
+     * Run a call on the selected endpoint, moving to the next selected endpoint if it cannot be reached, until each endpoint was
+     * tried once.
+     * <p>
+     * Only failures to reach the endpoint, as told by the transport failure classifier, mark it down and move the call to another
+     * endpoint. Any other failure, like a fault of the VirtualBox API, is thrown right away: the endpoint is healthy, and the call,
+     * which may have changed something, must not run again elsewhere.
+     * </p>
+     *
+     * @param key the machine UUID used by the sticky policy, can be null.
+     * @return the result of the first successful call.
+     * @throws HypervisorException with the last failure if no endpoint could be reached, or with the failure of the call if it is
+     *                             not a checked exception already.
+     */
+    public <T> T execute(String key, Call<T> call) {
+        List<Endpoint> tried = new ArrayList<>(endpoints.size());
+        Exception last = null;
+        while (tried.size() < endpoints.size()) {
+            Endpoint endpoint = select(key);
+            if (tried.contains(endpoint)) {
+                endpoint = null;
+                for (Endpoint other : endpoints) {
+                    if (!tried.contains(other)) {
+                        endpoint = other;
+                        break;
+                    }
+                }
+            }
+            tried.add(endpoint);
+
+            long start = System.nanoTime();
+            try {
+                T result = call.call(endpoint.options);
+                endpoint.recordSuccess(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+                return result;
+            } catch (Exception e) {
+                if (!transportFailure.test(e)) {
+                    if (e instanceof RuntimeException) {
+                        throw (RuntimeException) e;
+                    }
+                    throw new HypervisorException("VirtualBox Web Service call failed: " + e.getMessage(), e);
+                }
+
+                Logger.debug("Call to VBox WS endpoint " + endpoint.options.extractServer() + " failed: " + e.getMessage());
+                endpoint.recordFailure();
+                last = e;
+            }
+        }
+
+        throw new HypervisorException("All VirtualBox Web Service endpoints failed", last);
+    }
+
+}
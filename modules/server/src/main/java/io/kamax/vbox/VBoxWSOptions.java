@@ -34,11 +34,19 @@ public class VBoxWSOptions {
     private int port = 18083;
     private String username = "";
     private char[] passwd = new char[]{};
+    private VBoxWSClientOptions clientOptions = VBoxWSClientOptions.getDefaults();
 
     public static boolean hasOptions(String options) {
         return !AxStrings.isEmpty(options);
     }
 
+    public VBoxWSOptions(String protocol, String host, int port) {
+        this.protocol = protocol;
+        this.host = host;
+        this.port = port;
+        this.hasOptions = true;
+    }
+
     public VBoxWSOptions(String options) throws URISyntaxException {
         if (!hasOptions(options)) {
             return;
@@ -63,6 +71,7 @@ public class VBoxWSOptions {
                 passwd = userInfo[1].toCharArray();
             }
         }
+        clientOptions = VBoxWSClientOptions.parse(uri.getRawQuery());
 
         hasOptions = true;
     }
@@ -91,6 +100,13 @@ public class VBoxWSOptions {
         return passwd;
     }
 
+    /**
+     * @return the client tuning given in the query of the connect string, or the defaults.
+     */
+    public VBoxWSClientOptions getClientOptions() {
+        return clientOptions;
+    }
+
     public void setPort(int port) {
         this.port = port;
     }
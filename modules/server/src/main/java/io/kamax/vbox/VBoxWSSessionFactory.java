@@ -0,0 +1,50 @@
+/*
+ * Hyperbox - Virtual Infrastructure Manager
+ * Copyright (C) 2021 Maxime Dor
+ *
+ * http://kamax.io/hbox/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.kamax.vbox;
+
+/**
+ * Opens and closes web service sessions for {@link VBoxWSSessionPool}, so the pool does not depend on a given SOAP binding.
+ *
+ * @param <S> the session type, usually the IVirtualBox reference returned by the logon.
+ */
+public interface VBoxWSSessionFactory<S> {
+
+    /**
+     * Log on to the web service, like {@code IWebsessionManager::logon}.
+     */
+    S logon(VBoxWSOptions options) throws Exception;
+
+    /**
+     * Make a cheap call on the session so the web service does not end it for being idle.
+     */
+    void keepAlive(S session) throws Exception;
+
+    /**
+     * Log off the session, like {@code IWebsessionManager::logoff}. Failures are for the factory to handle.
+     */
+    void logoff(S session);
+
+    /**
+     * @return true if the error shows the session is no longer valid, like an invalid object fault, false otherwise.
+     */
+    boolean isInvalid(Throwable t);
+
+}
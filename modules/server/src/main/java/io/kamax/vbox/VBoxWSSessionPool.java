@@ -0,0 +1,488 @@
+/*
+ * Hyperbox - Virtual Infrastructure Manager
+ * Copyright (C) 2021 Maxime Dor
+ *
+ * http://kamax.io/hbox/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.kamax.vbox;
+
+import io.kamax.hbox.exception.HypervisorException;
+import io.kamax.tools.logging.Logger;
+import io.kamax.vbox.utils.ConfigUtils;
+import io.kamax.vbox.utils.LatencyHistogram;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps web service sessions open and lends them out, so a call does not pay for a logon each time.
+ * <p>
+ * Sessions are grouped by server and username. Each group opens up to {@link VBoxWSClientOptions#getPoolSize()} sessions and keeps
+ * at least {@code vbox.ws.session.min} of them open. A borrower waits up to {@code vbox.ws.session.borrowTimeout} milliseconds when
+ * all sessions are lent. Idle sessions get a keep-alive call once they have been unused for half of
+ * {@link VBoxWSClientOptions#getSessionIdle()}, which should be lower than the idle timeout of the web service. A session is dropped
+ * when its keep-alive fails or when a borrower reports an invalid object fault.
+ * </p>
+ *
+ * @param <S> the session type.
+ */
+public class VBoxWSSessionPool<S> implements AutoCloseable, VBoxSVCWatcher.Listener {
+
+    /**
+     * A borrowed session. Closing it returns the session to the pool.
+     */
+    public class Lease implements AutoCloseable {
+
+        private final Group group;
+        private final Entry entry;
+        private final AtomicBoolean closed = new AtomicBoolean();
+
+        private Lease(Group group, Entry entry) {
+            this.group = group;
+            this.entry = entry;
+        }
+
+        public S get() {
+            return entry.session;
+        }
+
+        /**
+         * Report a failed call. The session is dropped when the factory sees the error as an invalid session.
+         *
+         * @return true if the session was dropped, false otherwise.
+         */
+        public boolean fail(Throwable t) {
+            if (factory.isInvalid(t)) {
+                entry.invalid = true;
+                return true;
+            }
+
+            return false;
+        }
+
+        @Override
+        public void close() {
+            if (closed.compareAndSet(false, true)) {
+                group.giveBack(entry);
+            }
+        }
+
+    }
+
+    private class Entry {
+
+        private final S session;
+        private final int generation;
+        private volatile long lastUse = System.nanoTime();
+        private volatile boolean invalid = false;
+
+        private Entry(S session, int generation) {
+            this.session = session;
+            this.generation = generation;
+        }
+
+    }
+
+    private class Group {
+
+        private final VBoxWSOptions options;
+        private final String key;
+        private final int maxSize;
+        private final Deque<Entry> idle = new ArrayDeque<>();
+        private int size = 0;
+        // Bumped on invalidation: sessions of older generations are not counted in the size anymore
+        private int generation = 0;
+
+        private Group(String key, VBoxWSOptions options) {
+            this.key = key;
+            this.options = options;
+            this.maxSize = options.getClientOptions().getPoolSize();
+        }
+
+        private Entry take() throws InterruptedException {
+            long start = System.nanoTime();
+            long deadline = start + TimeUnit.MILLISECONDS.toNanos(borrowTimeout);
+            boolean waited = false;
+            int slotGeneration;
+            synchronized (this) {
+                while (true) {
+                    Entry entry = idle.pollFirst();
+                    if (Objects.nonNull(entry)) {
+                        hits.incrementAndGet();
+                        if (waited) {
+                            waitTime.recordNanos(System.nanoTime() - start);
+                        }
+                        return entry;
+                    }
+
+                    if (size < maxSize) {
+                        size++;
+                        slotGeneration = generation;
+                        break;
+                    }
+
+                    long left = deadline - System.nanoTime();
+                    if (left <= 0) {
+                        timeouts.incrementAndGet();
+                        throw new HypervisorException("No web service session available for " + key + " after " + borrowTimeout + " ms");
+                    }
+
+                    waited = true;
+                    TimeUnit.NANOSECONDS.timedWait(this, left);
+                }
+            }
+
+            // A slot was taken, the logon happens outside of the lock
+            misses.incrementAndGet();
+            if (waited) {
+                waitTime.recordNanos(System.nanoTime() - start);
+            }
+            return open(slotGeneration);
+        }
+
+        /**
+         * Log on for a slot counted in the size during the given generation.
+         */
+        private Entry open(int slotGeneration) {
+            try {
+                return new Entry(factory.logon(options), slotGeneration);
+            } catch (Exception e) {
+                release(slotGeneration);
+                throw new HypervisorException("Unable to log on to " + key + ": " + e.getMessage(), e);
+            }
+        }
+
+        private synchronized void release(int slotGeneration) {
+            // Slots of older generations were already taken out of the size on invalidation
+            if (slotGeneration == generation) {
+                size--;
+                notifyAll();
+            }
+        }
+
+        private synchronized boolean isStale(Entry entry) {
+            return entry.generation != generation;
+        }
+
+        private void giveBack(Entry entry) {
+            if (entry.invalid || closed.get() || isStale(entry)) {
+                drop(entry);
+                return;
+            }
+
+            entry.lastUse = System.nanoTime();
+            synchronized (this) {
+                // Most recently used first, so the extra sessions stay idle and get trimmed
+                idle.offerFirst(entry);
+                notifyAll();
+            }
+        }
+
+        private void drop(Entry entry) {
+            if (entry.invalid && !isStale(entry)) {
+                evictions.incrementAndGet();
+            }
+            logoff(entry);
+            release(entry.generation);
+        }
+
+        private void logoff(Entry entry) {
+            try {
+                factory.logoff(entry.session);
+            } catch (RuntimeException e) {
+                Logger.debug("Unable to log off dropped session of " + key + ": " + e.getMessage());
+            }
+        }
+
+        private void maintain() {
+            long threshold = TimeUnit.MILLISECONDS.toNanos(options.getClientOptions().getSessionIdle() / 2);
+            List<Entry> toCheck = new ArrayList<>();
+            List<Entry> toTrim = new ArrayList<>();
+            synchronized (this) {
+                long now = System.nanoTime();
+                int keep = size;
+                for (Iterator<Entry> it = idle.descendingIterator(); it.hasNext(); ) {
+                    Entry entry = it.next();
+                    if (now - entry.lastUse < threshold) {
+                        continue;
+                    }
+
+                    // Sessions above the minimum that stayed unused this long are not needed anymore
+                    if (keep > minSize) {
+                        toTrim.add(entry);
+                        keep--;
+                    } else {
+                        toCheck.add(entry);
+                    }
+                }
+                idle.removeAll(toTrim);
+                idle.removeAll(toCheck);
+            }
+
+            for (Entry entry : toTrim) {
+                drop(entry);
+            }
+
+            for (Entry entry : toCheck) {
+                try {
+                    factory.keepAlive(entry.session);
+                    keepAlives.incrementAndGet();
+                    giveBack(entry);
+                } catch (Exception e) {
+                    Logger.debug("Keep-alive of a session of " + key + " failed, dropping it: " + e.getMessage());
+                    drop(entry);
+                }
+            }
+
+            fill();
+        }
+
+        private void fill() {
+            while (!closed.get()) {
+                int slotGeneration;
+                synchronized (this) {
+                    if (size >= Math.min(minSize, maxSize)) {
+                        return;
+                    }
+                    size++;
+                    slotGeneration = generation;
+                }
+
+                try {
+                    giveBack(open(slotGeneration));
+                } catch (HypervisorException e) {
+                    Logger.warning(e.getMessage());
+                    return;
+                }
+            }
+        }
+
+        private void invalidate() {
+            List<Entry> stale;
+            synchronized (this) {
+                // Lent sessions are stale too: they are logged off when given back, without being counted again
+                generation++;
+                size = 0;
+                stale = new ArrayList<>(idle);
+                idle.clear();
+                notifyAll();
+            }
+
+            // Logging off may block on the web service, which must not hold up the invalidation
+            if (!stale.isEmpty()) {
+                scheduler.execute(() -> stale.forEach(this::logoff));
+            }
+        }
+
+        private void close() {
+            List<Entry> toClose;
+            synchronized (this) {
+                toClose = new ArrayList<>(idle);
+                idle.clear();
+                notifyAll();
+            }
+            for (Entry entry : toClose) {
+                drop(entry);
+            }
+        }
+
+    }
+
+    private static final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "vbox-ws-session-keepalive");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private final VBoxWSSessionFactory<S> factory;
+    private final int minSize;
+    private final long borrowTimeout;
+    private final Map<String, Group> groups = new ConcurrentHashMap<>();
+    private final AtomicBoolean closed = new AtomicBoolean();
+    private final ScheduledFuture<?> maintenance;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong timeouts = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong keepAlives = new AtomicLong();
+    private final LatencyHistogram waitTime = new LatencyHistogram();
+
+    public VBoxWSSessionPool(VBoxWSSessionFactory<S> factory) {
+        this(factory, ConfigUtils.getInt("vbox.ws.session.min", 1), ConfigUtils.getLong("vbox.ws.session.borrowTimeout", 5000L),
+                ConfigUtils.getLong("vbox.ws.session.checkInterval", 10000L));
+    }
+
+    /**
+     * @param checkInterval how often idle sessions are checked for a keep-alive, in milliseconds.
+     */
+    public VBoxWSSessionPool(VBoxWSSessionFactory<S> factory, int minSize, long borrowTimeout, long checkInterval) {
+        this.factory = Objects.requireNonNull(factory);
+        this.minSize = minSize;
+        this.borrowTimeout = borrowTimeout;
+        this.maintenance = scheduler.scheduleWithFixedDelay(this::maintain, checkInterval, checkInterval, TimeUnit.MILLISECONDS);
+        VBoxSVCWatcher.get().addListener(this);
+    }
+
+    private static String getKey(VBoxWSOptions options) {
+        return options.getUsername() + "@" + options.extractServer();
+    }
+
+    private Group getGroup(VBoxWSOptions options) {
+        if (closed.get()) {
+            throw new IllegalStateException("Web service session pool is closed");
+        }
+
+        return groups.computeIfAbsent(getKey(options), key -> new Group(key, options));
+    }
+
+    /**
+     * Open the minimum number of sessions for the server and user of the options, if not done yet.
+     */
+    public void prewarm(VBoxWSOptions options) {
+        getGroup(options).fill();
+    }
+
+    /**
+     * Borrow a session for the server and user of the options, opening one if none is idle and the group is not full.
+     *
+     * @throws HypervisorException if no session could be had within the borrow timeout or the logon failed.
+     */
+    public Lease borrow(VBoxWSOptions options) {
+        Group group = getGroup(options);
+        try {
+            return new Lease(group, group.take());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new HypervisorException("Interrupted while waiting for a web service session of " + group.key);
+        }
+    }
+
+    private void maintain() {
+        for (Group group : groups.values()) {
+            try {
+                group.maintain();
+            } catch (RuntimeException e) {
+                Logger.warning("Web service session maintenance failed for " + group.key, e);
+            }
+        }
+    }
+
+    /**
+     * @return the number of sessions open for the server and user of the options, lent or idle.
+     */
+    public int getSize(VBoxWSOptions options) {
+        Group group = groups.get(getKey(options));
+        if (Objects.isNull(group)) {
+            return 0;
+        }
+
+        synchronized (group) {
+            return group.size;
+        }
+    }
+
+    /**
+     * @return the number of borrows served with an idle session.
+     */
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    /**
+     * @return the number of borrows that needed a logon.
+     */
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    public long getTimeoutCount() {
+        return timeouts.get();
+    }
+
+    /**
+     * @return the number of sessions dropped because a borrower reported them invalid.
+     */
+    public long getEvictionCount() {
+        return evictions.get();
+    }
+
+    public long getKeepAliveCount() {
+        return keepAlives.get();
+    }
+
+    /**
+     * @return how long borrowers waited when all sessions were lent.
+     */
+    public LatencyHistogram getWaitTime() {
+        return waitTime;
+    }
+
+    /**
+     * Drop all the sessions, as they were opened on a VBoxSVC that is gone. Lent sessions are dropped when given back.
+     */
+    @Override
+    public void invalidate() {
+        for (Group group : groups.values()) {
+            group.invalidate();
+        }
+    }
+
+    /**
+     * Open the minimum number of sessions again for every server and user known to the pool.
+     *
+     * @throws HypervisorException if a server did not accept the logons.
+     */
+    @Override
+    public void reconnect() {
+        for (Group group : groups.values()) {
+            group.fill();
+            synchronized (group) {
+                if (group.size < Math.min(minSize, group.maxSize)) {
+                    throw new HypervisorException("Unable to open web service sessions for " + group.key);
+                }
+            }
+        }
+    }
+
+    /**
+     * Log off all idle sessions. Lent sessions are logged off when given back.
+     */
+    @Override
+    public void close() {
+        if (closed.compareAndSet(false, true)) {
+            VBoxSVCWatcher.get().removeListener(this);
+            maintenance.cancel(false);
+            for (Group group : groups.values()) {
+                group.close();
+            }
+        }
+    }
+
+}
@@ -25,6 +25,7 @@ import io.kamax.hbox.exception.HyperboxException;
 import io.kamax.hbox.exception.HypervisorException;
 import io.kamax.tools.logging.Logger;
 import io.kamax.tools.net.NetUtil;
+import io.kamax.vbox.utils.ConfigUtils;
 import org.apache.commons.lang3.StringUtils;
 import org.zeroturnaround.exec.ProcessExecutor;
 import org.zeroturnaround.exec.StartedProcess;
@@ -37,7 +38,10 @@ import java.time.Instant;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 
@@ -50,16 +54,34 @@ public class VBoxWebSrv implements _VBoxWebSrv {
     private boolean sslUse = false;
     private String sslKeyFile = "";
     private String sslCaCert = "";
+    private VBoxWebSrvTuning tuning;
+
+    private static final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "vbox-websrv-scheduler");
+        t.setDaemon(true);
+        return t;
+    });
 
     private final List<String> defaultExecPaths = new ArrayList<>();
+    private final VBoxWebSrvLog log = new VBoxWebSrvLog(ConfigUtils.getInt("vbox.exec.web.log.lines", 200));
 
     private ProcessExecutor processExec;
-    private StartedProcess processRun;
-
-    private State runState = State.Stopped;
-    private String error;
+    private volatile StartedProcess processRun;
+    private volatile long adoptedPid = -1;
+    private VBoxWebSrvPorts.Reservation portReservation;
+    private File stateFile;
+
+    private final long startTimeout = 5000L;
+    private volatile State runState = State.Stopped;
+    private volatile String error;
+    private volatile CompletableFuture<_VBoxWebSrv> startFuture;
+    private volatile VBoxWebSrvStartupStats startupStats;
+    private final Object proxyLock = new Object();
+    private volatile VBoxWebSrvProxy proxy;
 
     public VBoxWebSrv() {
+        tuning = VBoxWebSrvTuning.fromConfiguration();
+
         String execPath = Configuration.getSetting("vbox.exec.web.path");
         if (StringUtils.isNotBlank(execPath)) {
             defaultExecPaths.add(execPath);
@@ -79,51 +101,130 @@ public class VBoxWebSrv implements _VBoxWebSrv {
         this.authMethod = authMethod;
     }
 
-    private void validateExecutable(String path) {
-        File exec = new File(path).getAbsoluteFile();
-        if (!exec.exists()) {
-            throw new HypervisorException(path + " does not exist");
-        }
+    /**
+     * @return the recent output of the process and the count of events found in it, kept across restarts.
+     */
+    public VBoxWebSrvLog getLog() {
+        return log;
+    }
 
-        if (!exec.isFile()) {
-            throw new HypervisorException(path + " is not a file");
-        }
+    /**
+     * @return the caching proxy in front of the process, or null if {@code vbox.exec.web.proxy.enable} is not set or the server is
+     * not started.
+     */
+    public VBoxWebSrvProxy getProxy() {
+        return proxy;
+    }
 
-        if (!exec.canExecute()) {
-            throw new HypervisorException(path + " is not executable");
-        }
+    /**
+     * @return the phase durations of the last start, or null if this server was never started.
+     */
+    public VBoxWebSrvStartupStats getStartupStats() {
+        return startupStats;
+    }
+
+    public VBoxWebSrvTuning getTuning() {
+        return tuning;
+    }
+
+    /**
+     * Set the worker and session settings used from the next start.
+     */
+    public void setTuning(VBoxWebSrvTuning tuning) {
+        this.tuning = Objects.requireNonNull(tuning);
     }
 
     private String locateExecutable() {
-        for (String path : defaultExecPaths) {
-            try {
-                validateExecutable(path);
-                Logger.debug(path + " is a valid VirtualBox WebService executable");
-                return path;
-            } catch (HyperboxException e) {
-                Logger.debug("Not a valid web exec [" + path + "]: " + e.getMessage());
-            }
+        String path = VBoxExecLocator.get().findExecutable(defaultExecPaths);
+        if (Objects.isNull(path)) {
+            throw new HypervisorException("Could not locate a valid VirtualBox WebService executable");
         }
 
-        throw new HypervisorException("Could not locate a valid VirtualBox WebService executable");
+        return path;
     }
 
     @Override
-    public synchronized void start() {
-        if (isRunning()) {
-            Logger.warning("VBox WebSrv Server is already running, ignoring call to start again");
+    public void start() {
+        Logger.debug("VBox WebSrv Server Start: Start");
+        try {
+            startAsync().get();
+            Logger.info("Started VBox WS Process");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            stop();
+            throw new HypervisorException("Interrupted while waiting for the VirtualBox Web Service to start");
+        } catch (ExecutionException e) {
+            stop();
+            if (e.getCause() instanceof HyperboxException) {
+                throw (HyperboxException) e.getCause();
+            }
+
+            throw new HypervisorException(e.getCause());
+        } finally {
+            Logger.debug("VBox WebSrv Server Start: End");
+        }
+    }
+
+    /**
+     * Start the VirtualBox Web Service process without waiting for it to be ready.
+     * <p>
+     * The returned future completes as soon as the process reports its listening socket, and fails as soon as the process exits,
+     * reports a SOAP fault or does not become ready within the start timeout. Calling this while a start is already in progress
+     * returns the pending future.
+     * </p>
+     *
+     * @return a future completed with this server once it is ready to accept connections.
+     */
+    public synchronized CompletableFuture<_VBoxWebSrv> startAsync() {
+        if (Objects.nonNull(startFuture) && isRunning()) {
+            if (startFuture.isDone()) {
+                Logger.warning("VBox WebSrv Server is already running, ignoring call to start again");
+            }
+
+            return startFuture;
         }
 
-        Logger.debug("VBox WebSrv Server Start: Start");
         runState = State.Starting;
+        error = null;
+        adoptedPid = -1;
+        CompletableFuture<_VBoxWebSrv> ready = new CompletableFuture<>();
+        startFuture = ready;
+        VBoxWebSrvStartupStats stats = new VBoxWebSrvStartupStats(host, port);
+        startupStats = stats;
+        ready.whenComplete((srv, t) -> stats.finish(Objects.nonNull(t) ? "failed" : adoptedPid > 0 ? "adopted" : "ok"));
+        ready.whenCompleteAsync((srv, t) -> {
+            if (Objects.nonNull(t)) {
+                Logger.debug("VBox WS Process failed to start: " + t.getMessage());
+                Logger.debug("Last VBox WS output lines:" + System.lineSeparator() + String.join(System.lineSeparator(), log.getLines(20)));
+                stopIfCurrent(ready);
+            }
+        }, scheduler);
+
         try {
+            VBoxWebSrvRegistry.register(this);
+
+            String execPath = locateExecutable();
+            stats.mark(VBoxWebSrvStartupStats.Phase.LocateExecutable);
+
+            // The previous start, if any, is over: its port is either ours again or free for others
+            releasePort();
             if (port == 0) {
-                this.port = NetUtil.getRandomAvailablePort(host, port, 100);
+                portReservation = VBoxWebSrvPorts.get().reserve(host);
+                this.port = portReservation.getPort();
+                stats.setPort(this.port);
                 Logger.info("Using autodetected port: " + this.port);
+            } else {
+                portReservation = VBoxWebSrvPorts.get().reserve(port);
+            }
+
+            if (adopt(execPath)) {
+                stats.mark(VBoxWebSrvStartupStats.Phase.PortProbe);
+                markStarted(ready);
+                return ready;
             }
 
             List<String> args = new ArrayList<>();
-            args.add(locateExecutable());
+            args.add(execPath);
             // Network settings
             args.add("-H"); // host
             args.add(host);
@@ -132,6 +233,9 @@ public class VBoxWebSrv implements _VBoxWebSrv {
             // Authentication settings
             args.add("-A"); // auth method
             args.add(authMethod);
+            // Worker and session settings
+            args.addAll(tuning.getArguments());
+            Logger.info("VBox WebSrv effective tuning on " + host + ":" + port + ": " + tuning);
 
             if (sslUse) {
                 args.add("--ssl");
@@ -144,83 +248,245 @@ public class VBoxWebSrv implements _VBoxWebSrv {
             if (!NetUtil.isPortAvailable(host, port)) {
                 throw new HypervisorException("Cannot start the WebService process: a process is already listening on " + host + ":" + port);
             }
+            stats.mark(VBoxWebSrvStartupStats.Phase.PortProbe);
 
             processExec = new ProcessExecutor().command(args).destroyOnExit()
                     .redirectOutput(new LogOutputStream() {
                         @Override
                         protected void processLine(String line) {
-                            if (StringUtils.contains(line, "Socket connection successful: ")) {
-                                runState = State.Started;
-                            }
-
-                            if (StringUtils.contains(line, "#### SOAP FAULT: Address already in use [detected]")) {
-                                error = "WebService port " + port + " is already in use";
-                                stop();
+                            stats.mark(VBoxWebSrvStartupStats.Phase.FirstOutput);
+                            switch (log.add(line)) {
+                                case Ready:
+                                    stats.mark(VBoxWebSrvStartupStats.Phase.Ready);
+                                    markStarted(ready);
+                                    break;
+                                case AddressInUse:
+                                    error = "WebService port " + port + " is already in use";
+                                    ready.completeExceptionally(new HypervisorException(error));
+                                    break;
+                                default:
+                                    break;
                             }
                         }
                     })
                     .addListener(new ProcessListener() {
+                        @Override
+                        public void afterStart(Process process, ProcessExecutor executor) {
+                            stats.mark(VBoxWebSrvStartupStats.Phase.Spawn);
+                        }
+
                         @Override
                         public void afterStop(Process process) {
                             Logger.info("VirtualBox Web Service exec has exited with rc " + process.exitValue());
-                            runState = State.Stopped;
-                            synchronized (this) {
-                                notifyAll();
+                            // The exit of a previous process can be reported after the next start began
+                            if (startFuture == ready) {
+                                runState = State.Stopped;
                             }
+                            if (Objects.isNull(error)) {
+                                error = "Unexpected exit of the VirtualBox Web Service: " + process.exitValue();
+                            }
+                            ready.completeExceptionally(new HypervisorException(error));
                         }
                     });
-            processRun = processExec.start();
-            Runtime.getRuntime().addShutdownHook(new Thread(VBoxWebSrv.this::stop));
+            StartedProcess started = processExec.start();
+            processRun = started;
+            ready.thenRunAsync(() -> saveState(execPath, started.getProcess()), scheduler);
 
-            Instant waitLimitTs = Instant.now().plusSeconds(5);
-            while (Instant.now().isBefore(waitLimitTs)) {
-                if (State.Started.equals(runState)) {
-                    Logger.info("Started VBox WS Process");
+            scheduler.schedule(() -> {
+                if (ready.isDone()) {
                     return;
                 }
 
-                if (State.Stopped.equals(runState)) {
-                    throw new HypervisorException(error);
+                if (!NetUtil.isPortAvailable(host, port)) {
+                    Logger.warning("VirtualBox Web Services port is in use, but service was not detected as started. Assuming started");
+                    markStarted(ready);
+                    return;
                 }
 
-                if (State.Starting.equals(runState) && !isRunning()) {
-                    throw new HypervisorException("Unexpected exit of the VirtualBox Web Service: " + getExitCode());
-                }
+                error = "VirtualBox Web Services did not start within wait time";
+                ready.completeExceptionally(new HypervisorException(error));
+            }, startTimeout, TimeUnit.MILLISECONDS);
+        } catch (IOException | RuntimeException e) {
+            runState = State.Stopped;
+            ready.completeExceptionally(e instanceof HyperboxException ? e : new HypervisorException(e));
+        }
 
-                try {
-                    wait(100L);
-                } catch (InterruptedException e) {
-                    // we don't care
-                }
+        return ready;
+    }
+
+    private boolean adopt(String execPath) {
+        if (!VBoxWebSrvStateFile.isSupported()) {
+            return false;
+        }
+
+        File location;
+        try {
+            location = VBoxWebSrvStateFile.getLocation(host, port);
+        } catch (HypervisorException e) {
+            Logger.warning("Not looking for a VBox WS process to adopt: " + e.getMessage());
+            return false;
+        }
+
+        VBoxWebSrvStateFile state = VBoxWebSrvStateFile.load(location);
+        if (Objects.isNull(state)) {
+            return false;
+        }
+
+        if (state.getPort() == port && Objects.equals(execPath, state.getExecPath()) && state.matchesProcess() && !NetUtil.isPortAvailable(host, port)) {
+            Logger.info("Adopting VBox WS process " + state.getPid() + " on " + host + ":" + port + ", running since " + Instant.ofEpochMilli(state.getStartTime()));
+            adoptedPid = state.getPid();
+            stateFile = location;
+            return true;
+        }
+
+        Logger.info("VBox WS process " + state.getPid() + " from " + location + " is gone or was replaced, removing stale state file");
+        if (!location.delete()) {
+            Logger.warning("Unable to delete stale VBox WS state file " + location);
+        }
+        return false;
+    }
+
+    private synchronized void saveState(String execPath, Process process) {
+        if (!VBoxWebSrvStateFile.isSupported() || !Objects.equals(processRun.getProcess(), process)) {
+            return;
+        }
+
+        long pid = VBoxWebSrvStateFile.getPid(process);
+        if (pid > 0) {
+            try {
+                File location = VBoxWebSrvStateFile.getLocation(host, port);
+                new VBoxWebSrvStateFile(pid, host, port, execPath).save(location);
+                stateFile = location;
+            } catch (HypervisorException e) {
+                Logger.warning("VBox WS process " + pid + " will not be adopted by a later start: " + e.getMessage());
             }
+        }
+    }
 
-            if (!NetUtil.isPortAvailable(host, port)) {
-                Logger.warning("VirtualBox Web Services port is in use, but service was not detected as started. Assuming started");
-                runState = State.Started;
+    private void clearState() {
+        if (Objects.nonNull(stateFile)) {
+            if (!stateFile.delete()) {
+                Logger.debug("Unable to delete VBox WS state file " + stateFile);
+            }
+            stateFile = null;
+        }
+    }
+
+    private void signalAdopted(String signal) {
+        try {
+            new ProcessExecutor().command("kill", "-" + signal, Long.toString(adoptedPid)).execute();
+        } catch (IOException | TimeoutException e) {
+            throw new HypervisorException("Unable to signal VBox WS process " + adoptedPid, e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new HypervisorException("Interrupted while signaling VBox WS process " + adoptedPid, e);
+        }
+    }
+
+    private void stopAdopted() {
+        Logger.info("Stopping adopted VBox WS process " + adoptedPid);
+        signalAdopted("TERM");
+
+        int j = 5;
+        for (int i = 1; i <= j && isRunning(); i++) {
+            Logger.info("Waiting for VBox WebServices process to stop (" + i + "/" + j + ")");
+            try {
+                Thread.sleep(200L);
+            } catch (InterruptedException e) {
+                Logger.warning("Interrupted while waiting for VBox WS process");
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+
+        if (isRunning()) {
+            Logger.warning("Unable to stop adopted VBox WS process " + adoptedPid);
+        } else {
+            Logger.info("Stopped VBox WS process");
+        }
+    }
+
+    private void markStarted(CompletableFuture<_VBoxWebSrv> ready) {
+        if (!ready.isDone()) {
+            // The process talks to the local VBoxSVC, whose restarts make the sessions and references of its clients stale
+            VBoxSVCWatcher.get().start();
+            startProxy();
+            runState = State.Started;
+            ready.complete(this);
+        }
+    }
+
+    private void startProxy() {
+        if (!Boolean.parseBoolean(Configuration.getSetting("vbox.exec.web.proxy.enable"))) {
+            return;
+        }
+
+        // Not the instance lock: this runs on the output reader, which stop() may be waiting for
+        synchronized (proxyLock) {
+            if (Objects.nonNull(proxy)) {
                 return;
             }
 
+            // The proxy is optional: clients can still use the process directly if it cannot start
+            try {
+                VBoxWebSrvProxy p = new VBoxWebSrvProxy(host, ConfigUtils.getInt("vbox.exec.web.proxy.port", 0), port);
+                p.start();
+                proxy = p;
+                VBoxSVCWatcher.get().addListener(p);
+            } catch (HyperboxException e) {
+                Logger.warning("Unable to start the VBox WS proxy: " + e.getMessage());
+            }
+        }
+    }
+
+    private void stopProxy() {
+        synchronized (proxyLock) {
+            if (Objects.nonNull(proxy)) {
+                VBoxSVCWatcher.get().removeListener(proxy);
+                proxy.stop();
+                proxy = null;
+            }
+        }
+    }
+
+    private synchronized void stopIfCurrent(CompletableFuture<_VBoxWebSrv> ready) {
+        // A newer start may already be in progress, which must not be stopped because of an older failure
+        if (startFuture == ready) {
             stop();
-            throw new HypervisorException("VirtualBox Web Services did not start within wait time");
-        } catch (IOException e) {
-            stop();
-            throw new HypervisorException(e);
-        } finally {
-            Logger.debug("VBox WebSrv Server Start: End");
         }
     }
 
     @Override
     public synchronized void stop() {
-        if (State.Stopped.equals(runState)) {
+        if (!isRunning()) {
+            // The process died or was killed, its state file and proxy must not outlive it
+            clearState();
+            stopProxy();
+            detach();
+            runState = State.Stopped;
+            adoptedPid = -1;
             return;
         }
 
-        if (!isRunning()) {
+        if (State.Stopped.equals(runState)) {
             return;
         }
 
         runState = State.Stopping;
+        stopProxy();
+        if (adoptedPid > 0) {
+            try {
+                stopAdopted();
+            } catch (RuntimeException e) {
+                Logger.warning("VBox WS process stop was not clean", e);
+            } finally {
+                clearState();
+                runState = State.Stopped;
+                detach();
+            }
+            return;
+        }
+
         Process process = processRun.getProcess();
 
         Logger.debug("VBox WebServices Server shutdown: Start");
@@ -257,19 +523,44 @@ public class VBoxWebSrv implements _VBoxWebSrv {
                 }
             }
         } finally {
+            clearState();
             runState = State.Stopped;
+            detach();
             Logger.debug("VBox WebServices Server shutdown: End");
         }
     }
 
+    private synchronized void releasePort() {
+        if (Objects.nonNull(portReservation)) {
+            portReservation.release();
+            portReservation = null;
+        }
+    }
+
+    /**
+     * Give back the port and leave the registry once the process is gone. A process that survived the stop keeps both.
+     */
+    private void detach() {
+        if (!isRunning()) {
+            VBoxWebSrvRegistry.unregister(this);
+            releasePort();
+        }
+    }
+
     @Override
-    public synchronized boolean isRunning() {
-        if (Objects.isNull(processRun)) {
+    public boolean isRunning() {
+        long pid = adoptedPid;
+        if (pid > 0) {
+            return VBoxWebSrvStateFile.isAlive(pid);
+        }
+
+        StartedProcess run = processRun;
+        if (Objects.isNull(run)) {
             return false;
         }
 
         try {
-            processRun.getProcess().exitValue();
+            run.getProcess().exitValue();
             return false;
         } catch (IllegalThreadStateException e) {
             return true;
@@ -291,11 +582,35 @@ public class VBoxWebSrv implements _VBoxWebSrv {
             throw new IllegalStateException("VBox Web Server is not running");
         }
 
-        processRun.getProcess().destroy();
+        if (adoptedPid > 0) {
+            signalAdopted("TERM");
+        } else {
+            processRun.getProcess().destroy();
+        }
+    }
+
+    /**
+     * Kill the process without giving it a chance to clean up, for when {@link #kill()} or {@link #stop()} did not work.
+     */
+    public void killForcibly() {
+        if (!isRunning()) {
+            return;
+        }
+
+        Logger.warning("Killing VBox WS process forcibly");
+        if (adoptedPid > 0) {
+            signalAdopted("KILL");
+        } else {
+            processRun.getProcess().destroyForcibly();
+        }
     }
 
     @Override
     public int getExitCode() {
+        if (adoptedPid > 0) {
+            throw new IllegalStateException("The exit code of an adopted VBox Web Server process is not available");
+        }
+
         if (processRun == null) {
             throw new IllegalStateException("VBox Web Server has not been started");
         }
@@ -312,4 +627,9 @@ public class VBoxWebSrv implements _VBoxWebSrv {
         return runState;
     }
 
+    @Override
+    public String toString() {
+        return "vboxwebsrv@" + host + ":" + port;
+    }
+
 }
@@ -0,0 +1,109 @@
+/*
+ * Hyperbox - Virtual Infrastructure Manager
+ * Copyright (C) 2021 Maxime Dor
+ *
+ * http://kamax.io/hbox/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.kamax.vbox;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Keeps the last lines of VirtualBox Web Service output and counts the events found in them.
+ * <p>
+ * The buffer has a fixed size and only stores references to the lines, so adding a line does not allocate.
+ * </p>
+ */
+public class VBoxWebSrvLog {
+
+    private final AtomicReferenceArray<String> lines;
+    private final AtomicLong written = new AtomicLong();
+    private final AtomicLongArray counters = new AtomicLongArray(VBoxWebSrvLogEvent.Type.values().length);
+
+    public VBoxWebSrvLog(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Capacity must be at least 1: " + capacity);
+        }
+
+        lines = new AtomicReferenceArray<>(capacity);
+    }
+
+    /**
+     * Store the line and count its event.
+     *
+     * @return the type of event of the line.
+     */
+    public VBoxWebSrvLogEvent.Type add(String line) {
+        long index = written.getAndIncrement();
+        lines.set((int) (index % lines.length()), line);
+
+        VBoxWebSrvLogEvent.Type type = VBoxWebSrvLogParser.classify(line);
+        counters.incrementAndGet(type.ordinal());
+        return type;
+    }
+
+    public int getCapacity() {
+        return lines.length();
+    }
+
+    /**
+     * @return how many lines were added since the creation of this log.
+     */
+    public long getLineCount() {
+        return written.get();
+    }
+
+    public long getCount(VBoxWebSrvLogEvent.Type type) {
+        return counters.get(type.ordinal());
+    }
+
+    /**
+     * @return up to the given amount of most recent lines, oldest first.
+     */
+    public List<String> getLines(int max) {
+        long end = written.get();
+        long start = Math.max(0, end - Math.min(max, lines.length()));
+        List<String> result = new ArrayList<>((int) (end - start));
+        for (long i = start; i < end; i++) {
+            String line = lines.get((int) (i % lines.length()));
+            if (line != null) {
+                result.add(line);
+            }
+        }
+        return result;
+    }
+
+    public List<String> getLines() {
+        return getLines(lines.length());
+    }
+
+    /**
+     * @return the most recent lines parsed into events, oldest first.
+     */
+    public List<VBoxWebSrvLogEvent> getEvents(int max) {
+        List<VBoxWebSrvLogEvent> events = new ArrayList<>();
+        for (String line : getLines(max)) {
+            events.add(VBoxWebSrvLogParser.parse(line));
+        }
+        return events;
+    }
+
+}
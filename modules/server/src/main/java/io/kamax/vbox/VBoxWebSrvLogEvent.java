@@ -0,0 +1,91 @@
+/*
+ * Hyperbox - Virtual Infrastructure Manager
+ * Copyright (C) 2021 Maxime Dor
+ *
+ * http://kamax.io/hbox/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.kamax.vbox;
+
+/**
+ * One parsed line of VirtualBox Web Service output, see {@link VBoxWebSrvLogParser}.
+ */
+public class VBoxWebSrvLogEvent {
+
+    public enum Type {
+
+        /**
+         * The listening socket is open and requests are served.
+         */
+        Ready,
+
+        /**
+         * The port could not be bound.
+         */
+        AddressInUse,
+
+        /**
+         * Any other SOAP fault.
+         */
+        SoapFault,
+
+        /**
+         * An idle session was closed by the service.
+         */
+        SessionTimeout,
+
+        /**
+         * Anything else.
+         */
+        Other
+
+    }
+
+    private final Type type;
+    private final long timestamp;
+    private final String thread;
+    private final String message;
+
+    public VBoxWebSrvLogEvent(Type type, long timestamp, String thread, String message) {
+        this.type = type;
+        this.timestamp = timestamp;
+        this.thread = thread;
+        this.message = message;
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    /**
+     * @return the time since the start of the process in microseconds, or -1 if the line had no timestamp.
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    /**
+     * @return the thread tag of the line, or an empty string if the line had none.
+     */
+    public String getThread() {
+        return thread;
+    }
+
+    public String getMessage() {
+        return message;
+    }
+
+}
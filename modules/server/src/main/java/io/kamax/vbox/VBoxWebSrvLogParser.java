@@ -0,0 +1,150 @@
+/*
+ * Hyperbox - Virtual Infrastructure Manager
+ * Copyright (C) 2021 Maxime Dor
+ *
+ * http://kamax.io/hbox/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.kamax.vbox;
+
+/**
+ * Single-pass parser for VirtualBox Web Service output lines, which look like
+ * {@code 00:00:00.008766 SQPmp    Socket connection successful: host = default (localhost), port = 18083, master socket = 8}.
+ * <p>
+ * {@link #classify(String)} works on offsets only and does not allocate, so it can run on every line. {@link #parse(String)} also
+ * extracts the fields and is meant for diagnostics.
+ * </p>
+ */
+public class VBoxWebSrvLogParser {
+
+    private static final String readyMarker = "Socket connection successful:";
+    private static final String faultMarker = "#### SOAP FAULT:";
+    private static final String addressInUseMarker = "Address already in use";
+    private static final String sessionMarker = "Session";
+    private static final String timeoutMarker = "timed out";
+
+    // HH:MM:SS.ffffff
+    private static final int timestampLength = 15;
+
+    private static boolean isDigit(String line, int index) {
+        char c = line.charAt(index);
+        return c >= '0' && c <= '9';
+    }
+
+    private static boolean hasTimestamp(String line) {
+        if (line.length() < timestampLength || line.charAt(2) != ':' || line.charAt(5) != ':' || line.charAt(8) != '.') {
+            return false;
+        }
+
+        for (int i = 0; i < timestampLength; i++) {
+            if (i != 2 && i != 5 && i != 8 && !isDigit(line, i)) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private static int parseInt(String line, int start, int end) {
+        int value = 0;
+        for (int i = start; i < end; i++) {
+            value = value * 10 + (line.charAt(i) - '0');
+        }
+        return value;
+    }
+
+    private static int skipSpaces(String line, int index) {
+        while (index < line.length() && line.charAt(index) == ' ') {
+            index++;
+        }
+        return index;
+    }
+
+    private static int skipWord(String line, int index) {
+        while (index < line.length() && line.charAt(index) != ' ') {
+            index++;
+        }
+        return index;
+    }
+
+    /**
+     * @return the relative timestamp of the line in microseconds, or -1 if the line has none.
+     */
+    public static long getTimestamp(String line) {
+        if (!hasTimestamp(line)) {
+            return -1;
+        }
+
+        long hours = parseInt(line, 0, 2);
+        long minutes = parseInt(line, 3, 5);
+        long seconds = parseInt(line, 6, 8);
+        long micros = parseInt(line, 9, 15);
+        return ((hours * 60 + minutes) * 60 + seconds) * 1000000L + micros;
+    }
+
+    /**
+     * @return the offset of the message in the line, after the timestamp and thread tag if any.
+     */
+    public static int getMessageStart(String line) {
+        if (!hasTimestamp(line)) {
+            return 0;
+        }
+
+        int threadStart = skipSpaces(line, timestampLength);
+        return skipSpaces(line, skipWord(line, threadStart));
+    }
+
+    private static VBoxWebSrvLogEvent.Type classify(String line, int messageStart) {
+        if (line.startsWith(readyMarker, messageStart)) {
+            return VBoxWebSrvLogEvent.Type.Ready;
+        }
+
+        if (line.startsWith(faultMarker, messageStart)) {
+            if (line.indexOf(addressInUseMarker, messageStart + faultMarker.length()) >= 0) {
+                return VBoxWebSrvLogEvent.Type.AddressInUse;
+            }
+
+            return VBoxWebSrvLogEvent.Type.SoapFault;
+        }
+
+        int sessionIndex = line.indexOf(sessionMarker, messageStart);
+        if (sessionIndex >= 0 && line.indexOf(timeoutMarker, sessionIndex + sessionMarker.length()) >= 0) {
+            return VBoxWebSrvLogEvent.Type.SessionTimeout;
+        }
+
+        return VBoxWebSrvLogEvent.Type.Other;
+    }
+
+    public static VBoxWebSrvLogEvent.Type classify(String line) {
+        return classify(line, getMessageStart(line));
+    }
+
+    public static VBoxWebSrvLogEvent parse(String line) {
+        if (!hasTimestamp(line)) {
+            return new VBoxWebSrvLogEvent(classify(line, 0), -1, "", line);
+        }
+
+        int threadStart = skipSpaces(line, timestampLength);
+        int threadEnd = skipWord(line, threadStart);
+        int messageStart = skipSpaces(line, threadEnd);
+        return new VBoxWebSrvLogEvent(
+                classify(line, messageStart),
+                getTimestamp(line),
+                line.substring(threadStart, threadEnd),
+                line.substring(messageStart));
+    }
+
+}
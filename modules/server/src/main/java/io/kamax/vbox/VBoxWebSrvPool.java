@@ -0,0 +1,434 @@
+/*
+ * Hyperbox - Virtual Infrastructure Manager
+ * Copyright (C) 2021 Maxime Dor
+ *
+ * http://kamax.io/hbox/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.kamax.vbox;
+
+import io.kamax.hbox.Configuration;
+import io.kamax.hbox.exception.HypervisorException;
+import io.kamax.tools.logging.Logger;
+import io.kamax.vbox.utils.ConfigUtils;
+import org.apache.commons.lang3.StringUtils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs several VirtualBox Web Service processes on distinct ports and spreads calls across them.
+ * <p>
+ * The pool starts with {@code vbox.exec.web.pool.min} instances and grows up to {@code vbox.exec.web.pool.max} instances when the
+ * average number of outstanding calls per instance reaches {@code vbox.exec.web.pool.growThreshold}. Both sizes default to values
+ * derived from the number of available cores.
+ * </p>
+ * <p>
+ * Every {@code vbox.exec.web.pool.checkInterval} milliseconds, instances that exited are dropped, the pool is brought back to its
+ * minimum size, and instances above the minimum size without a call for {@code vbox.exec.web.pool.idleTimeout} milliseconds are
+ * stopped.
+ * </p>
+ */
+public class VBoxWebSrvPool {
+
+    public enum Strategy {
+        RoundRobin,
+        LeastOutstanding,
+        Sticky
+    }
+
+    /**
+     * An endpoint handed out by the pool. Closing it marks the call as done for the least-outstanding strategy and the pool sizing.
+     */
+    public class Lease implements AutoCloseable {
+
+        private final Member member;
+        private final AtomicBoolean closed = new AtomicBoolean();
+
+        private Lease(Member member) {
+            this.member = member;
+        }
+
+        public VBoxWSOptions getOptions() {
+            return member.options;
+        }
+
+        @Override
+        public void close() {
+            if (closed.compareAndSet(false, true)) {
+                member.outstanding.decrementAndGet();
+                member.lastUse = System.currentTimeMillis();
+            }
+        }
+
+    }
+
+    private class Member {
+
+        private final _VBoxWebSrv srv;
+        private final VBoxWSOptions options;
+        // -1 once retired by trim(), after which no lease can be taken on the member
+        private final AtomicInteger outstanding = new AtomicInteger();
+        private volatile long lastUse = System.currentTimeMillis();
+
+        private Member(_VBoxWebSrv srv) {
+            this.srv = srv;
+            this.options = new VBoxWSOptions("http", host, srv.getPort());
+        }
+
+        private boolean isRetired() {
+            return outstanding.get() < 0;
+        }
+
+        private boolean lease() {
+            for (int n = outstanding.get(); n >= 0; n = outstanding.get()) {
+                if (outstanding.compareAndSet(n, n + 1)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private boolean retire() {
+            return outstanding.compareAndSet(0, -1);
+        }
+
+    }
+
+    private final long idleTimeout = ConfigUtils.getLong("vbox.exec.web.pool.idleTimeout", 60000L);
+    private final long checkInterval = ConfigUtils.getLong("vbox.exec.web.pool.checkInterval", 5000L);
+
+    private final String host;
+    private final String authMethod;
+    private final Strategy strategy;
+    private final int minSize;
+    private final int maxSize;
+    private final int growThreshold;
+
+    private final List<Member> members = new CopyOnWriteArrayList<>();
+    private final AtomicInteger cursor = new AtomicInteger();
+    private final AtomicBoolean growing = new AtomicBoolean();
+    private final AtomicInteger starting = new AtomicInteger();
+    private volatile ScheduledExecutorService scheduler;
+    private volatile boolean running = false;
+
+    public VBoxWebSrvPool() {
+        this("localhost", "null", Strategy.valueOf(StringUtils.defaultIfBlank(Configuration.getSetting("vbox.exec.web.pool.strategy"), Strategy.LeastOutstanding.name())));
+    }
+
+    public VBoxWebSrvPool(String host, String authMethod, Strategy strategy) {
+        this(host, authMethod, strategy,
+                ConfigUtils.getInt("vbox.exec.web.pool.min", Math.max(1, Runtime.getRuntime().availableProcessors() / 4)),
+                ConfigUtils.getInt("vbox.exec.web.pool.max", Math.max(1, Runtime.getRuntime().availableProcessors())));
+    }
+
+    public VBoxWebSrvPool(String host, String authMethod, Strategy strategy, int minSize, int maxSize) {
+        if (minSize < 1 || maxSize < minSize) {
+            throw new IllegalArgumentException("Invalid pool size: min " + minSize + ", max " + maxSize);
+        }
+
+        this.host = host;
+        this.authMethod = authMethod;
+        this.strategy = Objects.requireNonNull(strategy);
+        this.minSize = minSize;
+        this.maxSize = maxSize;
+        this.growThreshold = ConfigUtils.getInt("vbox.exec.web.pool.growThreshold", 16);
+    }
+
+    private VBoxWebSrv newInstance() {
+        return new VBoxWebSrv(host, 0, authMethod);
+    }
+
+    public synchronized void start() {
+        if (running) {
+            Logger.warning("VBox WebSrv pool is already running, ignoring call to start again");
+            return;
+        }
+
+        Logger.info("Starting VBox WebSrv pool with " + minSize + " instance(s), up to " + maxSize);
+        running = true;
+        // Ports are reserved up front, so the instances can all be started at once
+        List<CompletableFuture<_VBoxWebSrv>> starts = new ArrayList<>();
+        for (int i = 0; i < minSize; i++) {
+            starts.add(newInstance().startAsync());
+        }
+
+        RuntimeException error = null;
+        for (CompletableFuture<_VBoxWebSrv> start : starts) {
+            try {
+                members.add(new Member(start.join()));
+            } catch (CompletionException e) {
+                if (Objects.isNull(error)) {
+                    error = e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : new HypervisorException(e.getCause());
+                }
+            }
+        }
+
+        if (Objects.nonNull(error)) {
+            stop();
+            throw error;
+        }
+
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "vbox-websrv-pool");
+            t.setDaemon(true);
+            return t;
+        });
+        scheduler.scheduleWithFixedDelay(this::maintain, checkInterval, checkInterval, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void stop() {
+        running = false;
+        if (Objects.nonNull(scheduler)) {
+            scheduler.shutdown();
+            scheduler = null;
+        }
+        List<Member> toStop = new ArrayList<>(members);
+        members.clear();
+        for (Member member : toStop) {
+            try {
+                member.srv.stop();
+            } catch (RuntimeException e) {
+                Logger.warning("Unable to stop VBox WebSrv instance on port " + member.options.getPort(), e);
+            }
+        }
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    public int getSize() {
+        return members.size();
+    }
+
+    public int getMinSize() {
+        return minSize;
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    public Strategy getStrategy() {
+        return strategy;
+    }
+
+    public int getOutstanding() {
+        int total = 0;
+        for (Member member : members) {
+            total += Math.max(0, member.outstanding.get());
+        }
+        return total;
+    }
+
+    public List<VBoxWSOptions> getEndpoints() {
+        List<VBoxWSOptions> endpoints = new ArrayList<>();
+        for (Member member : members) {
+            endpoints.add(member.options);
+        }
+        return endpoints;
+    }
+
+    /**
+     * Pick an endpoint without tracking the call.
+     *
+     * @param key the machine UUID used by the sticky strategy, can be null.
+     * @return the endpoint to use.
+     */
+    public VBoxWSOptions pick(String key) {
+        return select(key).options;
+    }
+
+    /**
+     * Pick an endpoint and count the call as outstanding until the lease is closed.
+     *
+     * @param key the machine UUID used by the sticky strategy, can be null.
+     * @return the lease for the endpoint to use.
+     */
+    public Lease acquire(String key) {
+        Member member = select(key);
+        while (!member.lease()) {
+            // Retired between the pick and the lease, the next pick leaves it out
+            member = select(key);
+        }
+        member.lastUse = System.currentTimeMillis();
+        grow();
+        return new Lease(member);
+    }
+
+    private List<Member> removeDead() {
+        List<Member> alive = new ArrayList<>(members.size());
+        for (Member member : members) {
+            if (member.isRetired()) {
+                continue;
+            }
+
+            if (member.srv.isRunning()) {
+                alive.add(member);
+            } else if (members.remove(member)) {
+                Logger.warning("VBox WebSrv instance on port " + member.options.getPort() + " is no longer running, removing from pool");
+                try {
+                    // Nothing to stop anymore, but its port, state file and registration are released
+                    member.srv.stop();
+                } catch (RuntimeException e) {
+                    Logger.warning("Unable to clean up VBox WebSrv instance on port " + member.options.getPort(), e);
+                }
+            }
+        }
+        return alive;
+    }
+
+    private Member select(String key) {
+        List<Member> alive = removeDead();
+        if (alive.size() < minSize) {
+            // Replace the lost instances without making the caller wait for them
+            ScheduledExecutorService s = scheduler;
+            if (running && Objects.nonNull(s)) {
+                try {
+                    s.execute(this::refill);
+                } catch (RejectedExecutionException e) {
+                    // The pool is being stopped
+                }
+            }
+        }
+
+        if (alive.isEmpty()) {
+            throw new HypervisorException("No VirtualBox Web Service instance is available in the pool");
+        }
+
+        if (Strategy.Sticky.equals(strategy) && Objects.nonNull(key)) {
+            // Rendezvous hashing: a key only moves when its instance leaves the pool
+            Member best = null;
+            int bestScore = 0;
+            for (Member member : alive) {
+                int score = mix(key.hashCode() * 31 + member.options.getPort());
+                if (Objects.isNull(best) || score > bestScore) {
+                    best = member;
+                    bestScore = score;
+                }
+            }
+            return best;
+        }
+
+        if (Strategy.LeastOutstanding.equals(strategy)) {
+            Member best = alive.get(0);
+            for (Member member : alive) {
+                if (member.outstanding.get() < best.outstanding.get()) {
+                    best = member;
+                }
+            }
+            return best;
+        }
+
+        return alive.get(Math.floorMod(cursor.getAndIncrement(), alive.size()));
+    }
+
+    static int mix(int h) {
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+
+    private void grow() {
+        int size = members.size();
+        if (!running || size >= maxSize || getOutstanding() < size * growThreshold) {
+            return;
+        }
+
+        if (!growing.compareAndSet(false, true)) {
+            return;
+        }
+
+        Logger.info("VBox WebSrv pool queue depth reached " + getOutstanding() + " over " + size + " instance(s), adding an instance");
+        addInstance().whenComplete((v, t) -> growing.set(false));
+    }
+
+    private CompletableFuture<Void> addInstance() {
+        starting.incrementAndGet();
+        VBoxWebSrv srv = newInstance();
+        return srv.startAsync().handle((s, t) -> {
+            try {
+                if (Objects.nonNull(t)) {
+                    Logger.warning("Unable to add an instance to the VBox WebSrv pool: " + t.getMessage());
+                } else if (running) {
+                    members.add(new Member(srv));
+                } else {
+                    srv.stop();
+                }
+            } finally {
+                starting.decrementAndGet();
+            }
+            return null;
+        });
+    }
+
+    private synchronized void refill() {
+        int missing = minSize - members.size() - starting.get();
+        if (!running || missing <= 0) {
+            return;
+        }
+
+        Logger.info("VBox WebSrv pool is down to " + members.size() + " instance(s), starting " + missing + " more");
+        for (int i = 0; i < missing; i++) {
+            addInstance();
+        }
+    }
+
+    private void trim() {
+        long idleLimit = System.currentTimeMillis() - idleTimeout;
+        for (Member member : members) {
+            if (members.size() <= minSize) {
+                return;
+            }
+
+            // Retiring only succeeds without any lease, and keeps new ones from being taken
+            if (member.lastUse < idleLimit && member.retire() && members.remove(member)) {
+                Logger.info("Removing idle VBox WebSrv instance on port " + member.options.getPort() + " from pool");
+                try {
+                    member.srv.stop();
+                } catch (RuntimeException e) {
+                    Logger.warning("Unable to stop VBox WebSrv instance on port " + member.options.getPort(), e);
+                }
+            }
+        }
+    }
+
+    private void maintain() {
+        try {
+            removeDead();
+            refill();
+            trim();
+        } catch (RuntimeException e) {
+            // Keep the periodic task scheduled
+            Logger.warning("VBox WebSrv pool maintenance failed", e);
+        }
+    }
+
+}
@@ -0,0 +1,147 @@
+/*
+ * Hyperbox - Virtual Infrastructure Manager
+ * Copyright (C) 2021 Maxime Dor
+ *
+ * http://kamax.io/hbox/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.kamax.vbox;
+
+import io.kamax.hbox.exception.HypervisorException;
+import io.kamax.tools.logging.Logger;
+import io.kamax.tools.net.NetUtil;
+import io.kamax.vbox.utils.ConfigUtils;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Hands out ports to VirtualBox Web Service processes started by this JVM.
+ * <p>
+ * Checking that a port is free and then spawning a process leaves a window where a concurrent start can pick the same port. A port
+ * is therefore reserved before the check and stays reserved until the process using it is stopped, or its start fails. Automatic
+ * ports are taken from {@code vbox.exec.web.port.min} to {@code vbox.exec.web.port.max}, moving forward after each reservation so a
+ * port that was just released is not reused while the previous socket may still linger. The default range starts right after 18083,
+ * the port of an instance started without an explicit one, so automatic ports never take it.
+ * </p>
+ */
+public class VBoxWebSrvPorts {
+
+    /**
+     * A reserved port, released by {@link #release()} or {@link #close()}. Releasing more than once has no effect.
+     */
+    public class Reservation implements AutoCloseable {
+
+        private final int port;
+        private boolean released = false;
+
+        private Reservation(int port) {
+            this.port = port;
+        }
+
+        public int getPort() {
+            return port;
+        }
+
+        public void release() {
+            synchronized (VBoxWebSrvPorts.this) {
+                if (!released) {
+                    released = true;
+                    reserved.remove(port);
+                }
+            }
+        }
+
+        @Override
+        public void close() {
+            release();
+        }
+
+    }
+
+    private static VBoxWebSrvPorts instance;
+
+    /**
+     * @return the ports shared by all the instances of this JVM, with the range from the configuration.
+     */
+    public static synchronized VBoxWebSrvPorts get() {
+        if (instance == null) {
+            instance = new VBoxWebSrvPorts(
+                    ConfigUtils.getInt("vbox.exec.web.port.min", 18084),
+                    ConfigUtils.getInt("vbox.exec.web.port.max", 18183));
+        }
+
+        return instance;
+    }
+
+    private final int min;
+    private final int max;
+    private final Set<Integer> reserved = new HashSet<>();
+    private int next;
+
+    public VBoxWebSrvPorts(int min, int max) {
+        if (min < 1 || max > 65535 || max < min) {
+            throw new IllegalArgumentException("Invalid port range: " + min + "-" + max);
+        }
+
+        this.min = min;
+        this.max = max;
+        this.next = min;
+    }
+
+    /**
+     * Reserve a port of the range that is neither reserved nor in use.
+     *
+     * @throws HypervisorException if every port of the range is reserved or in use.
+     */
+    public synchronized Reservation reserve(String host) {
+        int size = max - min + 1;
+        for (int i = 0; i < size; i++) {
+            int port = next;
+            next = port == max ? min : port + 1;
+
+            if (!reserved.contains(port) && NetUtil.isPortAvailable(host, port)) {
+                reserved.add(port);
+                Logger.debug("Reserved VBox WS port " + port);
+                return new Reservation(port);
+            }
+        }
+
+        throw new HypervisorException("No port available for the WebService process in the range " + min + "-" + max);
+    }
+
+    /**
+     * Reserve the given port, which can be outside of the range. Whether the port is in use is left to the caller.
+     *
+     * @throws HypervisorException if the port is already reserved by another instance.
+     */
+    public synchronized Reservation reserve(int port) {
+        if (!reserved.add(port)) {
+            throw new HypervisorException("Cannot start the WebService process: port " + port + " is already used by another instance");
+        }
+
+        return new Reservation(port);
+    }
+
+    public synchronized boolean isReserved(int port) {
+        return reserved.contains(port);
+    }
+
+    public synchronized int getReservedCount() {
+        return reserved.size();
+    }
+
+}
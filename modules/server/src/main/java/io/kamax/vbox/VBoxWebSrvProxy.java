@@ -0,0 +1,518 @@
+/*
+ * Hyperbox - Virtual Infrastructure Manager
+ * Copyright (C) 2021 Maxime Dor
+ *
+ * http://kamax.io/hbox/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.kamax.vbox;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import io.kamax.hbox.Configuration;
+import io.kamax.hbox.exception.HypervisorException;
+import io.kamax.tools.logging.Logger;
+import io.kamax.vbox.utils.ConfigUtils;
+import org.apache.commons.lang3.StringUtils;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * HTTP proxy in front of a VirtualBox Web Service, caching the answers of read-only getters.
+ * <p>
+ * Client connections are handled by {@code vbox.exec.web.proxy.threads} threads and forwarded over at most
+ * {@code vbox.exec.web.proxy.upstream} concurrent keep-alive connections. Successful answers to the operations listed in
+ * {@code vbox.exec.web.proxy.cache.ops} are kept for {@code vbox.exec.web.proxy.cache.ttl} milliseconds, per operation and
+ * parameters, up to {@code vbox.exec.web.proxy.cache.size} answers. Any other operation is forwarded as is; if it is not a getter, the
+ * answers about the object it was called on are dropped, including those about the same machine through other references. A write
+ * on the machine of a session counts for the machine the session was locked on. Machine events read through the proxy, like a state
+ * or settings change made by another client, drop the answers about their machine; changes nobody reads an event for show once the
+ * cached answers expire. {@link #invalidateMachine(String)} drops the answers about one machine, and a VBoxSVC restart drops
+ * everything as the object references of the answers are not valid anymore.
+ * </p>
+ * <p>
+ * Request bodies come from untrusted clients: DTDs and external entities are not processed.
+ * </p>
+ */
+public class VBoxWebSrvProxy implements VBoxSVCWatcher.Listener {
+
+    private static final String defaultCachedOps = "IMachine_getId,IMachine_getName,IMachine_getDescription,IMachine_getState,"
+            + "IMachine_getOSTypeId,IMachine_getMemorySize,IMachine_getCPUCount,IMachine_getAccessible,"
+            + "IVirtualBox_getVersion,IVirtualBox_getRevision";
+
+    private static final XMLInputFactory xmlFactory = XMLInputFactory.newInstance();
+
+    static {
+        xmlFactory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        xmlFactory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+    }
+
+    private static class Request {
+
+        private final String operation;
+        private final Map<String, String> params;
+
+        private Request(String operation, Map<String, String> params) {
+            this.operation = operation;
+            this.params = params;
+        }
+
+        private String getKey() {
+            return operation + params;
+        }
+
+    }
+
+    private static class Response {
+
+        private final int status;
+        private final String contentType;
+        private final byte[] body;
+        private final long expireAt;
+        private final String machineRef;
+
+        private Response(int status, String contentType, byte[] body, long expireAt, String machineRef) {
+            this.status = status;
+            this.contentType = contentType;
+            this.body = body;
+            this.expireAt = expireAt;
+            this.machineRef = machineRef;
+        }
+
+    }
+
+    private final String host;
+    private final int upstreamPort;
+    private final URL upstream;
+    private final Set<String> cachedOps;
+    private final long ttl;
+    private final int cacheMax;
+    private final int threads;
+    private final Semaphore upstreamSlots;
+    private final int upstreamMax;
+    private int port;
+
+    private final Map<String, Response> cache = new ConcurrentHashMap<>();
+    // Machine UUID to the references seen with it, learned from the IMachine_getId and IVirtualBox_findMachine answers
+    private final Map<String, Set<String>> machineRefs = new ConcurrentHashMap<>();
+    // Session reference to the machine reference it was locked on
+    private final Map<String, String> sessionMachines = new ConcurrentHashMap<>();
+    // Machine reference handed out by a session to the machine reference the session was locked on
+    private final Map<String, String> sessionMachineRefs = new ConcurrentHashMap<>();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong passes = new AtomicLong();
+    private final AtomicInteger upstreamActive = new AtomicInteger();
+    private final AtomicInteger upstreamPeak = new AtomicInteger();
+
+    private HttpServer server;
+    private ExecutorService executor;
+
+    public VBoxWebSrvProxy(String host, int port, int upstreamPort) {
+        this.host = host;
+        this.port = port;
+        this.upstreamPort = upstreamPort;
+        try {
+            this.upstream = new URL("http", host, upstreamPort, "/");
+        } catch (IOException e) {
+            throw new HypervisorException(e);
+        }
+        this.cachedOps = new HashSet<>(Arrays.asList(StringUtils.split(
+                StringUtils.defaultIfBlank(Configuration.getSetting("vbox.exec.web.proxy.cache.ops"), defaultCachedOps).replace(" ", ""), ',')));
+        this.ttl = TimeUnit.MILLISECONDS.toNanos(ConfigUtils.getLong("vbox.exec.web.proxy.cache.ttl", 1000L));
+        this.cacheMax = ConfigUtils.getInt("vbox.exec.web.proxy.cache.size", 10000);
+        this.threads = ConfigUtils.getInt("vbox.exec.web.proxy.threads", 16);
+        this.upstreamMax = ConfigUtils.getInt("vbox.exec.web.proxy.upstream", 4);
+        this.upstreamSlots = new Semaphore(upstreamMax, true);
+    }
+
+    private static Request parse(byte[] body) {
+        Map<String, String> params = new TreeMap<>();
+        try {
+            XMLStreamReader reader = xmlFactory.createXMLStreamReader(new ByteArrayInputStream(body));
+            try {
+                String operation = null;
+                boolean inBody = false;
+                String param = null;
+                StringBuilder value = new StringBuilder();
+                while (reader.hasNext()) {
+                    int event = reader.next();
+                    if (event == XMLStreamConstants.START_ELEMENT) {
+                        if (!inBody) {
+                            inBody = "Body".equals(reader.getLocalName());
+                        } else if (Objects.isNull(operation)) {
+                            operation = reader.getLocalName();
+                        } else if (Objects.isNull(param)) {
+                            param = reader.getLocalName();
+                            value.setLength(0);
+                        } else {
+                            // Structured parameters are not seen in getters, such calls are not cached
+                            return new Request(null, params);
+                        }
+                    } else if (event == XMLStreamConstants.CHARACTERS && Objects.nonNull(param)) {
+                        value.append(reader.getText());
+                    } else if (event == XMLStreamConstants.END_ELEMENT && Objects.nonNull(operation)) {
+                        if (Objects.isNull(param)) {
+                            break;
+                        }
+                        params.put(param, value.toString());
+                        param = null;
+                    }
+                }
+                return new Request(operation, params);
+            } finally {
+                reader.close();
+            }
+        } catch (XMLStreamException e) {
+            return new Request(null, params);
+        }
+    }
+
+    private static byte[] readAll(InputStream is) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        if (Objects.isNull(is)) {
+            return out.toByteArray();
+        }
+
+        byte[] buffer = new byte[8192];
+        for (int n = is.read(buffer); n >= 0; n = is.read(buffer)) {
+            out.write(buffer, 0, n);
+        }
+        return out.toByteArray();
+    }
+
+    private static boolean isRead(String operation) {
+        return StringUtils.contains(operation, "_get") || StringUtils.contains(operation, "_find")
+                || StringUtils.startsWith(operation, "IManagedObjectRef_") || StringUtils.startsWith(operation, "IWebsessionManager_");
+    }
+
+    private Response forward(HttpExchange exchange, byte[] body, String machineRef) throws IOException {
+        upstreamSlots.acquireUninterruptibly();
+        int active = upstreamActive.incrementAndGet();
+        upstreamPeak.accumulateAndGet(active, Math::max);
+        try {
+            HttpURLConnection conn = (HttpURLConnection) upstream.openConnection();
+            conn.setRequestMethod("POST");
+            conn.setDoOutput(true);
+            conn.setFixedLengthStreamingMode(body.length);
+            for (String header : Arrays.asList("Content-Type", "SOAPAction")) {
+                String value = exchange.getRequestHeaders().getFirst(header);
+                if (Objects.nonNull(value)) {
+                    conn.setRequestProperty(header, value);
+                }
+            }
+            try (OutputStream os = conn.getOutputStream()) {
+                os.write(body);
+            }
+
+            int status = conn.getResponseCode();
+            byte[] answer;
+            // Reading the error stream fully as well lets the connection go back to the keep-alive cache
+            try (InputStream is = status < 400 ? conn.getInputStream() : conn.getErrorStream()) {
+                answer = readAll(is);
+            }
+            return new Response(status, conn.getContentType(), answer, System.nanoTime() + ttl, machineRef);
+        } finally {
+            upstreamActive.decrementAndGet();
+            upstreamSlots.release();
+        }
+    }
+
+    private static String toUuid(String nameOrId) {
+        try {
+            return UUID.fromString(StringUtils.strip(nameOrId, "{}")).toString();
+        } catch (IllegalArgumentException | NullPointerException e) {
+            // A machine name
+            return null;
+        }
+    }
+
+    private void learn(String uuid, String ref) {
+        if (StringUtils.isNotBlank(uuid) && StringUtils.isNotBlank(ref)) {
+            machineRefs.computeIfAbsent(uuid, k -> ConcurrentHashMap.newKeySet()).add(ref);
+        }
+    }
+
+    /**
+     * Follow the machines, sessions and events seen in a call forwarded upstream.
+     */
+    private void observe(Request request, Response response) {
+        if (Objects.isNull(request.operation) || response.status != 200) {
+            return;
+        }
+
+        String ref = request.params.get("_this");
+        String answer = StringUtils.substringBetween(new String(response.body, StandardCharsets.UTF_8), "<returnval>", "</returnval>");
+        switch (request.operation) {
+            case "IMachine_getId":
+                learn(answer, ref);
+                break;
+            case "IVirtualBox_findMachine":
+                learn(toUuid(request.params.get("nameOrId")), answer);
+                break;
+            case "IMachineEvent_getMachineId":
+                // Every machine event, state and settings changes included, carries the machine UUID
+                if (StringUtils.isNotBlank(answer)) {
+                    invalidateMachine(answer);
+                }
+                break;
+            case "ISession_getMachine":
+                String locked = StringUtils.isBlank(ref) ? null : sessionMachines.get(ref);
+                if (Objects.nonNull(locked) && StringUtils.isNotBlank(answer)) {
+                    sessionMachineRefs.put(answer, locked);
+                }
+                break;
+            case "ISession_unlockMachine":
+                sessionMachines.remove(ref);
+                break;
+            case "IManagedObjectRef_release":
+                sessionMachines.remove(ref);
+                sessionMachineRefs.remove(ref);
+                break;
+            default:
+                // IMachine_lockMachine and IMachine_launchVMProcess tie a session to the machine
+                String session = request.params.get("session");
+                if (StringUtils.startsWith(request.operation, "IMachine_") && StringUtils.isNotBlank(session) && StringUtils.isNotBlank(ref)) {
+                    sessionMachines.put(session, ref);
+                }
+        }
+    }
+
+    private void store(String key, Response response) {
+        if (cache.size() >= cacheMax) {
+            long now = System.nanoTime();
+            cache.values().removeIf(cached -> now - cached.expireAt >= 0);
+            if (cache.size() >= cacheMax) {
+                return;
+            }
+        }
+
+        cache.put(key, response);
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        boolean headersSent = false;
+        try {
+            byte[] body;
+            try (InputStream is = exchange.getRequestBody()) {
+                body = readAll(is);
+            }
+
+            Request request = parse(body);
+            Response response;
+            if (Objects.nonNull(request.operation) && cachedOps.contains(request.operation)) {
+                String key = request.getKey();
+                Response cached = cache.get(key);
+                if (Objects.nonNull(cached) && System.nanoTime() - cached.expireAt < 0) {
+                    hits.incrementAndGet();
+                    response = cached;
+                } else {
+                    misses.incrementAndGet();
+                    response = forward(exchange, body, request.params.get("_this"));
+                    if (response.status == 200) {
+                        store(key, response);
+                    }
+                    observe(request, response);
+                }
+            } else {
+                passes.incrementAndGet();
+                response = forward(exchange, body, null);
+                observe(request, response);
+                if (!isRead(request.operation)) {
+                    invalidateRef(request.params.get("_this"));
+                }
+            }
+
+            if (Objects.nonNull(response.contentType)) {
+                exchange.getResponseHeaders().set("Content-Type", response.contentType);
+            }
+            headersSent = true;
+            exchange.sendResponseHeaders(response.status, response.body.length == 0 ? -1 : response.body.length);
+            try (OutputStream os = exchange.getResponseBody()) {
+                os.write(response.body);
+            }
+        } catch (IOException | RuntimeException e) {
+            Logger.debug("VBox WS proxy call failed: " + e.getMessage());
+            // Once the headers are out, the reply can only be cut short
+            if (!headersSent) {
+                exchange.sendResponseHeaders(502, -1);
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    public synchronized void start() {
+        if (Objects.nonNull(server)) {
+            return;
+        }
+
+        try {
+            server = HttpServer.create(new InetSocketAddress(host, port), 0);
+        } catch (IOException e) {
+            throw new HypervisorException("Unable to start the VBox WS proxy on " + host + ":" + port + ": " + e.getMessage(), e);
+        }
+        executor = Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, "vbox-websrv-proxy");
+            t.setDaemon(true);
+            return t;
+        });
+        server.setExecutor(executor);
+        server.createContext("/", this::handle);
+        server.start();
+        port = server.getAddress().getPort();
+        Logger.info("VBox WS proxy listening on " + host + ":" + port + " for port " + upstreamPort);
+    }
+
+    public synchronized void stop() {
+        if (Objects.isNull(server)) {
+            return;
+        }
+
+        server.stop(0);
+        executor.shutdownNow();
+        server = null;
+        cache.clear();
+        machineRefs.clear();
+        sessionMachines.clear();
+        sessionMachineRefs.clear();
+    }
+
+    public synchronized boolean isRunning() {
+        return Objects.nonNull(server);
+    }
+
+    /**
+     * Drop the cached answers about the object, and about its machine if it is a known machine reference or the machine of a session.
+     */
+    private void invalidateRef(String ref) {
+        if (StringUtils.isBlank(ref)) {
+            return;
+        }
+
+        dropRef(ref);
+        String locked = sessionMachineRefs.get(ref);
+        if (Objects.nonNull(locked)) {
+            dropRef(locked);
+        }
+    }
+
+    private void dropRef(String ref) {
+        for (Map.Entry<String, Set<String>> machine : machineRefs.entrySet()) {
+            if (machine.getValue().contains(ref)) {
+                invalidateMachine(machine.getKey());
+            }
+        }
+        cache.values().removeIf(response -> ref.equals(response.machineRef));
+    }
+
+    /**
+     * Drop the cached answers about the machine, for callers that learn it changed.
+     */
+    public void invalidateMachine(String uuid) {
+        Set<String> refs = machineRefs.get(uuid);
+        if (Objects.nonNull(refs)) {
+            cache.values().removeIf(response -> refs.contains(response.machineRef));
+        }
+    }
+
+    public void invalidateAll() {
+        cache.clear();
+    }
+
+    @Override
+    public void invalidate() {
+        cache.clear();
+        machineRefs.clear();
+        sessionMachines.clear();
+        sessionMachineRefs.clear();
+    }
+
+    public String getHost() {
+        return host;
+    }
+
+    /**
+     * @return the port clients connect to.
+     */
+    public int getPort() {
+        return port;
+    }
+
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    /**
+     * @return the number of calls forwarded without looking at the cache.
+     */
+    public long getPassCount() {
+        return passes.get();
+    }
+
+    /**
+     * @return the share of cacheable calls answered from the cache, between 0 and 1.
+     */
+    public double getHitRatio() {
+        long h = hits.get();
+        long total = h + misses.get();
+        return total == 0 ? 0 : (double) h / total;
+    }
+
+    public int getUpstreamActive() {
+        return upstreamActive.get();
+    }
+
+    public int getUpstreamPeak() {
+        return upstreamPeak.get();
+    }
+
+    public int getUpstreamMax() {
+        return upstreamMax;
+    }
+
+}
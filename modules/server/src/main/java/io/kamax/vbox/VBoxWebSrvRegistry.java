@@ -0,0 +1,211 @@
+/*
+ * Hyperbox - Virtual Infrastructure Manager
+ * Copyright (C) 2021 Maxime Dor
+ *
+ * http://kamax.io/hbox/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.kamax.vbox;
+
+import io.kamax.tools.logging.Logger;
+import io.kamax.vbox.utils.ConfigUtils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Owns every started VirtualBox Web Service process and stops them all when the JVM exits.
+ * <p>
+ * A single shutdown hook is installed on the first registration. It stops all the registered instances in parallel within
+ * {@code vbox.exec.web.shutdown.timeout} milliseconds: instances are asked to stop, and those still running after half of that time
+ * are killed forcibly.
+ * </p>
+ */
+public class VBoxWebSrvRegistry {
+
+    public static class ShutdownReport {
+
+        private final List<_VBoxWebSrv> stopped;
+        private final List<_VBoxWebSrv> escalated;
+        private final List<_VBoxWebSrv> failed;
+        private final long duration;
+
+        private ShutdownReport(List<_VBoxWebSrv> stopped, List<_VBoxWebSrv> escalated, List<_VBoxWebSrv> failed, long duration) {
+            this.stopped = Collections.unmodifiableList(stopped);
+            this.escalated = Collections.unmodifiableList(escalated);
+            this.failed = Collections.unmodifiableList(failed);
+            this.duration = duration;
+        }
+
+        /**
+         * @return the instances that are not running anymore, including the escalated ones.
+         */
+        public List<_VBoxWebSrv> getStopped() {
+            return stopped;
+        }
+
+        /**
+         * @return the instances that did not stop in time and had to be killed forcibly.
+         */
+        public List<_VBoxWebSrv> getEscalated() {
+            return escalated;
+        }
+
+        /**
+         * @return the instances still running at the deadline.
+         */
+        public List<_VBoxWebSrv> getFailed() {
+            return failed;
+        }
+
+        /**
+         * @return how long the shutdown took, in milliseconds.
+         */
+        public long getDuration() {
+            return duration;
+        }
+
+    }
+
+    private static final Set<_VBoxWebSrv> instances = ConcurrentHashMap.newKeySet();
+    private static final AtomicBoolean hookInstalled = new AtomicBoolean();
+
+    public static void register(_VBoxWebSrv srv) {
+        if (hookInstalled.compareAndSet(false, true)) {
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> stopAll(), "vbox-websrv-shutdown"));
+        }
+
+        instances.add(srv);
+    }
+
+    public static void unregister(_VBoxWebSrv srv) {
+        instances.remove(srv);
+    }
+
+    public static List<_VBoxWebSrv> getInstances() {
+        return new ArrayList<>(instances);
+    }
+
+    public static ShutdownReport stopAll() {
+        return stopAll(ConfigUtils.getLong("vbox.exec.web.shutdown.timeout", 3000L));
+    }
+
+    private static boolean isAnyRunning(List<_VBoxWebSrv> targets) {
+        for (_VBoxWebSrv srv : targets) {
+            if (srv.isRunning()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void waitUntil(List<_VBoxWebSrv> targets, long deadline) {
+        while (isAnyRunning(targets) && System.nanoTime() < deadline) {
+            try {
+                Thread.sleep(10L);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    private static void killForcibly(_VBoxWebSrv srv) {
+        try {
+            if (srv instanceof VBoxWebSrv) {
+                ((VBoxWebSrv) srv).killForcibly();
+            } else {
+                srv.kill();
+            }
+        } catch (RuntimeException e) {
+            Logger.warning("Unable to kill VBox WS process", e);
+        }
+    }
+
+    /**
+     * Stop all the registered instances in parallel.
+     *
+     * @param timeout the time allowed for all the instances to stop, in milliseconds.
+     * @return which instances stopped, needed to be killed forcibly or are still running.
+     */
+    public static ShutdownReport stopAll(long timeout) {
+        long start = System.nanoTime();
+        List<_VBoxWebSrv> targets = getInstances();
+        if (targets.isEmpty()) {
+            return new ShutdownReport(targets, new ArrayList<>(), new ArrayList<>(), 0);
+        }
+
+        Logger.info("Stopping " + targets.size() + " VBox WS process(es) within " + timeout + " ms");
+        ExecutorService executor = Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(r, "vbox-websrv-stop");
+            t.setDaemon(true);
+            return t;
+        });
+        try {
+            for (_VBoxWebSrv srv : targets) {
+                executor.execute(() -> {
+                    try {
+                        srv.stop();
+                    } catch (RuntimeException e) {
+                        Logger.warning("Unable to stop VBox WS process", e);
+                    }
+                });
+            }
+            waitUntil(targets, start + TimeUnit.MILLISECONDS.toNanos(timeout / 2));
+
+            List<_VBoxWebSrv> escalated = new ArrayList<>();
+            for (_VBoxWebSrv srv : targets) {
+                if (srv.isRunning()) {
+                    escalated.add(srv);
+                    killForcibly(srv);
+                }
+            }
+            waitUntil(escalated, start + TimeUnit.MILLISECONDS.toNanos(timeout));
+
+            List<_VBoxWebSrv> stopped = new ArrayList<>();
+            List<_VBoxWebSrv> failed = new ArrayList<>();
+            for (_VBoxWebSrv srv : targets) {
+                if (srv.isRunning()) {
+                    failed.add(srv);
+                } else {
+                    stopped.add(srv);
+                    instances.remove(srv);
+                }
+            }
+
+            long duration = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            for (_VBoxWebSrv srv : escalated) {
+                Logger.warning("VBox WS process " + srv + " did not stop in time and was killed forcibly");
+            }
+            for (_VBoxWebSrv srv : failed) {
+                Logger.warning("VBox WS process " + srv + " is still running after " + timeout + " ms");
+            }
+            Logger.info("Stopped " + stopped.size() + "/" + targets.size() + " VBox WS process(es) in " + duration + " ms, "
+                    + escalated.size() + " killed forcibly");
+            return new ShutdownReport(stopped, escalated, failed, duration);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+}
@@ -0,0 +1,193 @@
+/*
+ * Hyperbox - Virtual Infrastructure Manager
+ * Copyright (C) 2021 Maxime Dor
+ *
+ * http://kamax.io/hbox/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.kamax.vbox;
+
+import io.kamax.tools.logging.Logger;
+import io.kamax.vbox.utils.ConfigUtils;
+import io.kamax.vbox.utils.LatencyHistogram;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Durations of the phases of one VirtualBox Web Service start.
+ * <p>
+ * Every finished start is also added to histograms shared by all instances, see {@link #getHistogram(Phase)}. A start slower than
+ * {@code vbox.exec.web.startup.slowThreshold} milliseconds is logged as a warning.
+ * </p>
+ */
+public class VBoxWebSrvStartupStats {
+
+    public enum Phase {
+
+        /**
+         * Finding a valid executable among the candidate paths.
+         */
+        LocateExecutable("locateExecutable"),
+
+        /**
+         * Selecting a port and checking it is free.
+         */
+        PortProbe("portProbe"),
+
+        /**
+         * Spawning the process.
+         */
+        Spawn("spawn"),
+
+        /**
+         * From the spawn to the first line of output.
+         */
+        FirstOutput("firstOutput"),
+
+        /**
+         * From the first line of output to the listening socket being reported.
+         */
+        Ready("ready"),
+
+        /**
+         * From the call to start to the service being ready.
+         */
+        Total("total");
+
+        private final String id;
+
+        Phase(String id) {
+            this.id = id;
+        }
+
+        public String getId() {
+            return id;
+        }
+
+    }
+
+    private static final Map<Phase, LatencyHistogram> histograms = new EnumMap<>(Phase.class);
+
+    static {
+        for (Phase phase : Phase.values()) {
+            histograms.put(phase, new LatencyHistogram());
+        }
+    }
+
+    /**
+     * @return the durations of the given phase across all the starts of all instances.
+     */
+    public static LatencyHistogram getHistogram(Phase phase) {
+        return histograms.get(phase);
+    }
+
+    private final String host;
+    private final long startTs = System.nanoTime();
+    private final AtomicLongArray endTs = new AtomicLongArray(Phase.values().length);
+    private volatile int port;
+    private volatile String result;
+
+    VBoxWebSrvStartupStats(String host, int port) {
+        this.host = host;
+        this.port = port;
+        for (int i = 0; i < endTs.length(); i++) {
+            endTs.set(i, -1);
+        }
+    }
+
+    void setPort(int port) {
+        this.port = port;
+    }
+
+    /**
+     * Mark the end of the given phase. Only the first call for a phase is kept.
+     */
+    void mark(Phase phase) {
+        endTs.compareAndSet(phase.ordinal(), -1, System.nanoTime());
+    }
+
+    synchronized void finish(String result) {
+        if (isFinished()) {
+            return;
+        }
+
+        this.result = result;
+        if ("ok".equals(result) || "adopted".equals(result)) {
+            mark(Phase.Total);
+        }
+
+        StringBuilder b = new StringBuilder("event=vboxwebsrv.startup host=").append(host).append(" port=").append(port)
+                .append(" result=").append(result);
+        for (Phase phase : Phase.values()) {
+            long duration = getDuration(phase, TimeUnit.NANOSECONDS);
+            if (duration >= 0) {
+                histograms.get(phase).recordNanos(duration);
+                b.append(" ").append(phase.getId()).append("Ms=").append(TimeUnit.NANOSECONDS.toMillis(duration));
+            }
+        }
+
+        long total = getDuration(Phase.Total, TimeUnit.MILLISECONDS);
+        if (total > ConfigUtils.getLong("vbox.exec.web.startup.slowThreshold", 3000L)) {
+            Logger.warning("Slow VBox WebSrv start: " + b);
+        } else {
+            Logger.info(b.toString());
+        }
+    }
+
+    public boolean isFinished() {
+        return result != null;
+    }
+
+    /**
+     * @return how the start ended: ok, adopted, failed, or null if still in progress.
+     */
+    public String getResult() {
+        return result;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    /**
+     * @return the duration of the phase, or -1 if the phase was not reached.
+     */
+    public long getDuration(Phase phase, TimeUnit unit) {
+        long end = endTs.get(phase.ordinal());
+        if (end < 0) {
+            return -1;
+        }
+
+        if (Phase.Total.equals(phase)) {
+            return unit.convert(end - startTs, TimeUnit.NANOSECONDS);
+        }
+
+        // A phase starts when the last reached phase before it ended. Output can be read before the spawn call returns, hence the floor.
+        long begin = startTs;
+        for (int i = phase.ordinal() - 1; i >= 0; i--) {
+            long previous = endTs.get(i);
+            if (previous >= 0) {
+                begin = previous;
+                break;
+            }
+        }
+        return unit.convert(Math.max(0, end - begin), TimeUnit.NANOSECONDS);
+    }
+
+}
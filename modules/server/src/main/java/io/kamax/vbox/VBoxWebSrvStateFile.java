@@ -0,0 +1,203 @@
+/*
+ * Hyperbox - Virtual Infrastructure Manager
+ * Copyright (C) 2021 Maxime Dor
+ *
+ * http://kamax.io/hbox/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.kamax.vbox;
+
+import io.kamax.hbox.exception.HypervisorException;
+import io.kamax.tools.logging.Logger;
+import io.kamax.vbox.utils.RuntimeFiles;
+import org.apache.commons.lang3.StringUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.util.Objects;
+import java.util.Properties;
+
+/**
+ * Records a running VirtualBox Web Service process so a later start can attach to it instead of spawning a new one.
+ * <p>
+ * The file is kept in {@code vbox.exec.web.stateDir}, a directory of the current user by default (see {@link RuntimeFiles}), and is
+ * named after the host and port the process listens on. Process checks rely on {@code /proc} and are only available on Linux.
+ * </p>
+ */
+public class VBoxWebSrvStateFile {
+
+    private static final File procDir = new File("/proc");
+
+    private long pid;
+    private String host;
+    private int port;
+    private String execPath;
+    private long startTime;
+
+    /**
+     * @throws HypervisorException if the state directory cannot be used.
+     */
+    public static File getLocation(String host, int port) {
+        try {
+            File dir = RuntimeFiles.getDir("vbox.exec.web.stateDir").toFile();
+            return new File(dir, "hbox-vboxwebsrv-" + host.replaceAll("[^A-Za-z0-9.-]", "_") + "-" + port + ".state");
+        } catch (IOException e) {
+            throw new HypervisorException("Unable to use the VBox WS state directory: " + e.getMessage(), e);
+        }
+    }
+
+    public static boolean isSupported() {
+        return procDir.isDirectory();
+    }
+
+    public static boolean isAlive(long pid) {
+        return new File(procDir, Long.toString(pid)).isDirectory();
+    }
+
+    /**
+     * @return the pid of the process, or -1 if the runtime does not expose it.
+     */
+    public static long getPid(Process process) {
+        try {
+            // Java 9 and later
+            return (Long) Process.class.getMethod("pid").invoke(process);
+        } catch (ReflectiveOperationException e) {
+            try {
+                java.lang.reflect.Field field = process.getClass().getDeclaredField("pid");
+                field.setAccessible(true);
+                return field.getInt(process);
+            } catch (ReflectiveOperationException | RuntimeException e1) {
+                Logger.debug("Unable to get the pid of the VBox WS process: " + e1.getMessage());
+                return -1;
+            }
+        }
+    }
+
+    public static VBoxWebSrvStateFile load(File location) {
+        if (!Files.isRegularFile(location.toPath(), LinkOption.NOFOLLOW_LINKS)) {
+            return null;
+        }
+
+        try {
+            Properties props = RuntimeFiles.load(location.toPath());
+            VBoxWebSrvStateFile state = new VBoxWebSrvStateFile();
+            state.pid = Long.parseLong(props.getProperty("pid"));
+            state.host = props.getProperty("host");
+            state.port = Integer.parseInt(props.getProperty("port"));
+            state.execPath = props.getProperty("exec");
+            state.startTime = Long.parseLong(props.getProperty("startTime"));
+            return state;
+        } catch (IOException | RuntimeException e) {
+            Logger.warning("Ignoring invalid VBox WS state file " + location + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    public VBoxWebSrvStateFile() {
+        // for load()
+    }
+
+    public VBoxWebSrvStateFile(long pid, String host, int port, String execPath) {
+        this.pid = pid;
+        this.host = host;
+        this.port = port;
+        this.execPath = execPath;
+        this.startTime = System.currentTimeMillis();
+    }
+
+    public void save(File location) {
+        Properties props = new Properties();
+        props.setProperty("pid", Long.toString(pid));
+        props.setProperty("host", host);
+        props.setProperty("port", Integer.toString(port));
+        props.setProperty("exec", execPath);
+        props.setProperty("startTime", Long.toString(startTime));
+
+        try {
+            RuntimeFiles.store(location.toPath(), props, "VirtualBox Web Service process started by Hyperbox");
+        } catch (IOException e) {
+            Logger.warning("Unable to save VBox WS state file " + location, e);
+        }
+    }
+
+    /**
+     * Check that the recorded pid still belongs to a process of the current user, started from the recorded executable with the
+     * recorded port, so a recycled pid or another user's process is not mistaken for the web service.
+     */
+    public boolean matchesProcess() {
+        if (!isAlive(pid)) {
+            return false;
+        }
+
+        File procPid = new File(procDir, Long.toString(pid));
+        try {
+            Object owner = Files.getAttribute(procPid.toPath(), "unix:uid", LinkOption.NOFOLLOW_LINKS);
+            Object self = Files.getAttribute(new File(procDir, "self").toPath(), "unix:uid");
+            if (!Objects.equals(owner, self)) {
+                Logger.debug("Process " + pid + " belongs to uid " + owner + ", not to the current uid " + self);
+                return false;
+            }
+
+            byte[] raw = Files.readAllBytes(new File(procPid, "cmdline").toPath());
+            String[] argv = new String(raw, StandardCharsets.UTF_8).split("\0");
+            String exec = new File(execPath).getCanonicalPath();
+
+            // Scripts and wrappers show up behind their interpreter, so the executable can be the first or second argument
+            boolean execFound = false;
+            for (int i = 0; i < Math.min(2, argv.length); i++) {
+                if (StringUtils.isNotBlank(argv[i]) && Objects.equals(exec, new File(argv[i]).getCanonicalPath())) {
+                    execFound = true;
+                }
+            }
+
+            boolean portFound = false;
+            for (int i = 0; i < argv.length - 1; i++) {
+                if ("-p".equals(argv[i]) && Integer.toString(port).equals(argv[i + 1])) {
+                    portFound = true;
+                }
+            }
+
+            return execFound && portFound;
+        } catch (IOException | UnsupportedOperationException | IllegalArgumentException e) {
+            Logger.debug("Unable to check the owner and command line of pid " + pid + ": " + e.getMessage());
+            return false;
+        }
+    }
+
+    public long getPid() {
+        return pid;
+    }
+
+    public String getHost() {
+        return host;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public String getExecPath() {
+        return execPath;
+    }
+
+    public long getStartTime() {
+        return startTime;
+    }
+
+}
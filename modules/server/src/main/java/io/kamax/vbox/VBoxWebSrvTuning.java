@@ -0,0 +1,174 @@
+/*
+ * Hyperbox - Virtual Infrastructure Manager
+ * Copyright (C) 2021 Maxime Dor
+ *
+ * http://kamax.io/hbox/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.kamax.vbox;
+
+import io.kamax.hbox.Configuration;
+import io.kamax.hbox.exception.HypervisorException;
+import io.kamax.vbox.utils.ConfigUtils;
+import org.apache.commons.lang3.StringUtils;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Worker and session settings of the VirtualBox Web Service process.
+ * <p>
+ * Each value is read from {@code vbox.exec.web.threads}, {@code vbox.exec.web.keepalive}, {@code vbox.exec.web.timeout} and
+ * {@code vbox.exec.web.checkInterval}. A value of {@code auto}, the default, is derived from the available cores and the expected
+ * number of clients given in {@code vbox.exec.web.clients}. A negative value leaves the vboxwebsrv default in place.
+ * </p>
+ */
+public class VBoxWebSrvTuning {
+
+    public static final String AUTO = "auto";
+
+    private static final int defaultClients = 16;
+    private static final int defaultTimeout = 300;
+
+    private int threads = -1;
+    private int keepalive = -1;
+    private int timeout = -1;
+    private int checkInterval = -1;
+
+    private static int clamp(int value, int min, int max) {
+        return Math.max(min, Math.min(max, value));
+    }
+
+    /**
+     * Derive the settings from the host and the expected load.
+     *
+     * @param cores   the number of cores available to the web service.
+     * @param clients the number of clients expected to call the web service concurrently.
+     * @return the derived settings.
+     */
+    public static VBoxWebSrvTuning auto(int cores, int clients) {
+        VBoxWebSrvTuning tuning = new VBoxWebSrvTuning();
+        tuning.threads = autoThreads(cores, clients);
+        tuning.keepalive = autoKeepalive(clients);
+        tuning.timeout = defaultTimeout;
+        tuning.checkInterval = autoCheckInterval(tuning.timeout);
+        return tuning;
+    }
+
+    // Calls mostly wait on VBoxSVC, so several workers per core still pay off, and each client should find a free worker
+    private static int autoThreads(int cores, int clients) {
+        return clamp(Math.max(cores * 8, clients * 2), 16, 1024);
+    }
+
+    // Reconnecting costs a TCP handshake per call, so let busy clients keep their connection for longer
+    private static int autoKeepalive(int clients) {
+        return clamp(clients * 20, 100, 10000);
+    }
+
+    private static int autoCheckInterval(int timeout) {
+        return clamp(timeout / 60, 1, 30);
+    }
+
+    private static int getValue(String key, int autoValue) {
+        String value = Configuration.getSetting(key);
+        if (StringUtils.isBlank(value) || StringUtils.equalsIgnoreCase(AUTO, value.trim())) {
+            return autoValue;
+        }
+
+        return ConfigUtils.getInt(key, autoValue);
+    }
+
+    public static VBoxWebSrvTuning fromConfiguration() {
+        int cores = Runtime.getRuntime().availableProcessors();
+        int clients = ConfigUtils.getInt("vbox.exec.web.clients", defaultClients);
+        if (clients < 1) {
+            throw new HypervisorException("Invalid value for vbox.exec.web.clients: " + clients);
+        }
+
+        VBoxWebSrvTuning tuning = new VBoxWebSrvTuning();
+        tuning.threads = getValue("vbox.exec.web.threads", autoThreads(cores, clients));
+        tuning.keepalive = getValue("vbox.exec.web.keepalive", autoKeepalive(clients));
+        tuning.timeout = getValue("vbox.exec.web.timeout", defaultTimeout);
+        tuning.checkInterval = getValue("vbox.exec.web.checkInterval", autoCheckInterval(tuning.timeout < 0 ? defaultTimeout : tuning.timeout));
+        return tuning;
+    }
+
+    public int getThreads() {
+        return threads;
+    }
+
+    public void setThreads(int threads) {
+        this.threads = threads;
+    }
+
+    public int getKeepalive() {
+        return keepalive;
+    }
+
+    public void setKeepalive(int keepalive) {
+        this.keepalive = keepalive;
+    }
+
+    public int getTimeout() {
+        return timeout;
+    }
+
+    public void setTimeout(int timeout) {
+        this.timeout = timeout;
+    }
+
+    public int getCheckInterval() {
+        return checkInterval;
+    }
+
+    public void setCheckInterval(int checkInterval) {
+        this.checkInterval = checkInterval;
+    }
+
+    /**
+     * @return the vboxwebsrv arguments for the settings that are not left to their default.
+     */
+    public List<String> getArguments() {
+        List<String> args = new ArrayList<>();
+        if (threads >= 0) {
+            args.add("-T"); // maximum worker threads
+            args.add(Integer.toString(threads));
+        }
+        if (keepalive >= 0) {
+            args.add("-k"); // maximum requests per connection
+            args.add(Integer.toString(keepalive));
+        }
+        if (timeout >= 0) {
+            args.add("-t"); // session timeout in seconds
+            args.add(Integer.toString(timeout));
+        }
+        if (checkInterval >= 0) {
+            args.add("-i"); // session timeout check interval in seconds
+            args.add(Integer.toString(checkInterval));
+        }
+        return args;
+    }
+
+    private static String describe(int value) {
+        return value < 0 ? "default" : Integer.toString(value);
+    }
+
+    @Override
+    public String toString() {
+        return "threads=" + describe(threads) + " keepalive=" + describe(keepalive) + " timeout=" + describe(timeout) + "s checkInterval=" + describe(checkInterval) + "s";
+    }
+
+}
@@ -0,0 +1,311 @@
+/*
+ * Hyperbox - Virtual Infrastructure Manager
+ * Copyright (C) 2021 Maxime Dor
+ *
+ * http://kamax.io/hbox/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.kamax.vbox;
+
+import io.kamax.tools.logging.Logger;
+import io.kamax.tools.net.NetUtil;
+import io.kamax.vbox.utils.ConfigUtils;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Objects;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps a VirtualBox Web Service process alive.
+ * <p>
+ * The process is checked every {@code vbox.exec.web.watchdog.interval} milliseconds. When it exited or its liveness probe fails,
+ * it is restarted on the same port after a jittered exponential backoff, between {@code vbox.exec.web.watchdog.backoff.min} and
+ * {@code vbox.exec.web.watchdog.backoff.max} milliseconds. If it fails {@code vbox.exec.web.watchdog.crashLoop.count} times within
+ * {@code vbox.exec.web.watchdog.crashLoop.window} milliseconds, the circuit breaker trips and no further restart is attempted
+ * until {@link #reset()} is called or {@code vbox.exec.web.watchdog.crashLoop.cooldown} milliseconds have passed.
+ * </p>
+ */
+public class VBoxWebSrvWatchdog {
+
+    public enum State {
+        Stopped,
+        Running,
+        Recovering,
+        Tripped
+    }
+
+    public interface Probe {
+
+        boolean isAlive(_VBoxWebSrv srv);
+
+    }
+
+    /**
+     * Considers the service alive when something accepts connections on its port.
+     */
+    public static Probe portProbe(String host) {
+        return srv -> !NetUtil.isPortAvailable(host, srv.getPort());
+    }
+
+    /**
+     * Considers the service alive as long as its process runs and reported being started.
+     */
+    public static Probe processProbe() {
+        return srv -> _VBoxWebSrv.State.Started.equals(srv.getState());
+    }
+
+    private final _VBoxWebSrv srv;
+    private final Probe probe;
+    private ScheduledExecutorService scheduler;
+
+    private final long checkInterval = ConfigUtils.getLong("vbox.exec.web.watchdog.interval", 1000L);
+    private final long backoffMin = ConfigUtils.getLong("vbox.exec.web.watchdog.backoff.min", 500L);
+    private final long backoffMax = ConfigUtils.getLong("vbox.exec.web.watchdog.backoff.max", 30000L);
+    private final int crashLoopCount = ConfigUtils.getInt("vbox.exec.web.watchdog.crashLoop.count", 5);
+    private final long crashLoopWindow = ConfigUtils.getLong("vbox.exec.web.watchdog.crashLoop.window", 60000L);
+    private final long crashLoopCooldown = ConfigUtils.getLong("vbox.exec.web.watchdog.crashLoop.cooldown", 300000L);
+
+    private final Deque<Long> failures = new ArrayDeque<>();
+    private volatile State state = State.Stopped;
+    private ScheduledFuture<?> checkTask;
+    private int attempt = 0;
+    private long downSince = 0;
+    private long trippedAt = 0;
+
+    private volatile long restartCount = 0;
+    private volatile long failureCount = 0;
+    private volatile long tripCount = 0;
+    private volatile long recoveryCount = 0;
+    private volatile long recoveryTimeTotal = 0;
+    private volatile long recoveryTimeLast = 0;
+    private volatile long recoveryTimeMax = 0;
+
+    public VBoxWebSrvWatchdog(_VBoxWebSrv srv) {
+        this(srv, processProbe());
+    }
+
+    public VBoxWebSrvWatchdog(_VBoxWebSrv srv, Probe probe) {
+        this.srv = Objects.requireNonNull(srv);
+        this.probe = Objects.requireNonNull(probe);
+    }
+
+    private boolean isStarting() {
+        return _VBoxWebSrv.State.Starting.equals(srv.getState());
+    }
+
+    public synchronized void start() {
+        if (!State.Stopped.equals(state)) {
+            Logger.warning("VBox WebSrv watchdog is already running, ignoring call to start again");
+            return;
+        }
+
+        Logger.info("Starting VBox WebSrv watchdog");
+        // One thread per run, released by stop() once the service is stopped
+        ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, r -> {
+            Thread t = new Thread(r, "vbox-websrv-watchdog");
+            t.setDaemon(true);
+            return t;
+        });
+        executor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+        scheduler = executor;
+        state = State.Recovering;
+        scheduler.execute(this::restart);
+        checkTask = scheduler.scheduleWithFixedDelay(this::check, checkInterval, checkInterval, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void stop() {
+        if (State.Stopped.equals(state)) {
+            return;
+        }
+
+        Logger.info("Stopping VBox WebSrv watchdog");
+        state = State.Stopped;
+        if (Objects.nonNull(checkTask)) {
+            checkTask.cancel(false);
+        }
+        // Pending restarts are dropped, the stop still runs after any restart in progress
+        scheduler.execute(srv::stop);
+        scheduler.shutdown();
+    }
+
+    /**
+     * Close the circuit breaker after a crash loop and try to start the service again.
+     */
+    public synchronized void reset() {
+        if (!State.Tripped.equals(state)) {
+            return;
+        }
+
+        Logger.info("VBox WebSrv watchdog circuit breaker was reset");
+        failures.clear();
+        attempt = 0;
+        state = State.Recovering;
+        scheduler.execute(this::restart);
+    }
+
+    private synchronized void check() {
+        if (State.Tripped.equals(state)) {
+            if (System.currentTimeMillis() - trippedAt >= crashLoopCooldown) {
+                Logger.info("VBox WebSrv watchdog cooldown is over, trying to start the service again");
+                attempt = 0;
+                state = State.Recovering;
+                scheduler.execute(this::restart);
+            }
+            return;
+        }
+
+        if (!State.Running.equals(state) || isStarting()) {
+            return;
+        }
+
+        boolean alive;
+        try {
+            alive = srv.isRunning() && probe.isAlive(srv);
+        } catch (RuntimeException e) {
+            Logger.warning("VBox WebSrv liveness probe failed", e);
+            alive = false;
+        }
+
+        if (!alive) {
+            Logger.warning("VBox WebSrv is not alive anymore, recovering");
+            downSince = System.currentTimeMillis();
+            onFailure();
+        }
+    }
+
+    private synchronized void onFailure() {
+        if (State.Stopped.equals(state)) {
+            return;
+        }
+
+        failureCount++;
+        long now = System.currentTimeMillis();
+        failures.addLast(now);
+        while (!failures.isEmpty() && now - failures.peekFirst() > crashLoopWindow) {
+            failures.removeFirst();
+        }
+
+        if (failures.size() >= crashLoopCount) {
+            Logger.warning("VBox WebSrv failed " + failures.size() + " times within " + crashLoopWindow + " ms, circuit breaker tripped");
+            tripCount++;
+            trippedAt = now;
+            state = State.Tripped;
+            scheduler.execute(srv::stop);
+            return;
+        }
+
+        long delay = getBackoff(attempt++);
+        restartCount++;
+        Logger.info("Restarting VBox WebSrv in " + delay + " ms (attempt " + attempt + ")");
+        state = State.Recovering;
+        scheduler.schedule(this::restart, delay, TimeUnit.MILLISECONDS);
+    }
+
+    long getBackoff(int attempt) {
+        long ceiling = backoffMin << Math.min(attempt, 30);
+        if (ceiling <= 0 || ceiling > backoffMax) {
+            ceiling = backoffMax;
+        }
+
+        // Equal jitter: never less than half the exponential delay, so restarts of several instances do not line up
+        long half = ceiling / 2;
+        return half + ThreadLocalRandom.current().nextLong(ceiling - half + 1);
+    }
+
+    private void restart() {
+        synchronized (this) {
+            if (!State.Recovering.equals(state)) {
+                return;
+            }
+
+            if (downSince == 0) {
+                downSince = System.currentTimeMillis();
+            }
+        }
+
+        try {
+            srv.stop();
+        } catch (RuntimeException e) {
+            Logger.warning("Unable to stop VBox WebSrv before restart", e);
+        }
+
+        try {
+            srv.start();
+            onRecovered();
+        } catch (RuntimeException e) {
+            Logger.warning("Unable to restart VBox WebSrv: " + e.getMessage());
+            onFailure();
+        }
+    }
+
+    private synchronized void onRecovered() {
+        if (!State.Recovering.equals(state)) {
+            return;
+        }
+
+        // Running first, so whoever sees the recovery counted also sees the watchdog running
+        state = State.Running;
+        long elapsed = System.currentTimeMillis() - downSince;
+        if (attempt > 0) {
+            recoveryCount++;
+            recoveryTimeTotal += elapsed;
+            recoveryTimeLast = elapsed;
+            recoveryTimeMax = Math.max(recoveryTimeMax, elapsed);
+            Logger.info("VBox WebSrv recovered in " + elapsed + " ms");
+        }
+        downSince = 0;
+        attempt = 0;
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    public long getRestartCount() {
+        return restartCount;
+    }
+
+    public long getFailureCount() {
+        return failureCount;
+    }
+
+    public long getTripCount() {
+        return tripCount;
+    }
+
+    public long getRecoveryCount() {
+        return recoveryCount;
+    }
+
+    public long getLastTimeToRecover() {
+        return recoveryTimeLast;
+    }
+
+    public long getMaxTimeToRecover() {
+        return recoveryTimeMax;
+    }
+
+    public long getAverageTimeToRecover() {
+        long count = recoveryCount;
+        return count == 0 ? 0 : recoveryTimeTotal / count;
+    }
+
+}
@@ -20,16 +20,88 @@
 
 package io.kamax.vbox;
 
+import io.kamax.hbox.Configuration;
 import io.kamax.hbox.exception.HypervisorException;
 import io.kamax.tools.ProcessRunner;
 import io.kamax.tools.logging.Logger;
 import io.kamax.vbox.exception.VBoxManageNotFoundException;
+import io.kamax.vbox.utils.ConfigUtils;
 
 import java.io.File;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Consumer;
 
 public class VBoxXPCOM {
 
+    /**
+     * What a warm-up did and how long it took.
+     */
+    public static class WarmUp {
+
+        private final long validateTime;
+        private final long preloadTime;
+        private final long callsTime;
+        private final int calls;
+        private final int failures;
+        private final boolean preloaded;
+
+        private WarmUp(long validateTime, long preloadTime, long callsTime, int calls, int failures, boolean preloaded) {
+            this.validateTime = validateTime;
+            this.preloadTime = preloadTime;
+            this.callsTime = callsTime;
+            this.calls = calls;
+            this.failures = failures;
+            this.preloaded = preloaded;
+        }
+
+        public long getValidateTime(TimeUnit unit) {
+            return unit.convert(validateTime, TimeUnit.NANOSECONDS);
+        }
+
+        public long getPreloadTime(TimeUnit unit) {
+            return unit.convert(preloadTime, TimeUnit.NANOSECONDS);
+        }
+
+        public long getCallsTime(TimeUnit unit) {
+            return unit.convert(callsTime, TimeUnit.NANOSECONDS);
+        }
+
+        public long getDuration(TimeUnit unit) {
+            return unit.convert(validateTime + preloadTime + callsTime, TimeUnit.NANOSECONDS);
+        }
+
+        /**
+         * @return how many warm-up calls were run, across all the XPCOM threads.
+         */
+        public int getCalls() {
+            return calls;
+        }
+
+        /**
+         * @return how many warm-up calls failed or did not finish in time.
+         */
+        public int getFailures() {
+            return failures;
+        }
+
+        /**
+         * @return true if the native library was loaded by the warm-up.
+         */
+        public boolean isPreloaded() {
+            return preloaded;
+        }
+
+    }
+
     private static final String defaultHome = "/usr/lib/virtualbox";
+    private static final String libName = "libvboxjxpcom.so";
+
+    private static volatile WarmUp lastWarmUp;
 
     public static String getDefaultHome() {
         return defaultHome;
@@ -41,23 +113,162 @@ public class VBoxXPCOM {
     }
 
     // https://kamax.io/hbox/kb/xpcomBindingsRessourcesNotReleased.txt
+    // VBoxManage is only run when VBoxSVC is not already running, see VBoxSVCProbe
     public static void triggerVBoxSVC(String homeDir) {
-        File libxpcom = new File(homeDir + File.separator + "libvboxjxpcom.so");
-        Logger.debug("Lib exists - " + libxpcom.getAbsolutePath() + " - " + libxpcom.isFile());
-        File vboxmanage = new File(homeDir + File.separator + "VBoxManage").getAbsoluteFile();
-        if (!vboxmanage.exists()) {
-            throw new VBoxManageNotFoundException(vboxmanage);
-        }
+        String vboxmanage = getVBoxManage(homeDir);
+        VBoxSVCProbe.get().triggerIfAbsent(() -> ProcessRunner.runAndWait(vboxmanage, "modifyvm", "\"\""));
+    }
 
-        triggerVBoxSVC(homeDir + File.separator + "VBoxManage", "modifyvm", "\"\"");
+    // https://kamax.io/hbox/kb/xpcomBindingsRessourcesNotReleased.txt
+    // Unlike triggerVBoxSVC, always runs VBoxManage so the resources held for this client are released
+    public static void releaseResources(String homeDir) {
+        ProcessRunner.runAndWait(getVBoxManage(homeDir), "modifyvm", "\"\"");
+        VBoxSVCProbe.get().invalidate();
+    }
+
+    private static String getVBoxManage(String homeDir) {
+        String libxpcom = homeDir + File.separator + libName;
+        Logger.debug("Lib exists - " + libxpcom + " - " + Objects.nonNull(VBoxExecLocator.get().findFile(libxpcom)));
+        String vboxmanage = VBoxExecLocator.get().findExecutable(homeDir + File.separator + "VBoxManage");
+        if (Objects.isNull(vboxmanage)) {
+            throw new VBoxManageNotFoundException(new File(homeDir + File.separator + "VBoxManage"));
+        }
+        return vboxmanage;
     }
 
     // https://kamax.io/hbox/kb/xpcomBindingsRessourcesNotReleased.txt
     public static void triggerVBoxSVC(String... command) {
-        File trigger = new File(command[0]);
-        Logger.debug("VBoxSVC trigger exec @ " + trigger.getAbsolutePath() + " is file? " + trigger.isFile());
+        Logger.debug("VBoxSVC trigger exec @ " + command[0] + " is file? " + Objects.nonNull(VBoxExecLocator.get().findFile(command[0])));
+
+        VBoxSVCProbe.get().triggerIfAbsent(() -> ProcessRunner.runAndWait(command));
+    }
+
+    private static boolean preload(String homeDir, Consumer<String> loader) {
+        if (!Boolean.parseBoolean(Configuration.getSetting("vbox.xpcom.warmup.preload"))) {
+            return false;
+        }
+
+        if (Objects.isNull(loader)) {
+            Logger.warning("Not preloading the XPCOM bindings: vbox.xpcom.warmup.preload is set but no loader was given");
+            return false;
+        }
+
+        String lib = VBoxExecLocator.get().findFile(homeDir + File.separator + libName);
+        if (Objects.isNull(lib)) {
+            Logger.warning("Not preloading the XPCOM bindings: " + libName + " was not found in " + homeDir);
+            return false;
+        }
+
+        try {
+            loader.accept(new File(lib).getAbsolutePath());
+            return true;
+        } catch (UnsatisfiedLinkError e) {
+            Logger.warning("Unable to preload the XPCOM bindings from " + lib + ": " + e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Pay the cost of the first XPCOM calls before serving any request.
+     * <p>
+     * The install is validated, the native bindings are loaded from the home directory if {@code vbox.xpcom.warmup.preload} is true,
+     * then each read call is run {@code vbox.xpcom.warmup.rounds} times on every XPCOM thread of the executor, so the JIT and the
+     * native caches of each thread are ready. A failed call is logged and counted, but does not fail the warm-up. Once
+     * {@code vbox.xpcom.warmup.timeout} milliseconds have passed, no more calls are made and the ones still queued are cancelled.
+     * </p>
+     * <p>
+     * A native library is bound to the class loader of the class that loads it, and the bindings only see it from their own loader.
+     * The library is therefore never loaded from here: {@code loader} is given its absolute path and must be code of the connector
+     * that holds the bindings, typically {@code System::load} written in that connector. Without it, nothing is preloaded.
+     * </p>
+     *
+     * @param reads  representative read-only calls, like getting the version or listing the machines.
+     * @param loader loads the library at the given path from the class loader of the bindings, or null to skip the preload.
+     * @throws HypervisorException if the VirtualBox version cannot be used with XPCOM.
+     */
+    public static WarmUp warmUp(String homeDir, String version, long revision, VBoxXPCOMExecutor executor, List<Callable<?>> reads, Consumer<String> loader) {
+        long start = System.nanoTime();
+        validate(version, revision);
+        long validated = System.nanoTime();
+
+        boolean preloaded = preload(homeDir, loader);
+        long loaded = System.nanoTime();
+
+        int rounds = ConfigUtils.getInt("vbox.xpcom.warmup.rounds", 3);
+        long deadline = loaded + TimeUnit.MILLISECONDS.toNanos(ConfigUtils.getLong("vbox.xpcom.warmup.timeout", 30000L));
+        int calls = 0;
+        int failures = 0;
+        boolean expired = false;
+        for (int i = 0; i < rounds && !expired; i++) {
+            for (Callable<?> read : reads) {
+                if (System.nanoTime() - deadline >= 0) {
+                    expired = true;
+                    break;
+                }
+
+                for (CompletableFuture<?> result : executor.submitToAll(read)) {
+                    calls++;
+                    try {
+                        result.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new HypervisorException("Interrupted during the XPCOM warm-up");
+                    } catch (TimeoutException e) {
+                        // A call still queued is dropped, so the XPCOM threads are not kept busy once the warm-up returns
+                        result.cancel(false);
+                        failures++;
+                        Logger.debug("XPCOM warm-up call did not finish in time");
+                    } catch (Exception e) {
+                        failures++;
+                        Logger.debug("XPCOM warm-up call failed: " + e);
+                    }
+                }
+            }
+        }
+
+        WarmUp warmUp = new WarmUp(validated - start, loaded - validated, System.nanoTime() - loaded, calls, failures, preloaded);
+        lastWarmUp = warmUp;
+        String summary = "event=vbox.xpcom.warmup durationMs=" + warmUp.getDuration(TimeUnit.MILLISECONDS)
+                + " preloadMs=" + warmUp.getPreloadTime(TimeUnit.MILLISECONDS) + " callsMs=" + warmUp.getCallsTime(TimeUnit.MILLISECONDS)
+                + " calls=" + calls + " failures=" + failures + " expired=" + expired + " threads=" + executor.getThreadCount();
+        if (failures > 0 || expired) {
+            Logger.warning(summary);
+        } else {
+            Logger.info(summary);
+        }
+        return warmUp;
+    }
+
+    public static WarmUp warmUp(String homeDir, String version, long revision, VBoxXPCOMExecutor executor, List<Callable<?>> reads) {
+        return warmUp(homeDir, version, revision, executor, reads, null);
+    }
+
+    public static WarmUp warmUp(String version, long revision, VBoxXPCOMExecutor executor, List<Callable<?>> reads, Consumer<String> loader) {
+        return warmUp(getDefaultHome(), version, revision, executor, reads, loader);
+    }
+
+    public static WarmUp warmUp(String version, long revision, VBoxXPCOMExecutor executor, List<Callable<?>> reads) {
+        return warmUp(version, revision, executor, reads, null);
+    }
+
+    /**
+     * @return the result of the last warm-up, or null if none was done.
+     */
+    public static WarmUp getLastWarmUp() {
+        return lastWarmUp;
+    }
 
-        ProcessRunner.runAndWait(command);
+    /**
+     * Have the listener told when VBoxSVC restarts, so it drops its XPCOM handles and reconnects, and start watching VBoxSVC if not
+     * done yet.
+     *
+     * @return the shared watcher, to remove the listener later.
+     */
+    public static VBoxSVCWatcher watch(VBoxSVCWatcher.Listener listener) {
+        VBoxSVCWatcher watcher = VBoxSVCWatcher.get();
+        watcher.addListener(listener);
+        watcher.start();
+        return watcher;
     }
 
     public static void validate(String version, long revision) {
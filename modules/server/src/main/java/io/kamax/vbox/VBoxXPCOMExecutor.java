@@ -0,0 +1,287 @@
+/*
+ * Hyperbox - Virtual Infrastructure Manager
+ * Copyright (C) 2021 Maxime Dor
+ *
+ * http://kamax.io/hbox/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.kamax.vbox;
+
+import io.kamax.hbox.exception.HypervisorException;
+import io.kamax.tools.logging.Logger;
+import io.kamax.vbox.utils.ConfigUtils;
+import io.kamax.vbox.utils.LatencyHistogram;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs the calls into the XPCOM bindings on a few long-lived threads instead of the threads of the callers.
+ * <p>
+ * The bindings keep native state per thread, which is only released predictably when the same threads are reused. Each of the
+ * {@code vbox.xpcom.exec.threads} workers runs the init hook once when it starts, then the calls of its own queue, up to
+ * {@code vbox.xpcom.exec.batch} of them per wake-up, and the release hook when the executor is closed.
+ * </p>
+ * <p>
+ * Calls given an affinity key always run on the same worker, so objects obtained on a thread are used on that thread. Other calls
+ * go to the worker with the shortest queue.
+ * </p>
+ */
+public class VBoxXPCOMExecutor implements AutoCloseable {
+
+    private static class Task<T> {
+
+        private final Callable<T> call;
+        private final CompletableFuture<T> result = new CompletableFuture<>();
+        private final long submittedAt = System.nanoTime();
+
+        private Task(Callable<T> call) {
+            this.call = call;
+        }
+
+    }
+
+    private class Worker implements Runnable {
+
+        private final BlockingQueue<Task<?>> queue = new LinkedBlockingQueue<>();
+        private final Thread thread;
+
+        private Worker(int id) {
+            thread = new Thread(this, "vbox-xpcom-" + id);
+            thread.setDaemon(true);
+        }
+
+        private <T> void run(Task<T> task) {
+            if (task.result.isCancelled()) {
+                // Given up by the caller while queued
+                return;
+            }
+
+            long start = System.nanoTime();
+            queueTime.recordNanos(start - task.submittedAt);
+            T value = null;
+            Throwable failure = null;
+            try {
+                value = task.call.call();
+            } catch (Throwable t) {
+                failure = t;
+            }
+            // Recorded before completing, so the caller sees its own call counted
+            callTime.recordNanos(System.nanoTime() - start);
+            if (Objects.isNull(failure)) {
+                task.result.complete(value);
+            } else {
+                task.result.completeExceptionally(failure);
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                init.run();
+            } catch (RuntimeException e) {
+                Logger.warning("Unable to initialise XPCOM thread " + thread.getName(), e);
+            }
+
+            List<Task<?>> batch = new ArrayList<>(batchSize);
+            try {
+                while (!closed || !queue.isEmpty()) {
+                    Task<?> first = queue.poll(100L, TimeUnit.MILLISECONDS);
+                    if (Objects.isNull(first)) {
+                        continue;
+                    }
+
+                    batch.add(first);
+                    queue.drainTo(batch, batchSize - 1);
+                    batches.incrementAndGet();
+                    for (Task<?> task : batch) {
+                        run(task);
+                    }
+                    batch.clear();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                // Calls queued after the loop saw the queue empty, or left behind by an interrupt, will never run
+                for (Task<?> task = queue.poll(); Objects.nonNull(task); task = queue.poll()) {
+                    task.result.completeExceptionally(new HypervisorException("XPCOM executor was stopped"));
+                }
+
+                try {
+                    release.run();
+                } catch (RuntimeException e) {
+                    Logger.warning("Unable to release XPCOM thread " + thread.getName(), e);
+                }
+            }
+        }
+
+    }
+
+    private static final Runnable noop = () -> {
+    };
+
+    private final Runnable init;
+    private final Runnable release;
+    private final int batchSize;
+    private final List<Worker> workers = new ArrayList<>();
+    private final LatencyHistogram queueTime = new LatencyHistogram();
+    private final LatencyHistogram callTime = new LatencyHistogram();
+    private final AtomicLong batches = new AtomicLong();
+    private volatile boolean closed = false;
+
+    public VBoxXPCOMExecutor() {
+        this(noop, noop);
+    }
+
+    /**
+     * @param init    run once on each worker thread before any call, to attach it to XPCOM.
+     * @param release run once on each worker thread when the executor is closed.
+     */
+    public VBoxXPCOMExecutor(Runnable init, Runnable release) {
+        this(ConfigUtils.getInt("vbox.xpcom.exec.threads", 2), ConfigUtils.getInt("vbox.xpcom.exec.batch", 16), init, release);
+    }
+
+    public VBoxXPCOMExecutor(int threads, int batchSize, Runnable init, Runnable release) {
+        if (threads < 1 || batchSize < 1) {
+            throw new HypervisorException("Invalid XPCOM executor settings: threads=" + threads + " batch=" + batchSize);
+        }
+
+        this.init = Objects.requireNonNull(init);
+        this.release = Objects.requireNonNull(release);
+        this.batchSize = batchSize;
+        for (int i = 0; i < threads; i++) {
+            workers.add(new Worker(i));
+        }
+        for (Worker worker : workers) {
+            worker.thread.start();
+        }
+        Logger.debug("Started " + threads + " XPCOM thread(s)");
+    }
+
+    private <T> CompletableFuture<T> submit(Worker worker, Callable<T> call) {
+        if (closed) {
+            throw new HypervisorException("XPCOM executor is closed");
+        }
+
+        Task<T> task = new Task<>(Objects.requireNonNull(call));
+        worker.queue.add(task);
+        // The executor may have been closed, and the worker gone, since the check above: take the call back unless it was picked up
+        if (closed && worker.queue.remove(task)) {
+            task.result.completeExceptionally(new HypervisorException("XPCOM executor is closed"));
+        }
+        return task.result;
+    }
+
+    /**
+     * Run the call on the least busy XPCOM thread.
+     */
+    public <T> CompletableFuture<T> submit(Callable<T> call) {
+        Worker target = workers.get(0);
+        for (Worker worker : workers) {
+            if (worker.queue.size() < target.queue.size()) {
+                target = worker;
+            }
+        }
+        return submit(target, call);
+    }
+
+    /**
+     * Run the call on the XPCOM thread bound to the key, the same thread as all the other calls with an equal key.
+     */
+    public <T> CompletableFuture<T> submit(Object key, Callable<T> call) {
+        return submit(workers.get(Math.floorMod(Objects.hashCode(key), workers.size())), call);
+    }
+
+    /**
+     * Run the call once on every XPCOM thread.
+     */
+    public <T> List<CompletableFuture<T>> submitToAll(Callable<T> call) {
+        List<CompletableFuture<T>> results = new ArrayList<>();
+        for (Worker worker : workers) {
+            results.add(submit(worker, call));
+        }
+        return results;
+    }
+
+    public int getThreadCount() {
+        return workers.size();
+    }
+
+    /**
+     * @return how many calls are waiting for a thread.
+     */
+    public int getQueued() {
+        int queued = 0;
+        for (Worker worker : workers) {
+            queued += worker.queue.size();
+        }
+        return queued;
+    }
+
+    /**
+     * @return how long calls waited in the queue.
+     */
+    public LatencyHistogram getQueueTime() {
+        return queueTime;
+    }
+
+    /**
+     * @return how long calls took to run.
+     */
+    public LatencyHistogram getCallTime() {
+        return callTime;
+    }
+
+    /**
+     * @return how many times the workers woke up to run calls. Several calls can run in one batch.
+     */
+    public long getBatches() {
+        return batches.get();
+    }
+
+    /**
+     * Stop accepting calls, run the queued ones and release the threads, waiting up to {@code vbox.xpcom.exec.shutdown.timeout}
+     * milliseconds. Calls still queued after that fail.
+     */
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+
+        closed = true;
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(ConfigUtils.getLong("vbox.xpcom.exec.shutdown.timeout", 5000L));
+        try {
+            for (Worker worker : workers) {
+                worker.thread.join(Math.max(1, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime())));
+                if (worker.thread.isAlive()) {
+                    Logger.warning("XPCOM thread " + worker.thread.getName() + " did not finish in time, interrupting");
+                    worker.thread.interrupt();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+}
@@ -0,0 +1,274 @@
+/*
+ * Hyperbox - Virtual Infrastructure Manager
+ * Copyright (C) 2021 Maxime Dor
+ *
+ * http://kamax.io/hbox/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.kamax.vbox;
+
+import io.kamax.tools.logging.Logger;
+import io.kamax.vbox.utils.ConfigUtils;
+import io.kamax.vbox.utils.LatencyHistogram;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs the XPCOM resource release workaround when the held resources grow, preferably while the XPCOM threads are idle.
+ * <p>
+ * Every {@code vbox.xpcom.release.interval} milliseconds, the number of outstanding XPCOM references reported through
+ * {@link #track(long)} and the resident memory of VBoxSVC are compared to {@code vbox.xpcom.release.refs} and
+ * {@code vbox.xpcom.release.rss} (in KiB). References are counted from their level at the last release, and releases are at least
+ * {@code vbox.xpcom.release.minInterval} milliseconds apart. Once a threshold is crossed, the release runs at the first check
+ * where the executor ran at most {@code vbox.xpcom.release.idle.calls} calls since the previous check, or after
+ * {@code vbox.xpcom.release.maxDelay} milliseconds whatever the traffic.
+ * </p>
+ * <p>
+ * Concurrent requests for a release share the same run.
+ * </p>
+ */
+public class VBoxXPCOMReleaseScheduler implements AutoCloseable {
+
+    private final VBoxXPCOMExecutor executor;
+    private final Runnable release;
+    private final VBoxSVCProbe probe;
+    private final File procDir;
+    private final ScheduledExecutorService scheduler;
+
+    private final long interval = ConfigUtils.getLong("vbox.xpcom.release.interval", 10000L);
+    private final long refsThreshold = ConfigUtils.getLong("vbox.xpcom.release.refs", 10000L);
+    private final long rssThreshold = ConfigUtils.getLong("vbox.xpcom.release.rss", 1048576L);
+    private final long idleCalls = ConfigUtils.getLong("vbox.xpcom.release.idle.calls", 10L);
+    private final long minInterval = TimeUnit.MILLISECONDS.toNanos(ConfigUtils.getLong("vbox.xpcom.release.minInterval", 60000L));
+    private final long maxDelay = TimeUnit.MILLISECONDS.toNanos(ConfigUtils.getLong("vbox.xpcom.release.maxDelay", 600000L));
+
+    private final AtomicLong outstanding = new AtomicLong();
+    private final LatencyHistogram releaseTime = new LatencyHistogram();
+    private final AtomicLong releases = new AtomicLong();
+    private final AtomicLong deferrals = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+    private CompletableFuture<Void> pending;
+    private ScheduledFuture<?> checkTask;
+    private long lastCalls = 0;
+    private long crossedAt = 0;
+    private long lastReleaseAt = 0;
+    private long refsBaseline = 0;
+    private volatile long rss = -1;
+    private volatile long rssBefore = -1;
+    private volatile long rssAfter = -1;
+
+    /**
+     * @param executor the XPCOM threads, whose activity tells when traffic is low.
+     * @param release  the release workaround, like {@link VBoxXPCOM#releaseResources(String)}.
+     */
+    public VBoxXPCOMReleaseScheduler(VBoxXPCOMExecutor executor, Runnable release) {
+        this(executor, release, VBoxSVCProbe.get(), new File("/proc"));
+    }
+
+    public VBoxXPCOMReleaseScheduler(VBoxXPCOMExecutor executor, Runnable release, VBoxSVCProbe probe, File procDir) {
+        this.executor = Objects.requireNonNull(executor);
+        this.release = Objects.requireNonNull(release);
+        this.probe = Objects.requireNonNull(probe);
+        this.procDir = Objects.requireNonNull(procDir);
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "vbox-xpcom-release");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    public synchronized void start() {
+        if (Objects.isNull(checkTask)) {
+            checkTask = scheduler.scheduleWithFixedDelay(this::checkSafely, interval, interval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        if (Objects.nonNull(checkTask)) {
+            checkTask.cancel(false);
+        }
+        scheduler.shutdown();
+    }
+
+    /**
+     * Report XPCOM references taken, or released when negative.
+     */
+    public void track(long references) {
+        outstanding.addAndGet(references);
+    }
+
+    /**
+     * @return the resident memory of VBoxSVC in KiB, or -1 if it is not running or cannot be read.
+     */
+    private long readRss() {
+        if (!probe.isAlive() || probe.getPid() < 1) {
+            return -1;
+        }
+
+        try {
+            for (String line : Files.readAllLines(new File(new File(procDir, Long.toString(probe.getPid())), "status").toPath(),
+                    StandardCharsets.UTF_8)) {
+                if (line.startsWith("VmRSS:")) {
+                    return Long.parseLong(line.substring(6).replace("kB", "").trim());
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            Logger.debug("Unable to read the memory of VBoxSVC: " + e.getMessage());
+        }
+        return -1;
+    }
+
+    private void checkSafely() {
+        try {
+            check();
+        } catch (RuntimeException e) {
+            Logger.warning("XPCOM release check failed", e);
+        }
+    }
+
+    /**
+     * Compare the resources to the thresholds and start a release if needed and the traffic allows it.
+     *
+     * @return the release started or already in progress, or null if none is needed yet.
+     */
+    public synchronized CompletableFuture<Void> check() {
+        long calls = executor.getCallTime().getCount();
+        long recentCalls = calls - lastCalls;
+        lastCalls = calls;
+        rss = readRss();
+
+        long now = System.nanoTime();
+        boolean crossed = outstanding.get() - refsBaseline >= refsThreshold || rss >= rssThreshold;
+        if (!crossed || (releases.get() > 0 && now - lastReleaseAt < minInterval)) {
+            crossedAt = 0;
+            return pending;
+        }
+
+        if (crossedAt == 0) {
+            crossedAt = now;
+        }
+        boolean idle = recentCalls <= idleCalls && executor.getQueued() == 0;
+        if (!idle && now - crossedAt < maxDelay) {
+            deferrals.incrementAndGet();
+            Logger.debug("XPCOM release needed but deferred: " + recentCalls + " recent call(s)");
+            return pending;
+        }
+
+        return requestRelease();
+    }
+
+    /**
+     * Release the resources now, or join the release already in progress.
+     */
+    public synchronized CompletableFuture<Void> requestRelease() {
+        if (Objects.nonNull(pending)) {
+            coalesced.incrementAndGet();
+            return pending;
+        }
+
+        pending = CompletableFuture.runAsync(this::runRelease, scheduler);
+        return pending;
+    }
+
+    private void runRelease() {
+        long before = readRss();
+        long refs = outstanding.get();
+        long start = System.nanoTime();
+        try {
+            release.run();
+        } finally {
+            // Done before the future completes, so callers see the release as over
+            synchronized (this) {
+                pending = null;
+                crossedAt = 0;
+                lastReleaseAt = System.nanoTime();
+                refsBaseline = outstanding.get();
+            }
+        }
+        long duration = lastReleaseAt - start;
+        releaseTime.recordNanos(duration);
+        releases.incrementAndGet();
+
+        long after = readRss();
+        rssBefore = before;
+        rssAfter = after;
+        rss = after;
+        Logger.info("event=vbox.xpcom.release durationMs=" + TimeUnit.NANOSECONDS.toMillis(duration) + " refs=" + refs
+                + " rssBeforeKb=" + before + " rssAfterKb=" + after);
+    }
+
+    public long getOutstanding() {
+        return outstanding.get();
+    }
+
+    /**
+     * @return the resident memory of VBoxSVC in KiB as of the last check, or -1 if unknown.
+     */
+    public long getRss() {
+        return rss;
+    }
+
+    /**
+     * @return the resident memory of VBoxSVC in KiB before the last release, or -1 if unknown.
+     */
+    public long getRssBeforeLastRelease() {
+        return rssBefore;
+    }
+
+    /**
+     * @return the resident memory of VBoxSVC in KiB after the last release, or -1 if unknown.
+     */
+    public long getRssAfterLastRelease() {
+        return rssAfter;
+    }
+
+    /**
+     * @return how long the releases took.
+     */
+    public LatencyHistogram getReleaseTime() {
+        return releaseTime;
+    }
+
+    public long getReleases() {
+        return releases.get();
+    }
+
+    /**
+     * @return how many checks found a release needed but postponed it because of traffic.
+     */
+    public long getDeferrals() {
+        return deferrals.get();
+    }
+
+    /**
+     * @return how many release requests joined a release already in progress.
+     */
+    public long getCoalesced() {
+        return coalesced.get();
+    }
+
+}
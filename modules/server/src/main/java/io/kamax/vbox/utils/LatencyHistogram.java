@@ -0,0 +1,135 @@
+/*
+ * Hyperbox - Virtual Infrastructure Manager
+ * Copyright (C) 2021 Maxime Dor
+ *
+ * http://kamax.io/hbox/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.kamax.vbox.utils;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free histogram of durations with microsecond resolution.
+ * <p>
+ * Values are kept in log-linear buckets: each power of two is split in 8 buckets, so percentiles are accurate to about 12%.
+ * Recording never allocates, which makes it usable on hot paths.
+ * </p>
+ */
+public class LatencyHistogram {
+
+    private static final int subBucketBits = 3;
+    private static final int subBuckets = 1 << subBucketBits;
+
+    private final AtomicLongArray counts = new AtomicLongArray((64 - subBucketBits) * subBuckets);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    private static int getIndex(long value) {
+        if (value < subBuckets) {
+            return (int) value;
+        }
+
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int) (value >>> (exponent - subBucketBits)) & (subBuckets - 1);
+        return (exponent - subBucketBits + 1) * subBuckets + sub;
+    }
+
+    private static long getUpperBound(int index) {
+        if (index < subBuckets) {
+            return index;
+        }
+
+        int exponent = index / subBuckets + subBucketBits - 1;
+        long sub = index % subBuckets;
+        long lower = (1L << exponent) + (sub << (exponent - subBucketBits));
+        return lower + (1L << (exponent - subBucketBits)) - 1;
+    }
+
+    public void record(long duration, TimeUnit unit) {
+        long value = Math.max(0, unit.toMicros(duration));
+        counts.incrementAndGet(getIndex(value));
+        count.incrementAndGet();
+        sum.addAndGet(value);
+
+        long current = max.get();
+        while (value > current && !max.compareAndSet(current, value)) {
+            current = max.get();
+        }
+    }
+
+    public void recordNanos(long nanos) {
+        record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    public long getMax(TimeUnit unit) {
+        return unit.convert(max.get(), TimeUnit.MICROSECONDS);
+    }
+
+    public long getMean(TimeUnit unit) {
+        long n = count.get();
+        return n == 0 ? 0 : unit.convert(sum.get() / n, TimeUnit.MICROSECONDS);
+    }
+
+    /**
+     * @param percentile the percentile to get, between 0 and 100.
+     * @param unit       the unit of the returned value.
+     * @return the upper bound of the bucket holding the percentile, or 0 if nothing was recorded.
+     */
+    public long getPercentile(double percentile, TimeUnit unit) {
+        long n = count.get();
+        if (n == 0) {
+            return 0;
+        }
+
+        long rank = Math.max(1, (long) Math.ceil(n * Math.min(100d, Math.max(0d, percentile)) / 100d));
+        long seen = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            seen += counts.get(i);
+            if (seen >= rank) {
+                return unit.convert(Math.min(getUpperBound(i), max.get()), TimeUnit.MICROSECONDS);
+            }
+        }
+
+        return getMax(unit);
+    }
+
+    public void reset() {
+        for (int i = 0; i < counts.length(); i++) {
+            counts.set(i, 0);
+        }
+        count.set(0);
+        sum.set(0);
+        max.set(0);
+    }
+
+    @Override
+    public String toString() {
+        return "count=" + getCount()
+                + " p50=" + getPercentile(50, TimeUnit.MILLISECONDS) + "ms"
+                + " p90=" + getPercentile(90, TimeUnit.MILLISECONDS) + "ms"
+                + " p99=" + getPercentile(99, TimeUnit.MILLISECONDS) + "ms"
+                + " max=" + getMax(TimeUnit.MILLISECONDS) + "ms";
+    }
+
+}
@@ -0,0 +1,121 @@
+/*
+ * Hyperbox - Virtual Infrastructure Manager
+ * Copyright (C) 2021 Maxime Dor
+ *
+ * http://kamax.io/hbox/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.kamax.vbox.utils;
+
+import io.kamax.hbox.Configuration;
+import org.apache.commons.lang3.StringUtils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Objects;
+import java.util.Properties;
+
+/**
+ * Small files that record the runtime state of this user's processes, like the VBox WS process to adopt.
+ * <p>
+ * They are kept in a directory only the current user can write to, so another local user cannot plant or redirect them. Writes go
+ * through a temporary file renamed over the target, which never follows a link left at its place and never exposes a partial file.
+ * </p>
+ */
+public class RuntimeFiles {
+
+    /**
+     * Get the directory to use, creating it if needed.
+     *
+     * @param setting the configuration key that overrides the location.
+     * @return the overriding directory if set, else the default one, see {@link #getDir()}.
+     * @throws IOException if the directory cannot be created or used.
+     */
+    public static Path getDir(String setting) throws IOException {
+        String override = Configuration.getSetting(setting);
+        if (StringUtils.isNotBlank(override)) {
+            return Files.createDirectories(Paths.get(override));
+        }
+
+        return getDir();
+    }
+
+    /**
+     * Get the default directory, creating it if needed.
+     *
+     * @return {@code hbox} in {@code XDG_RUNTIME_DIR} if set, else a directory named after the user in the temporary directory.
+     * @throws IOException if the directory cannot be created, or exists but is not a directory owned by the current user.
+     */
+    public static Path getDir() throws IOException {
+        String runtimeDir = System.getenv("XDG_RUNTIME_DIR");
+        Path dir = StringUtils.isNotBlank(runtimeDir) && Files.isDirectory(Paths.get(runtimeDir))
+                ? Paths.get(runtimeDir, "hbox")
+                : Paths.get(System.getProperty("java.io.tmpdir"), "hbox-" + System.getProperty("user.name").replaceAll("[^A-Za-z0-9._-]", "_"));
+        try {
+            if (Files.getFileStore(dir.getParent()).supportsFileAttributeView("posix")) {
+                Files.createDirectory(dir, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rwx------")));
+            } else {
+                Files.createDirectory(dir);
+            }
+        } catch (FileAlreadyExistsException e) {
+            // Someone may have created it first, checked below
+        }
+
+        if (!Files.isDirectory(dir, LinkOption.NOFOLLOW_LINKS)) {
+            throw new IOException(dir + " is not a directory");
+        }
+        String owner = Files.getOwner(dir, LinkOption.NOFOLLOW_LINKS).getName();
+        if (!Objects.equals(owner, System.getProperty("user.name"))) {
+            throw new IOException(dir + " is owned by " + owner + ", not by the current user");
+        }
+        return dir;
+    }
+
+    /**
+     * @return the properties stored in the file, which is not read if it is a link.
+     */
+    public static Properties load(Path location) throws IOException {
+        Properties props = new Properties();
+        try (InputStream is = Files.newInputStream(location, LinkOption.NOFOLLOW_LINKS)) {
+            props.load(is);
+        }
+        return props;
+    }
+
+    /**
+     * Replace the file with the given properties at once.
+     */
+    public static void store(Path location, Properties props, String comment) throws IOException {
+        Path tmp = Files.createTempFile(location.toAbsolutePath().getParent(), "." + location.getFileName(), ".tmp");
+        try {
+            try (OutputStream os = Files.newOutputStream(tmp)) {
+                props.store(os, comment);
+            }
+            Files.move(tmp, location, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+}
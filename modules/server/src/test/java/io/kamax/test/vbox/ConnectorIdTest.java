@@ -0,0 +1,71 @@
+/*
+ * Hyperbox - Virtual Infrastructure Manager
+ * Copyright (C) 2021 Maxime Dor
+ *
+ * http://kamax.io/hbox/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.kamax.test.vbox;
+
+import io.kamax.hbox.exception.HypervisorException;
+import io.kamax.vbox.ConnectorId;
+import io.kamax.vbox.VirtualBox;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class ConnectorIdTest {
+
+    @Test
+    public void interned() {
+        ConnectorId id = ConnectorId.parse(VirtualBox.ID.XPCOM_6_1);
+        assertSame(id, ConnectorId.get(6, 1, ConnectorId.Type.XPCOM));
+        assertSame(id, ConnectorId.get(new String(VirtualBox.ID.XPCOM_6_1)));
+        assertSame(id, ConnectorId.of(6, 1, ConnectorId.Type.XPCOM));
+        assertEquals(VirtualBox.ID.XPCOM_6_1, id.toString());
+        assertEquals(VirtualBox.Version.v6_1, id.getVersion());
+        assertEquals(VirtualBox.VBOX_ID, id.getVendor());
+        for (String known : VirtualBox.ID_GROUP.ALL) {
+            assertEquals(known, ConnectorId.get(known).toString());
+        }
+    }
+
+    @Test
+    public void registerAndFind() {
+        assertNull(ConnectorId.get(7, 0, ConnectorId.Type.WEB_SERVICES));
+        ConnectorId ws70 = ConnectorId.parse("vbox-7.0-ws");
+        assertSame(ws70, ConnectorId.get(7, 0, ConnectorId.Type.WEB_SERVICES));
+
+        List<ConnectorId> xpcom5 = ConnectorId.find(5, ConnectorId.Type.XPCOM);
+        assertEquals(Arrays.asList(ConnectorId.get(VirtualBox.ID.XPCOM_5_0), ConnectorId.get(VirtualBox.ID.XPCOM_5_1),
+                ConnectorId.get(VirtualBox.ID.XPCOM_5_2)), xpcom5);
+        assertEquals(6, ConnectorId.find(6, 0, 6, 1, null).size());
+        assertTrue(ConnectorId.find(6, 0, 7, 0, ConnectorId.Type.WEB_SERVICES).contains(ws70));
+        assertTrue(ws70.isAtLeast(6, 1));
+    }
+
+    @Test(expected = HypervisorException.class)
+    public void invalid() {
+        ConnectorId.parse("vbox-6-xpcom");
+    }
+
+}
@@ -0,0 +1,167 @@
+/*
+ * Hyperbox - Virtual Infrastructure Manager
+ * Copyright (C) 2021 Maxime Dor
+ *
+ * http://kamax.io/hbox/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.kamax.test.vbox;
+
+import io.kamax.hbox.Configuration;
+import io.kamax.hbox.exception.HypervisorException;
+import io.kamax.vbox.ConnectorId;
+import io.kamax.vbox.VBoxConnectorSelector;
+import io.kamax.vbox.VirtualBox;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class VBoxConnectorSelectorTest {
+
+    private static class Probe implements VBoxConnectorSelector.Probe {
+
+        private final long latency;
+        private final boolean fails;
+        private final AtomicInteger calls = new AtomicInteger();
+
+        private Probe(long latency, boolean fails) {
+            this.latency = latency;
+            this.fails = fails;
+        }
+
+        @Override
+        public void connect() {
+            if (fails) {
+                throw new IllegalStateException("Connection refused");
+            }
+        }
+
+        @Override
+        public void call() throws Exception {
+            calls.incrementAndGet();
+            Thread.sleep(latency);
+        }
+
+        @Override
+        public void disconnect() {
+            // nothing to close
+        }
+
+    }
+
+    @Test
+    public void fastestAndSaved() throws Exception {
+        Configuration.setSetting("vbox.connector.select.calls", "10");
+        File store = new File(Files.createTempDirectory("hbox-select").toFile(), "connector.properties");
+        Probe xpcom = new Probe(0, false);
+        Probe ws = new Probe(5, false);
+        Map<ConnectorId.Type, VBoxConnectorSelector.Probe> probes = new EnumMap<>(ConnectorId.Type.class);
+        probes.put(ConnectorId.Type.XPCOM, xpcom);
+        probes.put(ConnectorId.Type.WEB_SERVICES, ws);
+        probes.put(ConnectorId.Type.MSCOM, new Probe(0, false));
+
+        VBoxConnectorSelector.Decision decision = new VBoxConnectorSelector(probes, store).select("6.1.16", 140961L);
+        assertEquals(ConnectorId.get(VirtualBox.ID.XPCOM_6_1), decision.getConnector());
+        assertFalse(decision.isCached());
+        assertTrue(decision.getMeasurements().get(ConnectorId.Type.WEB_SERVICES).getMedian(TimeUnit.MILLISECONDS) >= 4);
+        assertFalse(decision.getMeasurements().get(ConnectorId.Type.MSCOM).isViable());
+        int probed = ws.calls.get();
+
+        // Same install: the saved decision is used without probing
+        VBoxConnectorSelector.Decision saved = new VBoxConnectorSelector(probes, store).select("6.1.16", 140961L);
+        assertTrue(saved.isCached());
+        assertEquals(decision.getConnector(), saved.getConnector());
+        assertEquals(decision.getMeasurements().get(ConnectorId.Type.WEB_SERVICES).getMedian(TimeUnit.MICROSECONDS),
+                saved.getMeasurements().get(ConnectorId.Type.WEB_SERVICES).getMedian(TimeUnit.MICROSECONDS));
+        assertEquals(probed, ws.calls.get());
+
+        // Upgraded: probed again
+        VBoxConnectorSelector.Decision upgraded = new VBoxConnectorSelector(probes, store).select("6.1.18", 142142L);
+        assertFalse(upgraded.isCached());
+        assertTrue(ws.calls.get() > probed);
+    }
+
+    @Test
+    public void storeReplacesLink() throws Exception {
+        Path dir = Files.createTempDirectory("hbox-select");
+        Path target = Files.write(dir.resolve("target"), "untouched".getBytes(StandardCharsets.UTF_8));
+        Path store = Files.createSymbolicLink(dir.resolve("connector.properties"), target);
+        Map<ConnectorId.Type, VBoxConnectorSelector.Probe> probes = new EnumMap<>(ConnectorId.Type.class);
+        probes.put(ConnectorId.Type.WEB_SERVICES, new Probe(0, false));
+
+        new VBoxConnectorSelector(probes, store.toFile()).select("6.1.16", 140961L);
+        assertEquals("untouched", new String(Files.readAllBytes(target), StandardCharsets.UTF_8));
+        assertTrue(Files.isRegularFile(store, LinkOption.NOFOLLOW_LINKS));
+        assertTrue(new VBoxConnectorSelector(probes, store.toFile()).select("6.1.16", 140961L).isCached());
+    }
+
+    @Test
+    public void skipsUnusable() throws Exception {
+        File store = new File(Files.createTempDirectory("hbox-select").toFile(), "connector.properties");
+        Map<ConnectorId.Type, VBoxConnectorSelector.Probe> probes = new EnumMap<>(ConnectorId.Type.class);
+        probes.put(ConnectorId.Type.XPCOM, new Probe(0, true));
+        probes.put(ConnectorId.Type.WEB_SERVICES, new Probe(1, false));
+
+        VBoxConnectorSelector selector = new VBoxConnectorSelector(probes, store);
+        assertEquals(ConnectorId.get(VirtualBox.ID.WS_5_2), selector.select("5.2.44", 139111L).getConnector());
+        assertEquals("Connection refused", selector.select("5.2.44", 139111L).getMeasurements().get(ConnectorId.Type.XPCOM).getError());
+
+        probes.remove(ConnectorId.Type.WEB_SERVICES);
+        selector.invalidate();
+        try {
+            new VBoxConnectorSelector(probes, store).select("5.2.44", 139111L);
+            fail("Selected a connector that cannot connect");
+        } catch (HypervisorException e) {
+            assertFalse(store.exists());
+        }
+    }
+
+    @Test
+    public void installedVersion() throws Exception {
+        assertInstalledVersion("6.0.24r139119", "6.0.24", 139119L, VirtualBox.ID.WS_6_0);
+        // Distribution builds add a suffix, which can itself contain an 'r'
+        assertInstalledVersion("6.1.50_rpmfusionr161033", "6.1.50_rpmfusion", 161033L, VirtualBox.ID.WS_6_1);
+        assertInstalledVersion("WARNING: The vboxdrv kernel module is not loaded.\n5.2.44_OSEr139111", "5.2.44_OSE", 139111L, VirtualBox.ID.WS_5_2);
+    }
+
+    private static void assertInstalledVersion(String output, String version, long revision, String connector) throws Exception {
+        File home = Files.createTempDirectory("hbox-vbox-home").toFile();
+        File vboxmanage = new File(home, "VBoxManage");
+        Files.write(vboxmanage.toPath(), ("#!/bin/sh\nprintf '" + output + "\\n'\n").getBytes(StandardCharsets.UTF_8));
+        assertTrue(vboxmanage.setExecutable(true));
+
+        Map<ConnectorId.Type, VBoxConnectorSelector.Probe> probes = new EnumMap<>(ConnectorId.Type.class);
+        probes.put(ConnectorId.Type.WEB_SERVICES, new Probe(0, false));
+        VBoxConnectorSelector.Decision decision = new VBoxConnectorSelector(probes, new File(home, "connector.properties")).select(home.getPath());
+        assertEquals(version, decision.getVersion());
+        assertEquals(revision, decision.getRevision());
+        assertEquals(ConnectorId.get(connector), decision.getConnector());
+    }
+
+}
@@ -0,0 +1,66 @@
+/*
+ * Hyperbox - Virtual Infrastructure Manager
+ * Copyright (C) 2021 Maxime Dor
+ *
+ * http://kamax.io/hbox/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.kamax.test.vbox;
+
+import io.kamax.vbox.VBoxExecLocator;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class VBoxExecLocatorTest {
+
+    @Test
+    public void revalidate() throws Exception {
+        File dir = Files.createTempDirectory("hbox-locator").toFile();
+        File first = new File(dir, "first");
+        File second = new File(dir, "second");
+        Files.write(second.toPath(), "second".getBytes(StandardCharsets.UTF_8));
+        List<String> candidates = Arrays.asList(first.getPath(), second.getPath());
+
+        // Trusted for a long time: the cached result is kept even though a better candidate shows up
+        VBoxExecLocator cached = new VBoxExecLocator(60000L);
+        assertEquals(second.getPath(), cached.findFile(candidates));
+        Files.write(first.toPath(), "first".getBytes(StandardCharsets.UTF_8));
+        assertEquals(second.getPath(), cached.findFile(candidates));
+
+        // Always checked: the cached file is kept while unchanged and looked up again once it changes
+        VBoxExecLocator checked = new VBoxExecLocator(0L);
+        assertEquals(first.getPath(), checked.findFile(candidates));
+        assertEquals(first.getPath(), checked.findFile(candidates));
+        assertEquals(first.getPath(), checked.findFile(Arrays.asList(first.getPath(), second.getPath())));
+        Files.delete(first.toPath());
+        assertEquals(second.getPath(), checked.findFile(candidates));
+
+        assertNull(checked.findExecutable(candidates));
+        assertEquals(second.getPath(), cached.findFile(candidates));
+
+        Files.delete(second.toPath());
+        Files.delete(dir.toPath());
+    }
+
+}
@@ -0,0 +1,99 @@
+/*
+ * Hyperbox - Virtual Infrastructure Manager
+ * Copyright (C) 2021 Maxime Dor
+ *
+ * http://kamax.io/hbox/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.kamax.test.vbox;
+
+import io.kamax.vbox.VBoxSVCProbe;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class VBoxSVCProbeTest {
+
+    private static File addProcess(File procDir, long pid, String name) throws Exception {
+        File process = new File(procDir, Long.toString(pid));
+        assertTrue(process.mkdirs());
+        Files.write(new File(process, "comm").toPath(), (name + "\n").getBytes(StandardCharsets.UTF_8));
+        return process;
+    }
+
+    @Test
+    public void triggerOnlyWhenAbsent() throws Exception {
+        File procDir = Files.createTempDirectory("hbox-proc").toFile();
+        addProcess(procDir, 10, "bash");
+        VBoxSVCProbe probe = new VBoxSVCProbe(procDir, new File(procDir, "ipcd"), 60000L);
+        AtomicInteger triggers = new AtomicInteger();
+
+        assertEquals(VBoxSVCProbe.Result.Absent, probe.probe());
+        assertTrue(probe.triggerIfAbsent(() -> {
+            try {
+                addProcess(procDir, 42, "VBoxSVC");
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+            triggers.incrementAndGet();
+        }));
+
+        // Running now, the trigger is skipped
+        for (int i = 0; i < 10; i++) {
+            assertFalse(probe.triggerIfAbsent(triggers::incrementAndGet));
+        }
+        assertEquals(1, triggers.get());
+        assertEquals(42, probe.getPid());
+        assertEquals(1, probe.getTriggersRun());
+        assertEquals(10, probe.getTriggersSaved());
+    }
+
+    @Test
+    public void cachedUntilInvalidated() throws Exception {
+        File procDir = Files.createTempDirectory("hbox-proc").toFile();
+        File process = addProcess(procDir, 7, "VBoxSVC");
+        VBoxSVCProbe probe = new VBoxSVCProbe(procDir, new File(procDir, "ipcd"), 60000L);
+        assertTrue(probe.isAlive());
+
+        assertTrue(new File(process, "comm").delete());
+        assertTrue(process.delete());
+        assertTrue(probe.isAlive());
+        probe.invalidate();
+        assertFalse(probe.isAlive());
+        assertEquals(-1, probe.getPid());
+    }
+
+    @Test
+    public void socketWithoutProcessList() throws Exception {
+        File ipcDir = Files.createTempDirectory("hbox-ipc").toFile();
+        File socket = new File(ipcDir, "ipcd");
+        VBoxSVCProbe probe = new VBoxSVCProbe(new File(ipcDir, "noProc"), socket, 0L);
+        assertEquals(VBoxSVCProbe.Result.Absent, probe.probe());
+        assertTrue(socket.createNewFile());
+        assertEquals(VBoxSVCProbe.Result.Alive, probe.probe());
+
+        VBoxSVCProbe unknown = new VBoxSVCProbe(new File(ipcDir, "noProc"), new File(ipcDir, "none/ipcd"), 0L);
+        assertEquals(VBoxSVCProbe.Result.Unknown, unknown.probe());
+    }
+
+}
@@ -0,0 +1,142 @@
+/*
+ * Hyperbox - Virtual Infrastructure Manager
+ * Copyright (C) 2021 Maxime Dor
+ *
+ * http://kamax.io/hbox/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.kamax.test.vbox;
+
+import io.kamax.hbox.Configuration;
+import io.kamax.vbox.VBoxSVCProbe;
+import io.kamax.vbox.VBoxSVCWatcher;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class VBoxSVCWatcherTest {
+
+    private static File setProcess(File procDir, long pid) throws Exception {
+        File process = new File(procDir, Long.toString(pid));
+        process.mkdirs();
+        Files.write(new File(process, "comm").toPath(), "VBoxSVC\n".getBytes(StandardCharsets.UTF_8));
+        return process;
+    }
+
+    private static void removeProcess(File process) {
+        new File(process, "comm").delete();
+        process.delete();
+    }
+
+    @Test
+    public void restartReconnects() throws Exception {
+        Configuration.setSetting("vbox.xpcom.svc.watch.retry", "50");
+        File procDir = Files.createTempDirectory("hbox-proc").toFile();
+        File first = setProcess(procDir, 100);
+
+        AtomicInteger invalidated = new AtomicInteger();
+        AtomicInteger attempts = new AtomicInteger();
+        try (VBoxSVCWatcher watcher = new VBoxSVCWatcher(new VBoxSVCProbe(procDir, new File(procDir, "ipcd"), 60000L))) {
+            watcher.addListener(new VBoxSVCWatcher.Listener() {
+
+                @Override
+                public void invalidate() {
+                    invalidated.incrementAndGet();
+                }
+
+                @Override
+                public void reconnect() {
+                    if (attempts.incrementAndGet() < 3) {
+                        throw new IllegalStateException("VBoxSVC not ready");
+                    }
+                }
+
+            });
+
+            assertNull(watcher.check());
+            assertNull(watcher.check());
+
+            removeProcess(first);
+            setProcess(procDir, 200);
+            VBoxSVCWatcher.Incident incident = watcher.check();
+            assertNotNull(incident);
+            assertEquals(1, invalidated.get());
+            assertEquals(100, incident.getPreviousPid());
+
+            incident.getReconnected().get(2, TimeUnit.SECONDS);
+            assertEquals(200, incident.getPid());
+            assertEquals(3, incident.getAttempts());
+            assertTrue(incident.getTimeToReconnect(TimeUnit.MILLISECONDS) >= 100);
+            assertEquals(1, watcher.getReconnectTime().getCount());
+            assertNull(watcher.check());
+            assertEquals(1, watcher.getIncidentCount());
+        }
+    }
+
+    @Test
+    public void blockedReconnectKeepsWatching() throws Exception {
+        Configuration.setSetting("vbox.xpcom.svc.watch.interval", "20");
+        File procDir = Files.createTempDirectory("hbox-proc").toFile();
+        File first = setProcess(procDir, 100);
+
+        CountDownLatch blocked = new CountDownLatch(1);
+        try (VBoxSVCWatcher watcher = new VBoxSVCWatcher(new VBoxSVCProbe(procDir, new File(procDir, "ipcd"), 60000L))) {
+            watcher.addListener(new VBoxSVCWatcher.Listener() {
+
+                @Override
+                public void invalidate() {
+                    // nothing cached
+                }
+
+                @Override
+                public void reconnect() throws Exception {
+                    blocked.await(5, TimeUnit.SECONDS);
+                }
+
+            });
+            watcher.start();
+            Thread.sleep(100L);
+
+            removeProcess(first);
+            File second = setProcess(procDir, 200);
+            for (int i = 0; i < 100 && watcher.getIncidentCount() < 1; i++) {
+                Thread.sleep(10L);
+            }
+
+            // The reconnect of the first incident is stuck, the pid checks go on
+            removeProcess(second);
+            setProcess(procDir, 300);
+            for (int i = 0; i < 100 && watcher.getIncidentCount() < 2; i++) {
+                Thread.sleep(10L);
+            }
+            assertEquals(2, watcher.getIncidentCount());
+            blocked.countDown();
+        } finally {
+            Configuration.setSetting("vbox.xpcom.svc.watch.interval", "1000");
+        }
+    }
+
+}
@@ -0,0 +1,98 @@
+/*
+ * Hyperbox - Virtual Infrastructure Manager
+ * Copyright (C) 2021 Maxime Dor
+ *
+ * http://kamax.io/hbox/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.kamax.test.vbox;
+
+import io.kamax.hbox.Configuration;
+import io.kamax.vbox.VBoxWSAdmission;
+import io.kamax.vbox.VBoxWSOptions;
+import io.kamax.vbox.exception.VBoxWSRejectedException;
+import org.junit.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class VBoxWSAdmissionTest {
+
+    @Test
+    public void reservedForInteractive() throws Exception {
+        Configuration.setSetting("vbox.ws.admission.background.budget", "50");
+        VBoxWSAdmission admission = new VBoxWSAdmission();
+        VBoxWSOptions options = new VBoxWSOptions("http://localhost:18083?poolSize=4");
+
+        // One of the four slots is kept for interactive calls
+        VBoxWSAdmission.Permit[] background = new VBoxWSAdmission.Permit[3];
+        for (int i = 0; i < background.length; i++) {
+            background[i] = admission.acquire(options, VBoxWSAdmission.Lane.Background);
+        }
+        try {
+            admission.acquire(options, VBoxWSAdmission.Lane.Background);
+            fail("Background call admitted on a reserved slot");
+        } catch (VBoxWSRejectedException e) {
+            assertEquals("background", e.getLane());
+        }
+
+        try (VBoxWSAdmission.Permit interactive = admission.acquire(options, VBoxWSAdmission.Lane.Interactive)) {
+            assertEquals(4, admission.getActive(options));
+        }
+        for (VBoxWSAdmission.Permit permit : background) {
+            permit.close();
+        }
+        assertEquals(0, admission.getActive(options));
+        assertEquals(3, admission.getStats(options, VBoxWSAdmission.Lane.Background).getAdmitted());
+        assertEquals(1, admission.getStats(options, VBoxWSAdmission.Lane.Background).getRejected());
+        assertEquals(1, admission.getStats(options, VBoxWSAdmission.Lane.Interactive).getCallTime().getCount());
+    }
+
+    @Test
+    public void interactiveFirst() throws Exception {
+        Configuration.setSetting("vbox.ws.admission.maintenance.budget", "5000");
+        VBoxWSAdmission admission = new VBoxWSAdmission();
+        VBoxWSOptions options = new VBoxWSOptions("http://localhost:18084?poolSize=1");
+
+        VBoxWSAdmission.Permit held = admission.acquire(options, VBoxWSAdmission.Lane.Interactive);
+        CountDownLatch order = new CountDownLatch(1);
+        CompletableFuture<Long> maintenance = CompletableFuture.supplyAsync(() -> {
+            try (VBoxWSAdmission.Permit permit = admission.acquire(options, VBoxWSAdmission.Lane.Maintenance)) {
+                return order.getCount();
+            }
+        });
+        Thread.sleep(100L);
+        CompletableFuture<Long> interactive = CompletableFuture.supplyAsync(() -> {
+            try (VBoxWSAdmission.Permit permit = admission.acquire(options, VBoxWSAdmission.Lane.Interactive)) {
+                order.countDown();
+                return order.getCount();
+            }
+        });
+        Thread.sleep(100L);
+
+        held.close();
+        assertEquals(0L, (long) interactive.get(2, TimeUnit.SECONDS));
+        // The maintenance call queued first but only got the slot after the interactive one
+        assertEquals(0L, (long) maintenance.get(2, TimeUnit.SECONDS));
+        assertTrue(admission.getStats(options, VBoxWSAdmission.Lane.Maintenance).getQueueTime().getMax(TimeUnit.MILLISECONDS) >= 100L);
+    }
+
+}
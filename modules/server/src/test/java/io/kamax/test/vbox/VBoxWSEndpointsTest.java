@@ -0,0 +1,169 @@
+/*
+ * Hyperbox - Virtual Infrastructure Manager
+ * Copyright (C) 2021 Maxime Dor
+ *
+ * http://kamax.io/hbox/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.kamax.test.vbox;
+
+import io.kamax.hbox.exception.HypervisorException;
+import io.kamax.vbox.VBoxWSEndpoints;
+import io.kamax.vbox.VBoxWSOptions;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.fail;
+
+public class VBoxWSEndpointsTest {
+
+    @Test
+    public void parse() throws Exception {
+        VBoxWSEndpoints set = new VBoxWSEndpoints("https://user:secret@a:18083, b, http://c:18084", VBoxWSEndpoints.Policy.LowestLatency);
+        List<VBoxWSEndpoints.Endpoint> endpoints = set.getEndpoints();
+        assertEquals(3, endpoints.size());
+        assertEquals("https://a:18083", endpoints.get(0).getOptions().extractServer());
+
+        VBoxWSOptions b = endpoints.get(1).getOptions();
+        assertEquals("https://b:18083", b.extractServer());
+        assertEquals("user", b.getUsername());
+        assertEquals("secret", new String(b.getPasswd()));
+
+        VBoxWSOptions c = endpoints.get(2).getOptions();
+        assertEquals("http://c:18084", c.extractServer());
+        assertEquals("user", c.getUsername());
+    }
+
+    @Test
+    public void parseCredentials() throws Exception {
+        // Commas in the credentials do not split the entries
+        List<VBoxWSEndpoints.Endpoint> endpoints = new VBoxWSEndpoints("http://user:p,ss@a:18083, b:18084").getEndpoints();
+        assertEquals(2, endpoints.size());
+        assertEquals("http://b:18084", endpoints.get(1).getOptions().extractServer());
+        assertEquals("p,ss", new String(endpoints.get(1).getOptions().getPasswd()));
+
+        // Encoded credentials are given as such to the other entries
+        endpoints = new VBoxWSEndpoints("http://us%40er:p%3As%40s%25@a:18083,b").getEndpoints();
+        assertEquals(2, endpoints.size());
+        assertEquals("us@er", endpoints.get(1).getOptions().getUsername());
+        assertEquals("p:s@s%", new String(endpoints.get(1).getOptions().getPasswd()));
+
+        // Credentials of a later entry only belong to it
+        endpoints = new VBoxWSEndpoints("http://a:18083,admin:pw@b:18084").getEndpoints();
+        assertEquals(2, endpoints.size());
+        assertEquals("", endpoints.get(0).getOptions().getUsername());
+        assertEquals("http://b:18084", endpoints.get(1).getOptions().extractServer());
+        assertEquals("admin", endpoints.get(1).getOptions().getUsername());
+    }
+
+    @Test
+    public void failover() throws Exception {
+        VBoxWSEndpoints set = new VBoxWSEndpoints("a,b", VBoxWSEndpoints.Policy.LowestLatency);
+        String host = set.execute(null, options -> {
+            if ("a".equals(options.getHost())) {
+                throw new ConnectException("Connection refused");
+            }
+            return options.getHost();
+        });
+        assertEquals("b", host);
+        assertEquals(VBoxWSEndpoints.Health.Down, set.getEndpoints().get(0).getHealth());
+
+        // The failed endpoint is not tried again until its retry time
+        assertEquals("b", set.select(null).getOptions().getHost());
+
+        try {
+            set.execute(null, options -> {
+                throw new ConnectException("Connection refused");
+            });
+            fail("Call succeeded without any endpoint");
+        } catch (HypervisorException e) {
+            assertEquals("Connection refused", e.getCause().getMessage());
+        }
+    }
+
+    @Test
+    public void applicationFailure() throws Exception {
+        VBoxWSEndpoints set = new VBoxWSEndpoints("a,b", VBoxWSEndpoints.Policy.LowestLatency);
+        AtomicInteger calls = new AtomicInteger();
+        try {
+            set.execute(null, options -> {
+                calls.incrementAndGet();
+                throw new IllegalStateException("Could not find a registered machine named 'vm-0001'");
+            });
+            fail("Call succeeded after a fault");
+        } catch (IllegalStateException e) {
+            // thrown as is
+        }
+        assertEquals(1, calls.get());
+        assertEquals(VBoxWSEndpoints.Health.Up, set.getEndpoints().get(0).getHealth());
+        assertEquals(VBoxWSEndpoints.Health.Up, set.getEndpoints().get(1).getHealth());
+
+        // Checked faults too, while a custom classifier can still tell them apart
+        try {
+            set.execute(null, options -> {
+                calls.incrementAndGet();
+                throw new IOException("Invalid machine state");
+            });
+            fail("Call succeeded after a fault");
+        } catch (HypervisorException e) {
+            assertEquals("Invalid machine state", e.getCause().getMessage());
+        }
+        assertEquals(2, calls.get());
+        assertEquals(VBoxWSEndpoints.Health.Up, set.getEndpoints().get(0).getHealth());
+
+        VBoxWSEndpoints custom = new VBoxWSEndpoints("a,b", VBoxWSEndpoints.Policy.LowestLatency, e -> e instanceof IOException);
+        assertEquals("b", custom.execute(null, options -> {
+            if ("a".equals(options.getHost())) {
+                throw new IOException("Gateway timeout");
+            }
+            return options.getHost();
+        }));
+        assertEquals(VBoxWSEndpoints.Health.Down, custom.getEndpoints().get(0).getHealth());
+    }
+
+    @Test
+    public void lowestLatency() throws Exception {
+        VBoxWSEndpoints set = new VBoxWSEndpoints("a,b,c", VBoxWSEndpoints.Policy.LowestLatency);
+        set.getEndpoints().get(0).recordSuccess(5, TimeUnit.MILLISECONDS);
+        set.getEndpoints().get(1).recordSuccess(1, TimeUnit.MILLISECONDS);
+        set.getEndpoints().get(2).recordSuccess(3, TimeUnit.MILLISECONDS);
+        assertEquals("b", set.select(null).getOptions().getHost());
+
+        set.getEndpoints().get(1).recordFailure();
+        assertEquals("c", set.select(null).getOptions().getHost());
+    }
+
+    @Test
+    public void sticky() throws Exception {
+        VBoxWSEndpoints set = new VBoxWSEndpoints("a,b,c", VBoxWSEndpoints.Policy.Sticky);
+        String key = "8c1b9a2e-0000-4000-8000-000000000001";
+        VBoxWSEndpoints.Endpoint endpoint = set.select(key);
+        for (int i = 0; i < 10; i++) {
+            assertEquals(endpoint, set.select(key));
+        }
+
+        endpoint.recordFailure();
+        assertNotEquals(endpoint, set.select(key));
+    }
+
+}
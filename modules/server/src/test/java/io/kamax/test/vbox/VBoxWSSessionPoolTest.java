@@ -0,0 +1,153 @@
+/*
+ * Hyperbox - Virtual Infrastructure Manager
+ * Copyright (C) 2021 Maxime Dor
+ *
+ * http://kamax.io/hbox/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.kamax.test.vbox;
+
+import io.kamax.hbox.exception.HypervisorException;
+import io.kamax.vbox.VBoxWSOptions;
+import io.kamax.vbox.VBoxWSSessionFactory;
+import io.kamax.vbox.VBoxWSSessionPool;
+import org.junit.Test;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class VBoxWSSessionPoolTest {
+
+    private static class Factory implements VBoxWSSessionFactory<String> {
+
+        private final AtomicInteger logons = new AtomicInteger();
+        private final AtomicInteger keepAlives = new AtomicInteger();
+        private final Set<String> open = ConcurrentHashMap.newKeySet();
+
+        @Override
+        public String logon(VBoxWSOptions options) {
+            String session = options.getUsername() + "-" + logons.incrementAndGet();
+            open.add(session);
+            return session;
+        }
+
+        @Override
+        public void keepAlive(String session) {
+            keepAlives.incrementAndGet();
+        }
+
+        @Override
+        public void logoff(String session) {
+            open.remove(session);
+        }
+
+        @Override
+        public boolean isInvalid(Throwable t) {
+            return t.getMessage().contains("InvalidObjectFault");
+        }
+
+    }
+
+    @Test
+    public void borrowAndReturn() throws Exception {
+        Factory factory = new Factory();
+        VBoxWSOptions options = new VBoxWSOptions("http://alice@localhost:18083?poolSize=2");
+        try (VBoxWSSessionPool<String> pool = new VBoxWSSessionPool<>(factory, 1, 100L, 60000L)) {
+            pool.prewarm(options);
+            assertEquals(1, factory.logons.get());
+
+            String first;
+            try (VBoxWSSessionPool<String>.Lease lease = pool.borrow(options)) {
+                first = lease.get();
+                try (VBoxWSSessionPool<String>.Lease other = pool.borrow(options)) {
+                    assertNotEquals(first, other.get());
+                    try {
+                        pool.borrow(options);
+                        fail("Borrowed more sessions than the pool size");
+                    } catch (HypervisorException e) {
+                        assertEquals(1, pool.getTimeoutCount());
+                    }
+                }
+            }
+
+            try (VBoxWSSessionPool<String>.Lease lease = pool.borrow(options)) {
+                assertEquals(first, lease.get());
+                assertTrue(lease.fail(new RuntimeException("InvalidObjectFault")));
+            }
+            assertEquals(1, pool.getEvictionCount());
+            assertEquals(1, pool.getSize(options));
+            assertEquals(2, pool.getHitCount());
+            assertEquals(1, pool.getMissCount());
+        }
+        assertTrue(factory.open.isEmpty());
+    }
+
+    @Test
+    public void keepAliveAndTrim() throws Exception {
+        Factory factory = new Factory();
+        VBoxWSOptions options = new VBoxWSOptions("http://bob@localhost:18083?poolSize=4&sessionIdle=100ms");
+        try (VBoxWSSessionPool<String> pool = new VBoxWSSessionPool<>(factory, 1, 100L, 20L)) {
+            VBoxWSSessionPool<String>.Lease a = pool.borrow(options);
+            VBoxWSSessionPool<String>.Lease b = pool.borrow(options);
+            a.close();
+            b.close();
+            assertEquals(2, pool.getSize(options));
+
+            for (int i = 0; i < 50 && (pool.getSize(options) > 1 || factory.keepAlives.get() == 0); i++) {
+                Thread.sleep(20L);
+            }
+            assertEquals(1, pool.getSize(options));
+            assertTrue(factory.keepAlives.get() > 0);
+        }
+    }
+
+    @Test
+    public void invalidateAndReconnect() throws Exception {
+        Factory factory = new Factory();
+        VBoxWSOptions options = new VBoxWSOptions("http://carol@localhost:18083?poolSize=4");
+        try (VBoxWSSessionPool<String> pool = new VBoxWSSessionPool<>(factory, 2, 100L, 60000L)) {
+            pool.prewarm(options);
+            VBoxWSSessionPool<String>.Lease lent = pool.borrow(options);
+            String stale = lent.get();
+
+            // Stale sessions stop counting right away, so the reconnect opens fresh ones
+            pool.invalidate();
+            assertEquals(0, pool.getSize(options));
+            pool.reconnect();
+            assertEquals(2, pool.getSize(options));
+
+            lent.close();
+            assertEquals(2, pool.getSize(options));
+            assertFalse(factory.open.contains(stale));
+            for (int i = 0; i < 50 && factory.open.size() > 2; i++) {
+                Thread.sleep(10L);
+            }
+            assertEquals(2, factory.open.size());
+            assertEquals(0, pool.getEvictionCount());
+            try (VBoxWSSessionPool<String>.Lease lease = pool.borrow(options)) {
+                assertNotEquals(stale, lease.get());
+            }
+        }
+    }
+
+}
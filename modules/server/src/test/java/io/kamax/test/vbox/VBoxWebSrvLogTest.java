@@ -0,0 +1,72 @@
+/*
+ * Hyperbox - Virtual Infrastructure Manager
+ * Copyright (C) 2021 Maxime Dor
+ *
+ * http://kamax.io/hbox/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.kamax.test.vbox;
+
+import io.kamax.vbox.VBoxWebSrvLog;
+import io.kamax.vbox.VBoxWebSrvLogEvent;
+import io.kamax.vbox.VBoxWebSrvLogParser;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+
+public class VBoxWebSrvLogTest {
+
+    @Test
+    public void parse() {
+        VBoxWebSrvLogEvent ev = VBoxWebSrvLogParser.parse("00:01:02.008766 SQPmp    Socket connection successful: host = default (localhost), port = 18084, master socket = 8");
+        assertEquals(VBoxWebSrvLogEvent.Type.Ready, ev.getType());
+        assertEquals(62008766L, ev.getTimestamp());
+        assertEquals("SQPmp", ev.getThread());
+        assertEquals("Socket connection successful: host = default (localhost), port = 18084, master socket = 8", ev.getMessage());
+
+        ev = VBoxWebSrvLogParser.parse("All rights reserved.");
+        assertEquals(VBoxWebSrvLogEvent.Type.Other, ev.getType());
+        assertEquals(-1L, ev.getTimestamp());
+        assertEquals("All rights reserved.", ev.getMessage());
+    }
+
+    @Test
+    public void classify() {
+        assertEquals(VBoxWebSrvLogEvent.Type.AddressInUse, VBoxWebSrvLogParser.classify("00:00:00.008846 SQPmp    #### SOAP FAULT: Address already in use [detected]"));
+        assertEquals(VBoxWebSrvLogEvent.Type.SoapFault, VBoxWebSrvLogParser.classify("00:00:10.000001 SQW01    #### SOAP FAULT: Invalid managed object reference \"1234\" [detected]"));
+        assertEquals(VBoxWebSrvLogEvent.Type.SessionTimeout, VBoxWebSrvLogParser.classify("00:05:00.000001 Watchdog Watchdog: Session 5C4F0A3F3E4A timed out, deleting"));
+        assertEquals(VBoxWebSrvLogEvent.Type.Other, VBoxWebSrvLogParser.classify("00:00:00.000236 main     Process ID: 22937"));
+        assertEquals(VBoxWebSrvLogEvent.Type.Other, VBoxWebSrvLogParser.classify(""));
+    }
+
+    @Test
+    public void ringBuffer() {
+        VBoxWebSrvLog log = new VBoxWebSrvLog(3);
+        for (int i = 1; i <= 5; i++) {
+            log.add("line " + i);
+        }
+        log.add("00:00:00.008766 SQPmp    Socket connection successful: host = default (localhost), port = 18084, master socket = 8");
+
+        assertEquals(6, log.getLineCount());
+        assertEquals(Arrays.asList("line 4", "line 5"), log.getLines(3).subList(0, 2));
+        assertEquals(Arrays.asList("line 5"), log.getLines(2).subList(0, 1));
+        assertEquals(5, log.getCount(VBoxWebSrvLogEvent.Type.Other));
+        assertEquals(1, log.getCount(VBoxWebSrvLogEvent.Type.Ready));
+    }
+
+}
@@ -0,0 +1,179 @@
+/*
+ * Hyperbox - Virtual Infrastructure Manager
+ * Copyright (C) 2021 Maxime Dor
+ *
+ * http://kamax.io/hbox/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.kamax.test.vbox;
+
+import io.kamax.hbox.Configuration;
+import io.kamax.tools.logging.LogLevel;
+import io.kamax.tools.logging.Logger;
+import io.kamax.vbox.VBoxWSOptions;
+import io.kamax.vbox.VBoxWebSrv;
+import io.kamax.vbox.VBoxWebSrvPool;
+import io.kamax.vbox.VBoxWebSrvRegistry;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+public class VBoxWebSrvPoolTest {
+
+    @BeforeClass
+    public static void beforeClass() {
+        Logger.setLevel(LogLevel.Debug);
+    }
+
+    @Test
+    public void roundRobin() {
+        Configuration.setSetting("vbox.exec.web.path", "src/test/script/vboxwebsrv-ok");
+        VBoxWebSrvPool pool = new VBoxWebSrvPool("localhost", "null", VBoxWebSrvPool.Strategy.RoundRobin, 2, 2);
+        pool.start();
+        try {
+            assertEquals(2, pool.getSize());
+            assertNotEquals(pool.getEndpoints().get(0).getPort(), pool.getEndpoints().get(1).getPort());
+            assertNotEquals(pool.pick(null).getPort(), pool.pick(null).getPort());
+        } finally {
+            pool.stop();
+        }
+        assertFalse(pool.isRunning());
+    }
+
+    @Test
+    public void leastOutstandingAndSticky() {
+        Configuration.setSetting("vbox.exec.web.path", "src/test/script/vboxwebsrv-ok");
+        VBoxWebSrvPool pool = new VBoxWebSrvPool("localhost", "null", VBoxWebSrvPool.Strategy.LeastOutstanding, 2, 2);
+        pool.start();
+        try {
+            try (VBoxWebSrvPool.Lease lease = pool.acquire(null)) {
+                assertEquals(1, pool.getOutstanding());
+                assertNotEquals(lease.getOptions().getPort(), pool.pick(null).getPort());
+            }
+            assertEquals(0, pool.getOutstanding());
+        } finally {
+            pool.stop();
+        }
+
+        pool = new VBoxWebSrvPool("localhost", "null", VBoxWebSrvPool.Strategy.Sticky, 2, 2);
+        pool.start();
+        try {
+            VBoxWSOptions endpoint = pool.pick("8c1b9a2e-0000-4000-8000-000000000001");
+            for (int i = 0; i < 10; i++) {
+                assertEquals(endpoint.getPort(), pool.pick("8c1b9a2e-0000-4000-8000-000000000001").getPort());
+            }
+        } finally {
+            pool.stop();
+        }
+    }
+
+    private static void waitFor(BooleanSupplier condition) throws InterruptedException {
+        for (int i = 0; i < 100 && !condition.getAsBoolean(); i++) {
+            Thread.sleep(50L);
+        }
+        assertTrue(condition.getAsBoolean());
+    }
+
+    @Test
+    public void refillAndTrim() throws InterruptedException {
+        Configuration.setSetting("vbox.exec.web.path", "src/test/script/vboxwebsrv-ok");
+        Configuration.setSetting("vbox.exec.web.pool.checkInterval", "50");
+        Configuration.setSetting("vbox.exec.web.pool.idleTimeout", "200");
+        Configuration.setSetting("vbox.exec.web.pool.growThreshold", "1");
+        VBoxWebSrvPool pool = new VBoxWebSrvPool("localhost", "null", VBoxWebSrvPool.Strategy.LeastOutstanding, 1, 2);
+        try {
+            pool.start();
+
+            // A lost instance is replaced to keep the minimum size
+            int lost = pool.pick(null).getPort();
+            VBoxWebSrvRegistry.getInstances().stream().filter(srv -> srv.isRunning() && srv.getPort() == lost).forEach(srv -> ((VBoxWebSrv) srv).kill());
+            waitFor(() -> pool.getSize() == 1 && pool.getEndpoints().get(0).getPort() != lost);
+
+            // An idle instance above the minimum is stopped while another one is still busy
+            VBoxWebSrvPool.Lease busy = pool.acquire(null);
+            waitFor(() -> pool.getSize() == 2);
+            try (VBoxWebSrvPool.Lease idle = pool.acquire(null)) {
+                assertNotEquals(busy.getOptions().getPort(), idle.getOptions().getPort());
+            }
+            waitFor(() -> pool.getSize() == 1);
+            assertEquals(busy.getOptions().getPort(), pool.getEndpoints().get(0).getPort());
+            busy.close();
+        } finally {
+            pool.stop();
+            Configuration.setSetting("vbox.exec.web.pool.checkInterval", "5000");
+            Configuration.setSetting("vbox.exec.web.pool.idleTimeout", "60000");
+            Configuration.setSetting("vbox.exec.web.pool.growThreshold", "16");
+        }
+    }
+
+    private static boolean isServing(int port) {
+        return VBoxWebSrvRegistry.getInstances().stream().anyMatch(srv -> srv.isRunning() && srv.getPort() == port);
+    }
+
+    @Test
+    public void trimDuringAcquire() throws Exception {
+        Configuration.setSetting("vbox.exec.web.path", "src/test/script/vboxwebsrv-ok");
+        Configuration.setSetting("vbox.exec.web.pool.checkInterval", "1");
+        Configuration.setSetting("vbox.exec.web.pool.idleTimeout", "0");
+        Configuration.setSetting("vbox.exec.web.pool.growThreshold", "1");
+        VBoxWebSrvPool pool = new VBoxWebSrvPool("localhost", "null", VBoxWebSrvPool.Strategy.RoundRobin, 1, 2);
+        ExecutorService workers = Executors.newFixedThreadPool(4);
+        try {
+            pool.start();
+
+            // Instances keep being added and trimmed while leases are taken, none may be handed out on a retired instance
+            long deadline = System.currentTimeMillis() + 2000L;
+            List<Future<Integer>> results = new ArrayList<>();
+            for (int i = 0; i < 4; i++) {
+                results.add(workers.submit(() -> {
+                    int leases = 0;
+                    while (System.currentTimeMillis() < deadline) {
+                        try (VBoxWebSrvPool.Lease lease = pool.acquire(null)) {
+                            Thread.sleep(2L);
+                            assertTrue(isServing(lease.getOptions().getPort()));
+                        }
+                        leases++;
+                        Thread.sleep(1L);
+                    }
+                    return leases;
+                }));
+            }
+            for (Future<Integer> result : results) {
+                assertTrue(result.get(10, TimeUnit.SECONDS) > 0);
+            }
+            assertEquals(0, pool.getOutstanding());
+        } finally {
+            workers.shutdownNow();
+            pool.stop();
+            Configuration.setSetting("vbox.exec.web.pool.checkInterval", "5000");
+            Configuration.setSetting("vbox.exec.web.pool.idleTimeout", "60000");
+            Configuration.setSetting("vbox.exec.web.pool.growThreshold", "16");
+        }
+    }
+
+}
@@ -0,0 +1,64 @@
+/*
+ * Hyperbox - Virtual Infrastructure Manager
+ * Copyright (C) 2021 Maxime Dor
+ *
+ * http://kamax.io/hbox/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.kamax.test.vbox;
+
+import io.kamax.vbox.VBoxWebSrvStateFile;
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+
+import static org.junit.Assert.*;
+
+public class VBoxWebSrvStateFileTest {
+
+    @Test
+    public void defaultLocationIsPrivate() throws Exception {
+        File dir = VBoxWebSrvStateFile.getLocation("localhost", 18083).getParentFile();
+        assertNotEquals(new File(System.getProperty("java.io.tmpdir")).getCanonicalFile(), dir.getCanonicalFile());
+        assertEquals(System.getProperty("user.name"), Files.getOwner(dir.toPath(), LinkOption.NOFOLLOW_LINKS).getName());
+    }
+
+    @Test
+    public void saveReplacesLink() throws Exception {
+        Assume.assumeTrue(VBoxWebSrvStateFile.isSupported());
+
+        Path dir = Files.createTempDirectory("hbox-state");
+        Path target = Files.write(dir.resolve("target"), "untouched".getBytes(StandardCharsets.UTF_8));
+        Path location = Files.createSymbolicLink(dir.resolve("hbox-vboxwebsrv.state"), target);
+        assertNull(VBoxWebSrvStateFile.load(location.toFile()));
+
+        new VBoxWebSrvStateFile(1234, "localhost", 18083, "/usr/bin/vboxwebsrv").save(location.toFile());
+        assertEquals("untouched", new String(Files.readAllBytes(target), StandardCharsets.UTF_8));
+        assertTrue(Files.isRegularFile(location, LinkOption.NOFOLLOW_LINKS));
+        assertEquals(2, dir.toFile().list().length);
+
+        VBoxWebSrvStateFile state = VBoxWebSrvStateFile.load(location.toFile());
+        assertNotNull(state);
+        assertEquals(1234, state.getPid());
+        assertEquals(18083, state.getPort());
+    }
+
+}
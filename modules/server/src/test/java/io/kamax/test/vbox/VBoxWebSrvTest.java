@@ -25,12 +25,27 @@ import io.kamax.hbox.exception.HypervisorException;
 import io.kamax.tools.logging.LogLevel;
 import io.kamax.tools.logging.Logger;
 import io.kamax.vbox.VBoxWebSrv;
+import io.kamax.vbox.VBoxWebSrvPorts;
+import io.kamax.vbox.VBoxWebSrvRegistry;
+import io.kamax.vbox.VBoxWebSrvStartupStats;
+import io.kamax.vbox.VBoxWebSrvStateFile;
 import io.kamax.vbox._VBoxWebSrv;
 import org.junit.BeforeClass;
+import org.junit.Assume;
 import org.junit.Test;
 
+import java.io.File;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 public class VBoxWebSrvTest {
 
@@ -58,4 +73,148 @@ public class VBoxWebSrvTest {
         Thread.sleep(5000L);
     }
 
+    @Test
+    public void startAsyncOk() throws Exception {
+        Configuration.setSetting("vbox.exec.web.path", "src/test/script/vboxwebsrv-ok");
+        VBoxWebSrv srv = new VBoxWebSrv();
+        CompletableFuture<_VBoxWebSrv> ready = srv.startAsync();
+        assertSame(srv, ready.get(2, TimeUnit.SECONDS));
+        assertEquals(_VBoxWebSrv.State.Started, srv.getState());
+        assertSame(ready, srv.startAsync());
+        assertEquals("ok", srv.getStartupStats().getResult());
+        assertTrue(srv.getStartupStats().getDuration(VBoxWebSrvStartupStats.Phase.Total, TimeUnit.NANOSECONDS) >= 0);
+        assertTrue(VBoxWebSrvStartupStats.getHistogram(VBoxWebSrvStartupStats.Phase.Total).getCount() > 0);
+        srv.stop();
+        assertEquals(_VBoxWebSrv.State.Stopped, srv.getState());
+    }
+
+    @Test
+    public void startAsyncPortInUse() throws Exception {
+        Configuration.setSetting("vbox.exec.web.path", "src/test/script/vboxwebsrv-portAlreadyInUse");
+        VBoxWebSrv srv = new VBoxWebSrv();
+        try {
+            srv.startAsync().get(2, TimeUnit.SECONDS);
+            fail("Start should have failed");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof HypervisorException);
+        } finally {
+            srv.stop();
+        }
+    }
+
+    @Test
+    public void startAsyncUnexpectedExit() throws Exception {
+        Configuration.setSetting("vbox.exec.web.path", "src/test/script/vboxwebsrv-exit");
+        VBoxWebSrv srv = new VBoxWebSrv();
+        try {
+            srv.startAsync().get(2, TimeUnit.SECONDS);
+            fail("Start should have failed");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof HypervisorException);
+        }
+        assertEquals(_VBoxWebSrv.State.Stopped, srv.getState());
+    }
+
+    @Test
+    public void adoptRunning() throws Exception {
+        Assume.assumeTrue(VBoxWebSrvStateFile.isSupported());
+        String execPath = "src/test/script/vboxwebsrv-ok";
+        Configuration.setSetting("vbox.exec.web.path", execPath);
+
+        // Simulate a process left behind by a previous run
+        int port;
+        try (ServerSocket socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+        Process previous = new ProcessBuilder(execPath, "-H", "localhost", "-p", Integer.toString(port)).start();
+        File stateFile = VBoxWebSrvStateFile.getLocation("localhost", port);
+        new VBoxWebSrvStateFile(VBoxWebSrvStateFile.getPid(previous), "localhost", port, execPath).save(stateFile);
+
+        // The stand-in script does not listen, so hold its port the way vboxwebsrv would
+        try (ServerSocket socket = new ServerSocket()) {
+            socket.bind(new InetSocketAddress("localhost", port));
+
+            VBoxWebSrv srv = new VBoxWebSrv("localhost", port, "null");
+            srv.start();
+            assertEquals(_VBoxWebSrv.State.Started, srv.getState());
+            assertTrue(srv.isRunning());
+
+            srv.stop();
+            assertFalse(srv.isRunning());
+            assertFalse(stateFile.exists());
+            assertTrue(previous.waitFor(1, TimeUnit.SECONDS));
+        } finally {
+            previous.destroyForcibly();
+        }
+    }
+
+    @Test
+    public void adoptedDied() throws Exception {
+        Assume.assumeTrue(VBoxWebSrvStateFile.isSupported());
+        String execPath = "src/test/script/vboxwebsrv-ok";
+        Configuration.setSetting("vbox.exec.web.path", execPath);
+
+        int port;
+        try (ServerSocket socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+        Process previous = new ProcessBuilder(execPath, "-H", "localhost", "-p", Integer.toString(port)).start();
+        File stateFile = VBoxWebSrvStateFile.getLocation("localhost", port);
+        new VBoxWebSrvStateFile(VBoxWebSrvStateFile.getPid(previous), "localhost", port, execPath).save(stateFile);
+
+        try (ServerSocket socket = new ServerSocket()) {
+            socket.bind(new InetSocketAddress("localhost", port));
+
+            VBoxWebSrv srv = new VBoxWebSrv("localhost", port, "null");
+            srv.start();
+            assertEquals(_VBoxWebSrv.State.Started, srv.getState());
+
+            // Once the adopted process is gone, stopping only cleans up and reports the instance as stopped
+            previous.destroyForcibly();
+            assertTrue(previous.waitFor(1, TimeUnit.SECONDS));
+            assertFalse(srv.isRunning());
+            srv.stop();
+            assertEquals(_VBoxWebSrv.State.Stopped, srv.getState());
+            assertFalse(stateFile.exists());
+        } finally {
+            previous.destroyForcibly();
+        }
+    }
+
+    @Test
+    public void sameFixedPort() {
+        Configuration.setSetting("vbox.exec.web.path", "src/test/script/vboxwebsrv-ok");
+        VBoxWebSrv first = new VBoxWebSrv("localhost", 0, "null");
+        first.start();
+        int port = first.getPort();
+        try {
+            VBoxWebSrv second = new VBoxWebSrv("localhost", port, "null");
+            try {
+                second.start();
+                fail("Two instances started on the same port");
+            } catch (HypervisorException e) {
+                assertFalse(second.isRunning());
+            }
+        } finally {
+            first.stop();
+        }
+        assertFalse(VBoxWebSrvPorts.get().isReserved(port));
+    }
+
+    @Test
+    public void stopAllEscalates() {
+        Configuration.setSetting("vbox.exec.web.path", "src/test/script/vboxwebsrv-ignoreTerm");
+        VBoxWebSrv srv = new VBoxWebSrv("localhost", 0, "null");
+        srv.start();
+        assertTrue(VBoxWebSrvRegistry.getInstances().contains(srv));
+
+        VBoxWebSrvRegistry.ShutdownReport report = VBoxWebSrvRegistry.stopAll(1000L);
+        assertFalse(srv.isRunning());
+        assertTrue(report.getStopped().contains(srv));
+        assertTrue(report.getEscalated().contains(srv));
+        assertTrue(report.getFailed().isEmpty());
+        assertTrue(report.getDuration() < 1500L);
+        assertFalse(VBoxWebSrvRegistry.getInstances().contains(srv));
+    }
+
 }
@@ -0,0 +1,76 @@
+/*
+ * Hyperbox - Virtual Infrastructure Manager
+ * Copyright (C) 2021 Maxime Dor
+ *
+ * http://kamax.io/hbox/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.kamax.test.vbox;
+
+import io.kamax.hbox.Configuration;
+import io.kamax.vbox.VBoxWebSrvTuning;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+
+public class VBoxWebSrvTuningTest {
+
+    @After
+    public void after() {
+        Configuration.setSetting("vbox.exec.web.clients", "16");
+        Configuration.setSetting("vbox.exec.web.threads", VBoxWebSrvTuning.AUTO);
+        Configuration.setSetting("vbox.exec.web.keepalive", VBoxWebSrvTuning.AUTO);
+        Configuration.setSetting("vbox.exec.web.timeout", VBoxWebSrvTuning.AUTO);
+        Configuration.setSetting("vbox.exec.web.checkInterval", VBoxWebSrvTuning.AUTO);
+    }
+
+    @Test
+    public void derived() {
+        assertEquals(Arrays.asList("-T", "32", "-k", "320", "-t", "300", "-i", "5"), VBoxWebSrvTuning.auto(4, 16).getArguments());
+        // Small hosts still get the minimum number of workers and connection reuse
+        assertEquals(Arrays.asList("-T", "16", "-k", "100", "-t", "300", "-i", "5"), VBoxWebSrvTuning.auto(1, 1).getArguments());
+        // Large ones are capped
+        assertEquals(Arrays.asList("-T", "1024", "-k", "10000", "-t", "300", "-i", "5"), VBoxWebSrvTuning.auto(512, 1000).getArguments());
+    }
+
+    @Test
+    public void explicit() {
+        Configuration.setSetting("vbox.exec.web.clients", "100");
+        Configuration.setSetting("vbox.exec.web.threads", "64");
+        Configuration.setSetting("vbox.exec.web.keepalive", VBoxWebSrvTuning.AUTO);
+        Configuration.setSetting("vbox.exec.web.timeout", "600");
+        Configuration.setSetting("vbox.exec.web.checkInterval", VBoxWebSrvTuning.AUTO);
+        // The keepalive follows the clients, the check interval follows the explicit timeout
+        assertEquals(Arrays.asList("-T", "64", "-k", "2000", "-t", "600", "-i", "10"), VBoxWebSrvTuning.fromConfiguration().getArguments());
+
+        // Negative values leave the vboxwebsrv defaults in place
+        Configuration.setSetting("vbox.exec.web.threads", "-1");
+        Configuration.setSetting("vbox.exec.web.keepalive", "-1");
+        Configuration.setSetting("vbox.exec.web.timeout", "-1");
+        Configuration.setSetting("vbox.exec.web.checkInterval", "-1");
+        assertEquals(Collections.emptyList(), VBoxWebSrvTuning.fromConfiguration().getArguments());
+
+        VBoxWebSrvTuning tuning = new VBoxWebSrvTuning();
+        tuning.setTimeout(120);
+        tuning.setCheckInterval(2);
+        assertEquals(Arrays.asList("-t", "120", "-i", "2"), tuning.getArguments());
+    }
+
+}
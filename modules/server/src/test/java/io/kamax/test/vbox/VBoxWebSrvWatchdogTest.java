@@ -0,0 +1,120 @@
+/*
+ * Hyperbox - Virtual Infrastructure Manager
+ * Copyright (C) 2021 Maxime Dor
+ *
+ * http://kamax.io/hbox/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.kamax.test.vbox;
+
+import io.kamax.hbox.Configuration;
+import io.kamax.tools.logging.LogLevel;
+import io.kamax.tools.logging.Logger;
+import io.kamax.vbox.VBoxWebSrv;
+import io.kamax.vbox.VBoxWebSrvWatchdog;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.function.BooleanSupplier;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class VBoxWebSrvWatchdogTest {
+
+    @BeforeClass
+    public static void beforeClass() {
+        Logger.setLevel(LogLevel.Debug);
+        Configuration.setSetting("vbox.exec.web.watchdog.interval", "50");
+        Configuration.setSetting("vbox.exec.web.watchdog.backoff.min", "10");
+        Configuration.setSetting("vbox.exec.web.watchdog.backoff.max", "50");
+        Configuration.setSetting("vbox.exec.web.watchdog.crashLoop.count", "3");
+    }
+
+    private static void waitFor(BooleanSupplier condition) throws InterruptedException {
+        for (int i = 0; i < 100 && !condition.getAsBoolean(); i++) {
+            Thread.sleep(50L);
+        }
+        assertTrue(condition.getAsBoolean());
+    }
+
+    private static boolean hasWatchdogThread() {
+        return Thread.getAllStackTraces().keySet().stream().anyMatch(t -> "vbox-websrv-watchdog".equals(t.getName()));
+    }
+
+    @Test
+    public void recover() throws InterruptedException {
+        Configuration.setSetting("vbox.exec.web.path", "src/test/script/vboxwebsrv-ok");
+        VBoxWebSrv srv = new VBoxWebSrv();
+        VBoxWebSrvWatchdog watchdog = new VBoxWebSrvWatchdog(srv);
+        watchdog.start();
+        try {
+            waitFor(() -> VBoxWebSrvWatchdog.State.Running.equals(watchdog.getState()));
+            srv.kill();
+            waitFor(() -> watchdog.getRecoveryCount() == 1);
+            assertEquals(VBoxWebSrvWatchdog.State.Running, watchdog.getState());
+            assertEquals(1, watchdog.getRestartCount());
+            assertTrue(srv.isRunning());
+        } finally {
+            watchdog.stop();
+        }
+
+        // The watchdog thread goes away with the service, and a new one comes with the next start
+        waitFor(() -> !srv.isRunning() && !hasWatchdogThread());
+        watchdog.start();
+        try {
+            waitFor(() -> VBoxWebSrvWatchdog.State.Running.equals(watchdog.getState()));
+            assertTrue(srv.isRunning());
+        } finally {
+            watchdog.stop();
+        }
+        waitFor(() -> !srv.isRunning() && !hasWatchdogThread());
+    }
+
+    @Test
+    public void crashLoop() throws InterruptedException {
+        Configuration.setSetting("vbox.exec.web.path", "src/test/script/vboxwebsrv-crash");
+        VBoxWebSrv srv = new VBoxWebSrv();
+        VBoxWebSrvWatchdog watchdog = new VBoxWebSrvWatchdog(srv);
+        watchdog.start();
+        try {
+            waitFor(() -> VBoxWebSrvWatchdog.State.Tripped.equals(watchdog.getState()));
+            assertEquals(1, watchdog.getTripCount());
+            assertEquals(3, watchdog.getFailureCount());
+            waitFor(() -> !srv.isRunning());
+        } finally {
+            watchdog.stop();
+        }
+    }
+
+    @Test
+    public void portInUse() throws InterruptedException {
+        Configuration.setSetting("vbox.exec.web.path", "src/test/script/vboxwebsrv-portAlreadyInUse");
+        VBoxWebSrv srv = new VBoxWebSrv();
+        VBoxWebSrvWatchdog watchdog = new VBoxWebSrvWatchdog(srv);
+        watchdog.start();
+        try {
+            waitFor(() -> VBoxWebSrvWatchdog.State.Tripped.equals(watchdog.getState()));
+            assertEquals(0, watchdog.getRecoveryCount());
+            waitFor(() -> !srv.isRunning());
+        } finally {
+            watchdog.stop();
+        }
+        assertFalse(srv.isRunning());
+    }
+
+}
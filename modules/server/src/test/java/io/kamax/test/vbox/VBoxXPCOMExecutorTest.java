@@ -0,0 +1,141 @@
+/*
+ * Hyperbox - Virtual Infrastructure Manager
+ * Copyright (C) 2021 Maxime Dor
+ *
+ * http://kamax.io/hbox/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.kamax.test.vbox;
+
+import io.kamax.hbox.exception.HypervisorException;
+import io.kamax.vbox.VBoxXPCOMExecutor;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class VBoxXPCOMExecutorTest {
+
+    @Test
+    public void pinnedThreads() throws Exception {
+        Set<String> initialised = ConcurrentHashMap.newKeySet();
+        AtomicInteger released = new AtomicInteger();
+        VBoxXPCOMExecutor executor = new VBoxXPCOMExecutor(3, 16,
+                () -> initialised.add(Thread.currentThread().getName()), released::incrementAndGet);
+        try {
+            String machine = executor.submit("machine-1", () -> Thread.currentThread().getName()).get(1, TimeUnit.SECONDS);
+            for (int i = 0; i < 20; i++) {
+                assertEquals(machine, executor.submit("machine-1", () -> Thread.currentThread().getName()).get(1, TimeUnit.SECONDS));
+            }
+
+            Set<String> used = ConcurrentHashMap.newKeySet();
+            for (int i = 0; i < 50; i++) {
+                used.add(executor.submit(() -> Thread.currentThread().getName()).get(1, TimeUnit.SECONDS));
+            }
+            assertTrue(initialised.containsAll(used));
+        } finally {
+            executor.close();
+        }
+        assertEquals(3, initialised.size());
+        assertEquals(3, released.get());
+
+        try {
+            executor.submit(() -> "late");
+            fail("Closed executor accepted a call");
+        } catch (HypervisorException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void batching() throws Exception {
+        try (VBoxXPCOMExecutor executor = new VBoxXPCOMExecutor(1, 16, () -> {
+        }, () -> {
+        })) {
+            CountDownLatch blocked = new CountDownLatch(1);
+            CompletableFuture<Boolean> first = executor.submit(() -> blocked.await(1, TimeUnit.SECONDS));
+            List<CompletableFuture<Integer>> calls = new ArrayList<>();
+            for (int i = 0; i < 32; i++) {
+                int n = i;
+                calls.add(executor.submit(() -> n));
+            }
+            blocked.countDown();
+
+            assertTrue(first.get(1, TimeUnit.SECONDS));
+            for (int i = 0; i < calls.size(); i++) {
+                assertEquals(i, (int) calls.get(i).get(1, TimeUnit.SECONDS));
+            }
+            // The queued calls ran in full batches instead of one wake-up each
+            assertTrue(executor.getBatches() <= 4);
+            assertEquals(33, executor.getCallTime().getCount());
+
+            CompletableFuture<Object> failed = executor.submit(() -> {
+                throw new IllegalStateException("boom");
+            });
+            try {
+                failed.get(1, TimeUnit.SECONDS);
+                fail("Failure was not reported");
+            } catch (Exception e) {
+                assertTrue(e.getCause() instanceof IllegalStateException);
+            }
+        }
+    }
+
+    @Test
+    public void submitWhileClosing() throws Exception {
+        for (int round = 0; round < 20; round++) {
+            VBoxXPCOMExecutor executor = new VBoxXPCOMExecutor(2, 16, () -> {
+            }, () -> {
+            });
+            List<CompletableFuture<Integer>> calls = new CopyOnWriteArrayList<>();
+            Thread submitter = new Thread(() -> {
+                try {
+                    while (true) {
+                        calls.add(executor.submit(() -> 1));
+                    }
+                } catch (HypervisorException e) {
+                    // closed
+                }
+            });
+            submitter.start();
+            Thread.sleep(5L);
+            executor.close();
+            submitter.join(1000L);
+
+            // Every accepted call either ran or failed, none is left waiting
+            for (CompletableFuture<Integer> call : calls) {
+                try {
+                    call.get(1, TimeUnit.SECONDS);
+                } catch (ExecutionException e) {
+                    assertTrue(e.getCause() instanceof HypervisorException);
+                }
+            }
+        }
+    }
+
+}
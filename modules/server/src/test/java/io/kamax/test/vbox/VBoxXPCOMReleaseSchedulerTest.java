@@ -0,0 +1,126 @@
+/*
+ * Hyperbox - Virtual Infrastructure Manager
+ * Copyright (C) 2021 Maxime Dor
+ *
+ * http://kamax.io/hbox/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.kamax.test.vbox;
+
+import io.kamax.hbox.Configuration;
+import io.kamax.vbox.VBoxSVCProbe;
+import io.kamax.vbox.VBoxXPCOMExecutor;
+import io.kamax.vbox.VBoxXPCOMReleaseScheduler;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class VBoxXPCOMReleaseSchedulerTest {
+
+    private static void setRss(File process, long kb) throws Exception {
+        Files.write(new File(process, "status").toPath(), ("Name:\tVBoxSVC\nVmRSS:\t   " + kb + " kB\n").getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void releaseWhenIdle() throws Exception {
+        Configuration.setSetting("vbox.xpcom.release.refs", "100");
+        Configuration.setSetting("vbox.xpcom.release.rss", "500000");
+        Configuration.setSetting("vbox.xpcom.release.idle.calls", "0");
+        Configuration.setSetting("vbox.xpcom.release.minInterval", "0");
+
+        File procDir = Files.createTempDirectory("hbox-proc").toFile();
+        File process = new File(procDir, "50");
+        process.mkdirs();
+        Files.write(new File(process, "comm").toPath(), "VBoxSVC\n".getBytes(StandardCharsets.UTF_8));
+        setRss(process, 1000);
+        VBoxSVCProbe probe = new VBoxSVCProbe(procDir, new File(procDir, "ipcd"), 0L);
+
+        AtomicInteger released = new AtomicInteger();
+        try (VBoxXPCOMExecutor executor = new VBoxXPCOMExecutor(1, 16, () -> {
+        }, () -> {
+        }); VBoxXPCOMReleaseScheduler scheduler = new VBoxXPCOMReleaseScheduler(executor, () -> {
+            released.incrementAndGet();
+            try {
+                setRss(process, 1000);
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        }, probe, procDir)) {
+            assertNull(scheduler.check());
+            assertEquals(1000, scheduler.getRss());
+
+            // Over the reference threshold, but calls are being made
+            scheduler.track(150);
+            for (int i = 0; i < 5; i++) {
+                executor.submit(() -> 1).get(1, TimeUnit.SECONDS);
+            }
+            assertNull(scheduler.check());
+            assertEquals(1, scheduler.getDeferrals());
+
+            scheduler.check().get(1, TimeUnit.SECONDS);
+            assertEquals(1, released.get());
+            assertEquals(150, scheduler.getOutstanding());
+            assertNull(scheduler.check());
+
+            // Over the memory threshold
+            setRss(process, 600000);
+            scheduler.check().get(1, TimeUnit.SECONDS);
+            assertEquals(2, released.get());
+            assertEquals(600000, scheduler.getRssBeforeLastRelease());
+            assertEquals(1000, scheduler.getRssAfterLastRelease());
+            assertEquals(2, scheduler.getReleaseTime().getCount());
+        }
+    }
+
+    @Test
+    public void coalesced() throws Exception {
+        CountDownLatch running = new CountDownLatch(1);
+        CountDownLatch proceed = new CountDownLatch(1);
+        AtomicInteger released = new AtomicInteger();
+        try (VBoxXPCOMExecutor executor = new VBoxXPCOMExecutor(1, 1, () -> {
+        }, () -> {
+        }); VBoxXPCOMReleaseScheduler scheduler = new VBoxXPCOMReleaseScheduler(executor, () -> {
+            released.incrementAndGet();
+            running.countDown();
+            try {
+                proceed.await(1, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        })) {
+            CompletableFuture<Void> first = scheduler.requestRelease();
+            running.await(1, TimeUnit.SECONDS);
+            assertSame(first, scheduler.requestRelease());
+            assertSame(first, scheduler.requestRelease());
+            proceed.countDown();
+            first.get(1, TimeUnit.SECONDS);
+
+            assertEquals(1, released.get());
+            assertEquals(2, scheduler.getCoalesced());
+        }
+    }
+
+}
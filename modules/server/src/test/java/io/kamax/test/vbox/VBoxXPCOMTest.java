@@ -0,0 +1,139 @@
+/*
+ * Hyperbox - Virtual Infrastructure Manager
+ * Copyright (C) 2021 Maxime Dor
+ *
+ * http://kamax.io/hbox/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.kamax.test.vbox;
+
+import io.kamax.hbox.Configuration;
+import io.kamax.hbox.exception.HypervisorException;
+import io.kamax.vbox.VBoxXPCOM;
+import io.kamax.vbox.VBoxXPCOMExecutor;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class VBoxXPCOMTest {
+
+    @Test
+    public void warmUpEveryThread() throws Exception {
+        String home = Files.createTempDirectory("hbox-vbox-home").toString();
+        Set<String> threads = ConcurrentHashMap.newKeySet();
+        AtomicInteger listed = new AtomicInteger();
+        Callable<String> version = () -> {
+            threads.add(Thread.currentThread().getName());
+            return "6.1.16";
+        };
+        Callable<Integer> machines = () -> {
+            if (listed.incrementAndGet() == 1) {
+                throw new IllegalStateException("not ready");
+            }
+            return 0;
+        };
+
+        try (VBoxXPCOMExecutor executor = new VBoxXPCOMExecutor(2, 16, () -> {
+        }, () -> {
+        })) {
+            VBoxXPCOM.WarmUp warmUp = VBoxXPCOM.warmUp(home, "6.1.16", 140961L, executor, Arrays.asList(version, machines));
+            assertEquals(2, threads.size());
+            assertEquals(12, warmUp.getCalls());
+            assertEquals(1, warmUp.getFailures());
+            assertFalse(warmUp.isPreloaded());
+            assertTrue(warmUp.getDuration(TimeUnit.NANOSECONDS) >= warmUp.getCallsTime(TimeUnit.NANOSECONDS));
+            assertSame(warmUp, VBoxXPCOM.getLastWarmUp());
+        }
+    }
+
+    @Test
+    public void warmUpTimeout() throws Exception {
+        String home = Files.createTempDirectory("hbox-vbox-home").toString();
+        AtomicInteger runs = new AtomicInteger();
+        Callable<Integer> read = runs::incrementAndGet;
+
+        Configuration.setSetting("vbox.xpcom.warmup.timeout", "100");
+        try (VBoxXPCOMExecutor executor = new VBoxXPCOMExecutor(1, 1, () -> {
+        }, () -> {
+        })) {
+            // The only XPCOM thread stays busy past the deadline: the first call is cancelled and no other one is made
+            CompletableFuture<Object> busy = executor.submit(() -> {
+                Thread.sleep(300L);
+                return null;
+            });
+            VBoxXPCOM.WarmUp warmUp = VBoxXPCOM.warmUp(home, "6.1.16", 140961L, executor, Arrays.asList(read, read));
+            assertEquals(1, warmUp.getCalls());
+            assertEquals(1, warmUp.getFailures());
+
+            busy.get(1, TimeUnit.SECONDS);
+            executor.submit(() -> null).get(1, TimeUnit.SECONDS);
+            assertEquals(0, runs.get());
+        } finally {
+            Configuration.setSetting("vbox.xpcom.warmup.timeout", "30000");
+        }
+    }
+
+    @Test(expected = HypervisorException.class)
+    public void warmUpValidates() {
+        try (VBoxXPCOMExecutor executor = new VBoxXPCOMExecutor(1, 1, () -> {
+        }, () -> {
+        })) {
+            VBoxXPCOM.warmUp("4.1.0", 1000L, executor, Collections.emptyList());
+        }
+    }
+
+    @Test
+    public void preloadThroughLoader() throws Exception {
+        File home = Files.createTempDirectory("hbox-vbox-home").toFile();
+        File lib = new File(home, "libvboxjxpcom.so");
+        assertTrue(lib.createNewFile());
+        List<String> loaded = new ArrayList<>();
+
+        try (VBoxXPCOMExecutor executor = new VBoxXPCOMExecutor(1, 1, () -> {
+        }, () -> {
+        })) {
+            // Opt-in only
+            assertFalse(VBoxXPCOM.warmUp(home.getPath(), "6.1.16", 140961L, executor, Collections.emptyList(), loaded::add).isPreloaded());
+            assertTrue(loaded.isEmpty());
+
+            Configuration.setSetting("vbox.xpcom.warmup.preload", "true");
+            try {
+                assertFalse(VBoxXPCOM.warmUp(home.getPath(), "6.1.16", 140961L, executor, Collections.emptyList()).isPreloaded());
+                assertTrue(VBoxXPCOM.warmUp(home.getPath(), "6.1.16", 140961L, executor, Collections.emptyList(), loaded::add).isPreloaded());
+                assertEquals(Collections.singletonList(lib.getAbsolutePath()), loaded);
+            } finally {
+                Configuration.setSetting("vbox.xpcom.warmup.preload", "false");
+            }
+        }
+    }
+
+}
@@ -0,0 +1,90 @@
+/*
+ * Hyperbox - Virtual Infrastructure Manager
+ * Copyright (C) 2021 Maxime Dor
+ *
+ * http://kamax.io/hbox/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.kamax.test.vbox.standin;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Minimal SOAP client for tests against the stand-in, or anything answering like vboxwebsrv.
+ */
+public class StandInClient {
+
+    private static final Pattern returnval = Pattern.compile("<returnval>([^<]*)</returnval>");
+
+    /**
+     * Call an operation with the given parameters, as name and value pairs.
+     *
+     * @return the first returned value, or an empty string if there is none.
+     * @throws IOException with the fault as message if the call failed.
+     */
+    public static String call(int port, String operation, String... params) throws IOException {
+        StringBuilder b = new StringBuilder("<?xml version=\"1.0\" encoding=\"UTF-8\"?>")
+                .append("<soapenv:Envelope xmlns:soapenv=\"http://schemas.xmlsoap.org/soap/envelope/\" xmlns:vbox=\"http://www.virtualbox.org/\">")
+                .append("<soapenv:Body><vbox:").append(operation).append(">");
+        for (int i = 0; i < params.length - 1; i += 2) {
+            b.append("<").append(params[i]).append(">").append(params[i + 1]).append("</").append(params[i]).append(">");
+        }
+        b.append("</vbox:").append(operation).append("></soapenv:Body></soapenv:Envelope>");
+
+        Matcher m = returnval.matcher(post(port, b.toString()));
+        return m.find() ? m.group(1) : "";
+    }
+
+    /**
+     * Send a raw SOAP body.
+     *
+     * @return the answer.
+     * @throws IOException with the answer as message if the call failed.
+     */
+    public static String post(int port, String body) throws IOException {
+        HttpURLConnection conn = (HttpURLConnection) new URL("http://localhost:" + port + "/").openConnection();
+        conn.setRequestMethod("POST");
+        conn.setDoOutput(true);
+        conn.setRequestProperty("Content-Type", "text/xml; charset=utf-8");
+        try (OutputStream os = conn.getOutputStream()) {
+            os.write(body.getBytes(StandardCharsets.UTF_8));
+        }
+
+        boolean ok = conn.getResponseCode() == 200;
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (InputStream is = ok ? conn.getInputStream() : conn.getErrorStream()) {
+            byte[] buffer = new byte[4096];
+            for (int n = is.read(buffer); n >= 0; n = is.read(buffer)) {
+                out.write(buffer, 0, n);
+            }
+        }
+
+        String answer = new String(out.toByteArray(), StandardCharsets.UTF_8);
+        if (!ok) {
+            throw new IOException(answer);
+        }
+        return answer;
+    }
+
+}
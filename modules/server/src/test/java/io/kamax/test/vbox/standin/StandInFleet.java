@@ -0,0 +1,231 @@
+/*
+ * Hyperbox - Virtual Infrastructure Manager
+ * Copyright (C) 2021 Maxime Dor
+ *
+ * http://kamax.io/hbox/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.kamax.test.vbox.standin;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.UUID;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-memory machines and managed object references served by the stand-in.
+ * <p>
+ * References follow the vboxwebsrv format: a session part and an object part, both in hexadecimal, separated by a dash.
+ * </p>
+ */
+public class StandInFleet {
+
+    public static class Machine {
+
+        private final String id;
+        private final String name;
+        private final String osTypeId;
+        private final String state;
+        private volatile long memorySize;
+        private final long cpuCount;
+
+        private Machine(int index) {
+            this.id = new UUID(0x4862786d61636869L, index).toString();
+            this.name = String.format("vm-%04d", index);
+            this.osTypeId = index % 2 == 0 ? "Ubuntu_64" : "Debian_64";
+            this.state = index % 3 == 0 ? "Running" : "PoweredOff";
+            this.memorySize = 512L << (index % 4);
+            this.cpuCount = 1 + index % 4;
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public String getOsTypeId() {
+            return osTypeId;
+        }
+
+        public String getState() {
+            return state;
+        }
+
+        public long getMemorySize() {
+            return memorySize;
+        }
+
+        public void setMemorySize(long memorySize) {
+            this.memorySize = memorySize;
+        }
+
+        public long getCpuCount() {
+            return cpuCount;
+        }
+
+    }
+
+    /**
+     * A session object, locked on at most one machine.
+     */
+    public static class Session {
+
+        private volatile Machine machine;
+
+        public Machine getMachine() {
+            return machine;
+        }
+
+        public void setMachine(Machine machine) {
+            this.machine = machine;
+        }
+
+    }
+
+    /**
+     * A machine event, as given by the event source of the IVirtualBox object.
+     */
+    public static class MachineEvent {
+
+        private final Machine machine;
+
+        private MachineEvent(Machine machine) {
+            this.machine = machine;
+        }
+
+        public Machine getMachine() {
+            return machine;
+        }
+
+    }
+
+    private static final Object eventSource = new Object();
+
+    private final List<Machine> machines;
+    private final Map<String, Machine> byName = new ConcurrentHashMap<>();
+    private final Map<String, Machine> byId = new ConcurrentHashMap<>();
+    private final Map<String, Object> refs = new ConcurrentHashMap<>();
+    private final AtomicLong sessionCounter = new AtomicLong();
+    private final AtomicLong refCounter = new AtomicLong();
+    private final Queue<MachineEvent> events = new ConcurrentLinkedQueue<>();
+
+    public StandInFleet(int size) {
+        List<Machine> list = new ArrayList<>();
+        for (int i = 0; i < size; i++) {
+            Machine machine = new Machine(i);
+            list.add(machine);
+            byName.put(machine.getName(), machine);
+            byId.put(machine.getId(), machine);
+        }
+        machines = Collections.unmodifiableList(list);
+    }
+
+    public List<Machine> getMachines() {
+        return machines;
+    }
+
+    public Machine find(String nameOrId) {
+        Machine machine = byName.get(nameOrId);
+        return Objects.nonNull(machine) ? machine : byId.get(nameOrId.replace("{", "").replace("}", ""));
+    }
+
+    /**
+     * Open a session, returning the reference of its IVirtualBox object.
+     */
+    public String logon() {
+        String session = String.format("%016x", sessionCounter.incrementAndGet());
+        String ref = session + "-" + String.format("%016x", refCounter.incrementAndGet());
+        refs.put(ref, this);
+        return ref;
+    }
+
+    public void logoff(String vboxRef) {
+        String session = getSession(vboxRef);
+        refs.keySet().removeIf(ref -> ref.startsWith(session + "-"));
+    }
+
+    public boolean isVirtualBox(String ref) {
+        return Objects.nonNull(ref) && refs.get(ref) == this;
+    }
+
+    public String register(String parentRef, Object object) {
+        String ref = getSession(parentRef) + "-" + String.format("%016x", refCounter.incrementAndGet());
+        refs.put(ref, object);
+        return ref;
+    }
+
+    public Machine getMachine(String ref) {
+        return get(ref, Machine.class);
+    }
+
+    public Session getSessionObject(String ref) {
+        return get(ref, Session.class);
+    }
+
+    public MachineEvent getMachineEvent(String ref) {
+        return get(ref, MachineEvent.class);
+    }
+
+    public String registerEventSource(String parentRef) {
+        return register(parentRef, eventSource);
+    }
+
+    public boolean isEventSource(String ref) {
+        return Objects.nonNull(ref) && refs.get(ref) == eventSource;
+    }
+
+    /**
+     * Queue an event about the machine, for a change made outside of the stand-in clients.
+     */
+    public void fireMachineEvent(Machine machine) {
+        events.add(new MachineEvent(machine));
+    }
+
+    /**
+     * @return the next queued event, or {@code null} if there is none.
+     */
+    public MachineEvent nextEvent() {
+        return events.poll();
+    }
+
+    private <T> T get(String ref, Class<T> type) {
+        Object object = Objects.isNull(ref) ? null : refs.get(ref);
+        return type.isInstance(object) ? type.cast(object) : null;
+    }
+
+    public boolean release(String ref) {
+        return Objects.nonNull(ref) && Objects.nonNull(refs.remove(ref));
+    }
+
+    public int getRefCount() {
+        return refs.size();
+    }
+
+    private String getSession(String ref) {
+        int i = ref.indexOf('-');
+        return i < 0 ? ref : ref.substring(0, i);
+    }
+
+}
@@ -0,0 +1,354 @@
+/*
+ * Hyperbox - Virtual Infrastructure Manager
+ * Copyright (C) 2021 Maxime Dor
+ *
+ * http://kamax.io/hbox/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.kamax.test.vbox.standin;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Answers the subset of the vboxwebsrv SOAP operations needed to log on and read machines.
+ */
+public class StandInSoapHandler implements HttpHandler {
+
+    private static final XMLInputFactory xmlFactory = XMLInputFactory.newInstance();
+
+    private static final String envelopeStart = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>"
+            + "<SOAP-ENV:Envelope xmlns:SOAP-ENV=\"http://schemas.xmlsoap.org/soap/envelope/\" xmlns:vbox=\"http://www.virtualbox.org/\">"
+            + "<SOAP-ENV:Body>";
+    private static final String envelopeEnd = "</SOAP-ENV:Body></SOAP-ENV:Envelope>";
+
+    // VBOX_E_OBJECT_NOT_FOUND and E_FAIL
+    private static final int objectNotFound = 0x80BB0001;
+    private static final int failure = 0x80004005;
+
+    private static class Fault extends RuntimeException {
+
+        private final String detail;
+
+        private Fault(String message, String detail) {
+            super(message);
+            this.detail = detail;
+        }
+
+    }
+
+    private final StandInFleet fleet;
+    private final long latency;
+    private final double errorRate;
+
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong faults = new AtomicLong();
+    private final AtomicInteger active = new AtomicInteger();
+    private final AtomicInteger peakActive = new AtomicInteger();
+
+    /**
+     * @param latency   how long each call takes before being answered, in milliseconds.
+     * @param errorRate the share of calls, between 0 and 1, answered with a fault whatever the operation.
+     */
+    public StandInSoapHandler(StandInFleet fleet, long latency, double errorRate) {
+        this.fleet = fleet;
+        this.latency = latency;
+        this.errorRate = errorRate;
+    }
+
+    private static Fault runtimeFault(int resultCode, String message) {
+        return new Fault("VirtualBox error: " + message, "<vbox:RuntimeFault><resultCode>" + resultCode + "</resultCode>"
+                + "<returnval></returnval></vbox:RuntimeFault>");
+    }
+
+    private static Fault invalidObject(String ref) {
+        return new Fault("Invalid managed object reference \"" + ref + "\"", "<vbox:InvalidObjectFault><badObjectID>" + escape(ref)
+                + "</badObjectID></vbox:InvalidObjectFault>");
+    }
+
+    private static String escape(String value) {
+        if (Objects.isNull(value)) {
+            return "";
+        }
+
+        return value.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;").replace("\"", "&quot;");
+    }
+
+    /**
+     * Read the operation name and its parameters from the first element of the SOAP body.
+     */
+    private static String parse(InputStream body, Map<String, String> params) throws XMLStreamException {
+        XMLStreamReader reader = xmlFactory.createXMLStreamReader(body, StandardCharsets.UTF_8.name());
+        try {
+            String operation = null;
+            boolean inBody = false;
+            int depth = 0;
+            String param = null;
+            StringBuilder value = new StringBuilder();
+            while (reader.hasNext()) {
+                int event = reader.next();
+                if (event == XMLStreamConstants.START_ELEMENT) {
+                    String name = reader.getLocalName();
+                    if (!inBody) {
+                        inBody = "Body".equals(name);
+                    } else if (depth == 0) {
+                        operation = name;
+                        depth = 1;
+                    } else {
+                        depth++;
+                        param = name;
+                        value.setLength(0);
+                    }
+                } else if (event == XMLStreamConstants.CHARACTERS && Objects.nonNull(param)) {
+                    value.append(reader.getText());
+                } else if (event == XMLStreamConstants.END_ELEMENT && Objects.nonNull(operation)) {
+                    if (depth == 1) {
+                        return operation;
+                    }
+
+                    depth--;
+                    if (Objects.nonNull(param)) {
+                        params.put(param, value.toString());
+                        param = null;
+                    }
+                }
+            }
+
+            return operation;
+        } finally {
+            reader.close();
+        }
+    }
+
+    private StandInFleet.Machine machine(Map<String, String> params) {
+        String ref = params.get("_this");
+        StandInFleet.Machine machine = fleet.getMachine(ref);
+        if (Objects.isNull(machine)) {
+            throw invalidObject(ref);
+        }
+
+        return machine;
+    }
+
+    private StandInFleet.Session session(Map<String, String> params, String name) {
+        String ref = params.get(name);
+        StandInFleet.Session session = fleet.getSessionObject(ref);
+        if (Objects.isNull(session)) {
+            throw invalidObject(ref);
+        }
+
+        return session;
+    }
+
+    private void virtualBox(Map<String, String> params) {
+        String ref = params.get("_this");
+        if (!fleet.isVirtualBox(ref)) {
+            throw invalidObject(ref);
+        }
+    }
+
+    private List<String> call(String operation, Map<String, String> params) {
+        List<String> values = new ArrayList<>();
+        switch (operation) {
+            case "IWebsessionManager_logon":
+                values.add(fleet.logon());
+                break;
+            case "IWebsessionManager_logoff":
+                fleet.logoff(params.get("refIVirtualBox"));
+                break;
+            case "IManagedObjectRef_release":
+                if (!fleet.release(params.get("_this"))) {
+                    throw invalidObject(params.get("_this"));
+                }
+                break;
+            case "IWebsessionManager_getSessionObject":
+                values.add(fleet.register(params.get("refIVirtualBox"), new StandInFleet.Session()));
+                break;
+            case "IVirtualBox_getEventSource":
+                virtualBox(params);
+                values.add(fleet.registerEventSource(params.get("_this")));
+                break;
+            case "IEventSource_getEvent":
+                if (!fleet.isEventSource(params.get("_this"))) {
+                    throw invalidObject(params.get("_this"));
+                }
+                StandInFleet.MachineEvent event = fleet.nextEvent();
+                values.add(Objects.isNull(event) ? "" : fleet.register(params.get("_this"), event));
+                break;
+            case "IMachineEvent_getMachineId":
+                StandInFleet.MachineEvent machineEvent = fleet.getMachineEvent(params.get("_this"));
+                if (Objects.isNull(machineEvent)) {
+                    throw invalidObject(params.get("_this"));
+                }
+                values.add(machineEvent.getMachine().getId());
+                break;
+            case "IMachine_lockMachine":
+                session(params, "session").setMachine(machine(params));
+                break;
+            case "ISession_getMachine":
+                StandInFleet.Machine locked = session(params, "_this").getMachine();
+                values.add(Objects.isNull(locked) ? "" : fleet.register(params.get("_this"), locked));
+                break;
+            case "ISession_unlockMachine":
+                session(params, "_this").setMachine(null);
+                break;
+            case "IMachine_setMemorySize":
+                machine(params).setMemorySize(Long.parseLong(params.getOrDefault("memorySize", "0")));
+                break;
+            case "IVirtualBox_getVersion":
+                virtualBox(params);
+                values.add("0.0.0");
+                break;
+            case "IVirtualBox_getRevision":
+                virtualBox(params);
+                values.add("0");
+                break;
+            case "IVirtualBox_getMachines":
+                virtualBox(params);
+                for (StandInFleet.Machine machine : fleet.getMachines()) {
+                    values.add(fleet.register(params.get("_this"), machine));
+                }
+                break;
+            case "IVirtualBox_findMachine":
+                virtualBox(params);
+                StandInFleet.Machine found = fleet.find(params.getOrDefault("nameOrId", ""));
+                if (Objects.isNull(found)) {
+                    throw runtimeFault(objectNotFound, "Could not find a registered machine named '" + params.get("nameOrId") + "'");
+                }
+                values.add(fleet.register(params.get("_this"), found));
+                break;
+            case "IMachine_getId":
+                values.add(machine(params).getId());
+                break;
+            case "IMachine_getName":
+                values.add(machine(params).getName());
+                break;
+            case "IMachine_getOSTypeId":
+                values.add(machine(params).getOsTypeId());
+                break;
+            case "IMachine_getState":
+                values.add(machine(params).getState());
+                break;
+            case "IMachine_getMemorySize":
+                values.add(Long.toString(machine(params).getMemorySize()));
+                break;
+            case "IMachine_getCPUCount":
+                values.add(Long.toString(machine(params).getCpuCount()));
+                break;
+            case "IMachine_getAccessible":
+                machine(params);
+                values.add("true");
+                break;
+            default:
+                throw new Fault("Method '" + operation + "' not implemented", "");
+        }
+        return values;
+    }
+
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+        int current = active.incrementAndGet();
+        peakActive.accumulateAndGet(current, Math::max);
+        requests.incrementAndGet();
+        try {
+            int status = 200;
+            StringBuilder response = new StringBuilder(envelopeStart);
+            try {
+                Map<String, String> params = new HashMap<>();
+                String operation;
+                try (InputStream body = exchange.getRequestBody()) {
+                    operation = parse(body, params);
+                }
+                if (Objects.isNull(operation)) {
+                    throw new Fault("No operation in the SOAP body", "");
+                }
+
+                if (latency > 0) {
+                    TimeUnit.MILLISECONDS.sleep(latency);
+                }
+                if (errorRate > 0 && ThreadLocalRandom.current().nextDouble() < errorRate) {
+                    throw runtimeFault(failure, "Injected failure of " + operation);
+                }
+
+                response.append("<vbox:").append(operation).append("Response>");
+                for (String value : call(operation, params)) {
+                    response.append("<returnval>").append(escape(value)).append("</returnval>");
+                }
+                response.append("</vbox:").append(operation).append("Response>");
+            } catch (Fault e) {
+                faults.incrementAndGet();
+                status = 500;
+                response.setLength(envelopeStart.length());
+                response.append("<SOAP-ENV:Fault><faultcode>SOAP-ENV:Client</faultcode><faultstring>").append(escape(e.getMessage()))
+                        .append("</faultstring><detail>").append(e.detail).append("</detail></SOAP-ENV:Fault>");
+            } catch (XMLStreamException e) {
+                faults.incrementAndGet();
+                status = 500;
+                response.setLength(envelopeStart.length());
+                response.append("<SOAP-ENV:Fault><faultcode>SOAP-ENV:Client</faultcode><faultstring>").append(escape(e.getMessage()))
+                        .append("</faultstring></SOAP-ENV:Fault>");
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                status = 503;
+            }
+            response.append(envelopeEnd);
+
+            byte[] raw = response.toString().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/xml; charset=utf-8");
+            exchange.sendResponseHeaders(status, raw.length);
+            try (OutputStream os = exchange.getResponseBody()) {
+                os.write(raw);
+            }
+        } finally {
+            active.decrementAndGet();
+            exchange.close();
+        }
+    }
+
+    public long getRequestCount() {
+        return requests.get();
+    }
+
+    public long getFaultCount() {
+        return faults.get();
+    }
+
+    /**
+     * @return the highest number of calls handled at the same time.
+     */
+    public int getPeakConcurrency() {
+        return peakActive.get();
+    }
+
+}
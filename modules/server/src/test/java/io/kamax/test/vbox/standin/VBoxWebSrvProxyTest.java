@@ -0,0 +1,145 @@
+/*
+ * Hyperbox - Virtual Infrastructure Manager
+ * Copyright (C) 2021 Maxime Dor
+ *
+ * http://kamax.io/hbox/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.kamax.test.vbox.standin;
+
+import io.kamax.vbox.VBoxWebSrvProxy;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import static io.kamax.test.vbox.standin.StandInClient.call;
+import static io.kamax.test.vbox.standin.StandInClient.post;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class VBoxWebSrvProxyTest {
+
+    @Test
+    public void cacheGetters() throws IOException {
+        VBoxWebSrvStandIn standIn = new VBoxWebSrvStandIn("localhost", 0, 4, 10, 0, 0);
+        standIn.start();
+        VBoxWebSrvProxy proxy = new VBoxWebSrvProxy("localhost", 0, standIn.getPort());
+        proxy.start();
+        try {
+            int port = proxy.getPort();
+            String vbox = call(port, "IWebsessionManager_logon", "username", "", "password", "");
+            String machine = call(port, "IVirtualBox_findMachine", "_this", vbox, "nameOrId", "vm-0001");
+            String uuid = call(port, "IMachine_getId", "_this", machine);
+            for (int i = 0; i < 5; i++) {
+                assertEquals("vm-0001", call(port, "IMachine_getName", "_this", machine));
+            }
+            assertEquals(2, proxy.getMissCount());
+            assertEquals(4, proxy.getHitCount());
+            long upstream = standIn.getHandler().getRequestCount();
+
+            proxy.invalidateMachine(uuid);
+            assertEquals("vm-0001", call(port, "IMachine_getName", "_this", machine));
+            assertEquals(upstream + 1, standIn.getHandler().getRequestCount());
+
+            // A write goes through and drops the answers about its machine only
+            String other = call(port, "IVirtualBox_findMachine", "_this", vbox, "nameOrId", "vm-0002");
+            assertEquals("vm-0002", call(port, "IMachine_getName", "_this", other));
+            try {
+                call(port, "IMachine_setName", "_this", machine, "name", "renamed");
+            } catch (IOException e) {
+                assertTrue(e.getMessage().contains("not implemented"));
+            }
+            assertEquals("vm-0001", call(port, "IMachine_getName", "_this", machine));
+            assertEquals("vm-0002", call(port, "IMachine_getName", "_this", other));
+            assertEquals(upstream + 5, standIn.getHandler().getRequestCount());
+            assertTrue(proxy.getUpstreamPeak() <= proxy.getUpstreamMax());
+        } finally {
+            proxy.stop();
+            standIn.stop();
+        }
+    }
+
+    @Test
+    public void invalidateOnSessionWritesAndEvents() throws IOException {
+        VBoxWebSrvStandIn standIn = new VBoxWebSrvStandIn("localhost", 0, 4, 10, 0, 0);
+        standIn.start();
+        VBoxWebSrvProxy proxy = new VBoxWebSrvProxy("localhost", 0, standIn.getPort());
+        proxy.start();
+        try {
+            int port = proxy.getPort();
+            String vbox = call(port, "IWebsessionManager_logon", "username", "", "password", "");
+
+            // A write through the machine of a session drops the answers about the machine it was locked on
+            String machine = call(port, "IVirtualBox_findMachine", "_this", vbox, "nameOrId", "vm-0001");
+            String session = call(port, "IWebsessionManager_getSessionObject", "refIVirtualBox", vbox);
+            call(port, "IMachine_lockMachine", "_this", machine, "session", session, "lockType", "Write");
+            assertEquals("1024", call(port, "IMachine_getMemorySize", "_this", machine));
+            assertEquals("1024", call(port, "IMachine_getMemorySize", "_this", machine));
+            String mutable = call(port, "ISession_getMachine", "_this", session);
+            call(port, "IMachine_setMemorySize", "_this", mutable, "memorySize", "4096");
+            assertEquals("4096", call(port, "IMachine_getMemorySize", "_this", machine));
+            call(port, "ISession_unlockMachine", "_this", session);
+
+            // A machine event read through the proxy drops the answers about its machine, even for a change made elsewhere
+            StandInFleet.Machine target = standIn.getFleet().find("vm-0002");
+            String other = call(port, "IVirtualBox_findMachine", "_this", vbox, "nameOrId", target.getId());
+            assertEquals("2048", call(port, "IMachine_getMemorySize", "_this", other));
+            target.setMemorySize(8192);
+            assertEquals("2048", call(port, "IMachine_getMemorySize", "_this", other));
+            standIn.getFleet().fireMachineEvent(target);
+            String source = call(port, "IVirtualBox_getEventSource", "_this", vbox);
+            String event = call(port, "IEventSource_getEvent", "_this", source, "listener", "", "timeout", "0");
+            assertEquals(target.getId(), call(port, "IMachineEvent_getMachineId", "_this", event));
+            assertEquals("8192", call(port, "IMachine_getMemorySize", "_this", other));
+        } finally {
+            proxy.stop();
+            standIn.stop();
+        }
+    }
+
+    @Test
+    public void noExternalEntities() throws IOException {
+        File secret = File.createTempFile("hbox-proxy-secret", ".txt");
+        Files.write(secret.toPath(), "secret".getBytes(StandardCharsets.UTF_8));
+        VBoxWebSrvStandIn standIn = new VBoxWebSrvStandIn("localhost", 0, 4, 10, 0, 0);
+        standIn.start();
+        VBoxWebSrvProxy proxy = new VBoxWebSrvProxy("localhost", 0, standIn.getPort());
+        proxy.start();
+        try {
+            // Were the entity resolved, the call would be parsed and cached like any getter
+            String body = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>"
+                    + "<!DOCTYPE e [<!ENTITY xxe SYSTEM \"" + secret.toURI() + "\">]>"
+                    + "<soapenv:Envelope xmlns:soapenv=\"http://schemas.xmlsoap.org/soap/envelope/\"><soapenv:Body>"
+                    + "<vbox:IVirtualBox_getVersion xmlns:vbox=\"http://www.virtualbox.org/\"><_this>&xxe;</_this>"
+                    + "</vbox:IVirtualBox_getVersion></soapenv:Body></soapenv:Envelope>";
+            try {
+                post(proxy.getPort(), body);
+            } catch (IOException e) {
+                // The stand-in may reject it, only the proxy matters here
+            }
+            assertEquals(0, proxy.getMissCount());
+            assertEquals(1, proxy.getPassCount());
+        } finally {
+            proxy.stop();
+            standIn.stop();
+            secret.delete();
+        }
+    }
+
+}
@@ -0,0 +1,157 @@
+/*
+ * Hyperbox - Virtual Infrastructure Manager
+ * Copyright (C) 2021 Maxime Dor
+ *
+ * http://kamax.io/hbox/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.kamax.test.vbox.standin;
+
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.BindException;
+import java.net.InetSocketAddress;
+import java.util.Objects;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Stand-in for vboxwebsrv, answering SOAP calls from an in-memory fleet so connectors and pools can be measured without VirtualBox.
+ * <p>
+ * It accepts the vboxwebsrv arguments {@code -H}, {@code -p} and {@code -T}, ignores the others, and prints the same log lines as
+ * vboxwebsrv so {@link io.kamax.vbox.VBoxWebSrv} can start it through the {@code src/test/script/vboxwebsrv-standin} script. The
+ * simulation is set with environment variables, as the arguments are built by {@link io.kamax.vbox.VBoxWebSrv}:
+ * </p>
+ * <ul>
+ * <li>{@code VBOX_STANDIN_MACHINES}: the number of machines, 100 by default</li>
+ * <li>{@code VBOX_STANDIN_LATENCY}: how long each call takes, in milliseconds, 0 by default</li>
+ * <li>{@code VBOX_STANDIN_ERROR_RATE}: the share of calls failing with a fault, between 0 and 1, 0 by default</li>
+ * </ul>
+ */
+public class VBoxWebSrvStandIn {
+
+    private static final long startTs = System.nanoTime();
+
+    private final String host;
+    private final int threads;
+    private final StandInFleet fleet;
+    private final StandInSoapHandler handler;
+    private int port;
+    private HttpServer server;
+    private ExecutorService workers;
+
+    /**
+     * @param threads the number of worker threads, like the {@code -T} option of vboxwebsrv.
+     */
+    public VBoxWebSrvStandIn(String host, int port, int threads, int machines, long latency, double errorRate) {
+        this.host = host;
+        this.port = port;
+        this.threads = threads;
+        this.fleet = new StandInFleet(machines);
+        this.handler = new StandInSoapHandler(fleet, latency, errorRate);
+    }
+
+    private static void log(String thread, String message) {
+        long micros = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startTs);
+        long seconds = micros / 1000000;
+        System.out.println(String.format("%02d:%02d:%02d.%06d %-8s %s", seconds / 3600, seconds / 60 % 60, seconds % 60, micros % 1000000, thread, message));
+    }
+
+    private static String getEnv(String name, String defaultValue) {
+        String value = System.getenv(name);
+        return Objects.isNull(value) || value.trim().isEmpty() ? defaultValue : value.trim();
+    }
+
+    public synchronized void start() throws IOException {
+        server = HttpServer.create(new InetSocketAddress(host, port), 0);
+        workers = Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, "SQW");
+            t.setDaemon(true);
+            return t;
+        });
+        server.setExecutor(workers);
+        server.createContext("/", handler);
+        server.start();
+        port = server.getAddress().getPort();
+    }
+
+    public synchronized void stop() {
+        if (Objects.nonNull(server)) {
+            server.stop(0);
+            workers.shutdownNow();
+            server = null;
+        }
+    }
+
+    public String getHost() {
+        return host;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public StandInFleet getFleet() {
+        return fleet;
+    }
+
+    public StandInSoapHandler getHandler() {
+        return handler;
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        String host = "localhost";
+        int port = 18083;
+        int threads = 100;
+        for (int i = 0; i < args.length - 1; i++) {
+            if ("-H".equals(args[i]) || "--host".equals(args[i])) {
+                host = args[++i];
+            } else if ("-p".equals(args[i]) || "--port".equals(args[i])) {
+                port = Integer.parseInt(args[++i]);
+            } else if ("-T".equals(args[i]) || "--threads".equals(args[i])) {
+                threads = Integer.parseInt(args[++i]);
+            }
+        }
+
+        System.out.println("Oracle VM VirtualBox web service Version 0.0.0");
+        System.out.println("(C) 2007-2021 Oracle Corporation");
+        System.out.println("All rights reserved.");
+        log("main", "VirtualBox web service 0.0.0 r0 stand-in release log");
+        log("main", "Process ID: " + ManagementFactory.getRuntimeMXBean().getName().split("@")[0]);
+
+        VBoxWebSrvStandIn standIn = new VBoxWebSrvStandIn(host, port, threads,
+                Integer.parseInt(getEnv("VBOX_STANDIN_MACHINES", "100")),
+                Long.parseLong(getEnv("VBOX_STANDIN_LATENCY", "0")),
+                Double.parseDouble(getEnv("VBOX_STANDIN_ERROR_RATE", "0")));
+        try {
+            standIn.start();
+        } catch (BindException e) {
+            log("SQPmp", "#### SOAP FAULT: Address already in use [detected]");
+            System.exit(1);
+        } catch (IOException e) {
+            log("SQPmp", "#### SOAP FAULT: " + e.getMessage() + " [detected]");
+            System.exit(1);
+        }
+
+        log("SQPmp", "Socket connection successful: host = default (" + host + "), port = " + standIn.getPort() + ", master socket = 8");
+        Runtime.getRuntime().addShutdownHook(new Thread(standIn::stop));
+        Thread.currentThread().join();
+    }
+
+}
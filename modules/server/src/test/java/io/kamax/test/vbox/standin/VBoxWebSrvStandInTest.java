@@ -0,0 +1,97 @@
+/*
+ * Hyperbox - Virtual Infrastructure Manager
+ * Copyright (C) 2021 Maxime Dor
+ *
+ * http://kamax.io/hbox/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.kamax.test.vbox.standin;
+
+import io.kamax.hbox.Configuration;
+import io.kamax.vbox.VBoxWebSrv;
+import io.kamax.vbox._VBoxWebSrv;
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static io.kamax.test.vbox.standin.StandInClient.call;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class VBoxWebSrvStandInTest {
+
+    @Test
+    public void machines() throws IOException {
+        VBoxWebSrvStandIn standIn = new VBoxWebSrvStandIn("localhost", 0, 4, 10, 0, 0);
+        standIn.start();
+        try {
+            int port = standIn.getPort();
+            String vbox = call(port, "IWebsessionManager_logon", "username", "", "password", "");
+            String machine = call(port, "IVirtualBox_findMachine", "_this", vbox, "nameOrId", "vm-0003");
+            assertEquals("vm-0003", call(port, "IMachine_getName", "_this", machine));
+            assertEquals("Running", call(port, "IMachine_getState", "_this", machine));
+
+            try {
+                call(port, "IVirtualBox_findMachine", "_this", vbox, "nameOrId", "missing");
+                throw new AssertionError("Found a machine that does not exist");
+            } catch (IOException e) {
+                assertTrue(e.getMessage().contains("RuntimeFault"));
+            }
+
+            call(port, "IWebsessionManager_logoff", "refIVirtualBox", vbox);
+            try {
+                call(port, "IMachine_getName", "_this", machine);
+                throw new AssertionError("Reference still valid after logoff");
+            } catch (IOException e) {
+                assertTrue(e.getMessage().contains("InvalidObjectFault"));
+            }
+            assertEquals(2, standIn.getHandler().getFaultCount());
+        } finally {
+            standIn.stop();
+        }
+    }
+
+    @Test
+    public void errorInjection() throws IOException {
+        VBoxWebSrvStandIn standIn = new VBoxWebSrvStandIn("localhost", 0, 1, 1, 0, 1);
+        standIn.start();
+        try {
+            call(standIn.getPort(), "IWebsessionManager_logon", "username", "", "password", "");
+            throw new AssertionError("Call did not fail");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().contains("Injected failure"));
+        } finally {
+            standIn.stop();
+        }
+    }
+
+    @Test
+    public void launchedByVBoxWebSrv() throws IOException {
+        Assume.assumeTrue(System.getenv("VBOX_STANDIN_CP") != null);
+        Configuration.setSetting("vbox.exec.web.path", "src/test/script/vboxwebsrv-standin");
+        VBoxWebSrv srv = new VBoxWebSrv("localhost", 0, "null");
+        srv.start();
+        try {
+            assertEquals(_VBoxWebSrv.State.Started, srv.getState());
+            String vbox = call(srv.getPort(), "IWebsessionManager_logon", "username", "", "password", "");
+            assertEquals("0.0.0", call(srv.getPort(), "IVirtualBox_getVersion", "_this", vbox));
+        } finally {
+            srv.stop();
+        }
+    }
+
+}
@@ -0,0 +1,271 @@
+/*
+ * Hyperbox - Virtual Infrastructure Manager
+ * Copyright (C) 2021 Maxime Dor
+ *
+ * http://kamax.io/hbox/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.kamax.test.vbox.stress;
+
+import io.kamax.hbox.Configuration;
+import io.kamax.tools.logging.Logger;
+import io.kamax.vbox.VBoxWebSrv;
+import io.kamax.vbox.VBoxWebSrvPorts;
+import io.kamax.vbox.VBoxWebSrvRegistry;
+import io.kamax.vbox.utils.LatencyHistogram;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAccumulator;
+
+/**
+ * Starts and stops many {@link VBoxWebSrv} instances concurrently to find leaks in the process management.
+ * <p>
+ * Each instance runs its share of cycles: start, then either stop, or kill and stop once the process is gone. The executable is
+ * the one set in {@code vbox.exec.web.path}, a stand-in script by default. Run it with {@code ./gradlew stress}, passing
+ * {@code -PstressArgs="<instances> <cycles> <executable>"} to change the defaults.
+ * </p>
+ */
+public class VBoxWebSrvStressHarness {
+
+    public static class Report {
+
+        private final LatencyHistogram start = new LatencyHistogram();
+        private final LatencyHistogram stop = new LatencyHistogram();
+        private final AtomicLong cycles = new AtomicLong();
+        private final AtomicLong kills = new AtomicLong();
+        private final AtomicLong failures = new AtomicLong();
+        private final LongAccumulator peakThreads = new LongAccumulator(Math::max, 0);
+        private final LongAccumulator peakFds = new LongAccumulator(Math::max, -1);
+        // What this run started and reserved, so what other code of the JVM holds is not counted as left behind
+        private final List<VBoxWebSrv> instances = new CopyOnWriteArrayList<>();
+        private final Set<Integer> ports = ConcurrentHashMap.newKeySet();
+        private long threadsBefore;
+        private long threadsAfter;
+        private long fdsBefore;
+        private long fdsAfter;
+        private long heapBefore;
+        private long heapAfter;
+        private int registeredAfter;
+        private int reservedPortsAfter;
+
+        public LatencyHistogram getStart() {
+            return start;
+        }
+
+        public LatencyHistogram getStop() {
+            return stop;
+        }
+
+        public long getCycles() {
+            return cycles.get();
+        }
+
+        public long getFailures() {
+            return failures.get();
+        }
+
+        public long getThreadsBefore() {
+            return threadsBefore;
+        }
+
+        public long getThreadsAfter() {
+            return threadsAfter;
+        }
+
+        public long getFdsBefore() {
+            return fdsBefore;
+        }
+
+        public long getFdsAfter() {
+            return fdsAfter;
+        }
+
+        /**
+         * @return the heap still used after the run and a full collection, minus the same before the run, in bytes.
+         */
+        public long getRetainedHeap() {
+            return heapAfter - heapBefore;
+        }
+
+        /**
+         * @return how many of the instances of this run are still registered.
+         */
+        public int getRegisteredAfter() {
+            return registeredAfter;
+        }
+
+        /**
+         * @return how many of the ports used by this run are still reserved.
+         */
+        public int getReservedPortsAfter() {
+            return reservedPortsAfter;
+        }
+
+        @Override
+        public String toString() {
+            return "cycles=" + cycles + " kills=" + kills + " failures=" + failures + System.lineSeparator()
+                    + "start: " + start + System.lineSeparator()
+                    + "stop: " + stop + System.lineSeparator()
+                    + "threads: before=" + threadsBefore + " peak=" + peakThreads.get() + " after=" + threadsAfter + System.lineSeparator()
+                    + "fds: before=" + fdsBefore + " peak=" + peakFds.get() + " after=" + fdsAfter + System.lineSeparator()
+                    + "retained heap: " + getRetainedHeap() / 1024 + " KiB" + System.lineSeparator()
+                    + "left behind: registered=" + registeredAfter + " reservedPorts=" + reservedPortsAfter;
+        }
+
+    }
+
+    private static final MemoryMXBean memoryBean = ManagementFactory.getMemoryMXBean();
+    private static final File fdDir = new File("/proc/self/fd");
+
+    private final int instances;
+    private final int cycles;
+
+    public VBoxWebSrvStressHarness(int instances, int cycles) {
+        this.instances = instances;
+        this.cycles = cycles;
+    }
+
+    /**
+     * @return the number of open file descriptors of this JVM, or -1 if it cannot be known on this platform.
+     */
+    private static long getFdCount() {
+        String[] fds = fdDir.list();
+        return Objects.isNull(fds) ? -1 : fds.length;
+    }
+
+    /**
+     * @return the number of live threads, leaving out the process reapers the JDK keeps idle for a while after a process exits.
+     */
+    private static long getThreadCount() {
+        return Thread.getAllStackTraces().keySet().stream().filter(t -> !t.getName().startsWith("process reaper")).count();
+    }
+
+    private static long getUsedHeap() {
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return memoryBean.getHeapMemoryUsage().getUsed();
+    }
+
+    private static void waitForExit(VBoxWebSrv srv) throws InterruptedException {
+        for (int i = 0; i < 100 && srv.isRunning(); i++) {
+            Thread.sleep(10L);
+        }
+    }
+
+    private void cycle(VBoxWebSrv srv, Report report) throws InterruptedException {
+        long begin = System.nanoTime();
+        try {
+            srv.start();
+        } catch (RuntimeException e) {
+            report.failures.incrementAndGet();
+            Logger.warning("Start failed: " + e.getMessage());
+            return;
+        }
+        report.start.recordNanos(System.nanoTime() - begin);
+        report.ports.add(srv.getPort());
+
+        begin = System.nanoTime();
+        if (ThreadLocalRandom.current().nextInt(4) == 0) {
+            report.kills.incrementAndGet();
+            srv.kill();
+            waitForExit(srv);
+        }
+        srv.stop();
+        report.stop.recordNanos(System.nanoTime() - begin);
+
+        if (srv.isRunning()) {
+            report.failures.incrementAndGet();
+            Logger.warning("Instance still running after stop");
+        }
+        report.cycles.incrementAndGet();
+    }
+
+    public Report run() throws Exception {
+        Report report = new Report();
+        report.threadsBefore = getThreadCount();
+        report.fdsBefore = getFdCount();
+        report.heapBefore = getUsedHeap();
+
+        ScheduledExecutorService sampler = Executors.newSingleThreadScheduledExecutor();
+        sampler.scheduleAtFixedRate(() -> {
+            report.peakThreads.accumulate(getThreadCount());
+            report.peakFds.accumulate(getFdCount());
+        }, 0, 50, TimeUnit.MILLISECONDS);
+
+        ExecutorService workers = Executors.newFixedThreadPool(instances);
+        try {
+            List<Future<?>> results = new ArrayList<>();
+            for (int i = 0; i < instances; i++) {
+                results.add(workers.submit(() -> {
+                    VBoxWebSrv srv = new VBoxWebSrv("localhost", 0, "null");
+                    report.instances.add(srv);
+                    for (int j = 0; j < cycles; j++) {
+                        cycle(srv, report);
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> result : results) {
+                result.get();
+            }
+        } finally {
+            workers.shutdown();
+            workers.awaitTermination(1, TimeUnit.MINUTES);
+            sampler.shutdownNow();
+            sampler.awaitTermination(1, TimeUnit.SECONDS);
+        }
+
+        // Let the processes and their stream readers be reaped before taking the final counts
+        Thread.sleep(500L);
+        report.threadsAfter = getThreadCount();
+        report.fdsAfter = getFdCount();
+        report.heapAfter = getUsedHeap();
+        report.registeredAfter = (int) VBoxWebSrvRegistry.getInstances().stream()
+                .filter(registered -> report.instances.stream().anyMatch(srv -> srv == registered))
+                .count();
+        report.reservedPortsAfter = (int) report.ports.stream().filter(VBoxWebSrvPorts.get()::isReserved).count();
+        return report;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int instances = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+        int cycles = args.length > 1 ? Integer.parseInt(args[1]) : 250;
+        String exec = args.length > 2 ? args[2] : "src/test/script/vboxwebsrv-ok";
+
+        Configuration.setSetting("vbox.exec.web.path", exec);
+        System.out.println("Running " + cycles + " cycles on each of " + instances + " instances of " + exec);
+        Report report = new VBoxWebSrvStressHarness(instances, cycles).run();
+        System.out.println(report);
+        System.exit(report.getFailures() > 0 || report.getRegisteredAfter() > 0 || report.getReservedPortsAfter() > 0 ? 1 : 0);
+    }
+
+}
@@ -0,0 +1,51 @@
+/*
+ * Hyperbox - Virtual Infrastructure Manager
+ * Copyright (C) 2021 Maxime Dor
+ *
+ * http://kamax.io/hbox/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.kamax.test.vbox.stress;
+
+import io.kamax.hbox.Configuration;
+import io.kamax.vbox.VBoxWebSrvPorts;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class VBoxWebSrvStressHarnessTest {
+
+    @Test
+    public void noLeak() throws Exception {
+        Configuration.setSetting("vbox.exec.web.path", "src/test/script/vboxwebsrv-ok");
+        VBoxWebSrvStressHarness.Report report;
+        // A port held by other code of the JVM is not counted against the run
+        try (VBoxWebSrvPorts.Reservation held = VBoxWebSrvPorts.get().reserve("localhost")) {
+            report = new VBoxWebSrvStressHarness(4, 10).run();
+            assertTrue(VBoxWebSrvPorts.get().isReserved(held.getPort()));
+        }
+        assertEquals(40, report.getCycles());
+        assertEquals(0, report.getFailures());
+        assertEquals(0, report.getRegisteredAfter());
+        assertEquals(0, report.getReservedPortsAfter());
+        assertTrue(report.toString(), report.getThreadsAfter() <= report.getThreadsBefore() + 2);
+        if (report.getFdsBefore() >= 0) {
+            assertTrue(report.toString(), report.getFdsAfter() <= report.getFdsBefore() + 4);
+        }
+    }
+
+}